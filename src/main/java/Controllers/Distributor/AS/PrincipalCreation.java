@@ -0,0 +1,66 @@
+package Controllers.Distributor.AS;
+
+import Security.Model.KeyMethods;
+import Security.Model.Principal;
+import Security.Model.PrincipalDatabase;
+import Security.Model.VersionedKey;
+
+/**
+ * Creates the principal database used by the AS and the TGS.
+ * <p>
+ * This class belongs to the <em>Distributor phase</em> of the project and is
+ * meant to be run on the KDC host once the Sender/Receiver classes have
+ * established the pairwise symmetric keys. It creates
+ *
+ * <pre>
+ *   Security/SecretVault/Principals.db
+ * </pre>
+ *
+ * and seeds it with the three principals of the demo, taking their long-term
+ * keys from the files already in {@code Security/SecretVault/Connection/}:
+ * <ul>
+ *   <li>{@code Client} – from {@code Symmetric-AS-Client.key}.</li>
+ *   <li>{@code TGS - Victor} – from {@code Symmetric-AS-TGS.key}.</li>
+ *   <li>{@code Server} – from {@code Symmetric-TGS-Server.key}.</li>
+ * </ul>
+ * Further principals can be added with {@link PrincipalDatabase#put(Principal)}.
+ * Running this class again recreates the database from scratch.
+ * <p>
+ * Paths are currently hardcoded for demonstration purposes; adjust
+ * {@code projectPath} and {@code expectedPrincipals} as needed.
+ *
+ * @author Silver-VS
+ */
+public class PrincipalCreation {
+
+    /**
+     * Creates and seeds the principal database.
+     *
+     * @param args not used
+     * @throws Exception if a key file cannot be read or the database cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+
+        String projectPath = "D:\\Kerberos_Echo\\Kerberos";
+        int expectedPrincipals = 1000;
+
+        String path4Vault = projectPath + "\\src\\main\\java\\Security\\SecretVault\\";
+        String path4Connection = path4Vault + "Connection\\";
+
+        PrincipalDatabase principals = PrincipalDatabase.create(
+                path4Vault + PrincipalDatabase.FILE_NAME, expectedPrincipals);
+
+        String[][] seeds = {
+                {"Client", "AS", "Client"},
+                {Principal.TGS_NAME, "AS", "TGS"},
+                {"Server", "TGS", "Server"},
+        };
+        for (String[] seed : seeds) {
+            VersionedKey key = KeyMethods.recoverVersionedSecret(path4Connection, seed[1], seed[2]);
+            principals.put(new Principal(seed[0], Principal.ENCTYPE_DES, key.getKvno(), key.getKey().getEncoded(), 0, 0));
+            System.out.println("Principal " + seed[0] + " registrado.");
+        }
+        principals.force();
+        System.out.println(principals.size() + " principales en " + path4Vault + PrincipalDatabase.FILE_NAME);
+    }
+}
@@ -0,0 +1,55 @@
+package Controllers.Distributor.AS;
+
+import Security.Model.PrincipalDatabase;
+import Security.Model.PrincipalImporter;
+
+/**
+ * Bulk-loads a directory of users into the principal database.
+ * <p>
+ * This class belongs to the <em>Distributor phase</em> of the project. Instead
+ * of running {@code KeyCreation} and a Sender/Receiver pair per actor, it streams
+ * a CSV or JSON Lines file of principals, with passwords or pre-generated DES
+ * keys, into
+ *
+ * <pre>
+ *   Security/SecretVault/Principals.db
+ * </pre>
+ *
+ * through a {@link PrincipalImporter} (see there for the file formats). If the
+ * database does not exist yet, it is created sized for {@code expectedPrincipals};
+ * an existing database keeps its capacity, so create it large enough with
+ * {@link PrincipalCreation} first when importing a big directory.
+ * <p>
+ * Usage: {@code PrincipalImport [file]}. Without arguments the file
+ * {@code Security/SecretVault/principals.csv} is imported. Paths are currently
+ * hardcoded for demonstration purposes; adjust {@code projectPath} and
+ * {@code expectedPrincipals} as needed.
+ *
+ * @author Silver-VS
+ */
+public class PrincipalImport {
+
+    /**
+     * Imports the given file into the principal database.
+     *
+     * @param args optional path of the file to import
+     * @throws Exception if the file cannot be read or the database cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+
+        String projectPath = "D:\\Kerberos_Echo\\Kerberos";
+        int expectedPrincipals = 1000000;
+        int workers = Runtime.getRuntime().availableProcessors();
+
+        String path4Vault = projectPath + "\\src\\main\\java\\Security\\SecretVault\\";
+        String inputFile = args.length > 0 ? args[0] : path4Vault + "principals.csv";
+
+        PrincipalDatabase principals = PrincipalDatabase.openIfExists(path4Vault + PrincipalDatabase.FILE_NAME);
+        if (principals == null)
+            principals = PrincipalDatabase.create(path4Vault + PrincipalDatabase.FILE_NAME, expectedPrincipals);
+
+        System.out.println("Importando " + inputFile + " con " + workers + " hilos...");
+        new PrincipalImporter(principals, workers).importFile(inputFile);
+        System.out.println(principals.size() + " principales en " + path4Vault + PrincipalDatabase.FILE_NAME);
+    }
+}
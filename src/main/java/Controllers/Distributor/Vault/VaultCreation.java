@@ -0,0 +1,48 @@
+package Controllers.Distributor.Vault;
+
+import Security.Model.KeyVault;
+
+/**
+ * Packs the SecretVault directories into single, indexed vault files.
+ * <p>
+ * This class belongs to the <em>Distributor phase</em> of the project and is
+ * meant to be run once the {@code KeyCreation} and Sender/Receiver classes have
+ * filled the SecretVault. For each of
+ *
+ * <pre>
+ *   Security/SecretVault/Generated/
+ *   Security/SecretVault/Connection/
+ * </pre>
+ *
+ * it writes a {@code SecretVault.vault} file holding every {@code .key} file of
+ * that directory (see {@link KeyVault}). The Kerberos controllers pick the vault
+ * up automatically through {@link Security.Model.KeyCache}; the {@code .key}
+ * files are left in place and are still used for keys the vault does not hold.
+ * <p>
+ * Run it again after re-running the Distributor so the vault matches the
+ * directory. Paths are currently hardcoded for demonstration purposes; adjust
+ * {@code projectPath} as needed.
+ *
+ * @author Silver-VS
+ */
+public class VaultCreation {
+
+    /**
+     * Packs the {@code Generated} and {@code Connection} directories.
+     *
+     * @param args not used
+     * @throws Exception if a key file cannot be read or a vault cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+
+        String projectPath = "D:\\Kerberos_Echo\\Kerberos";
+
+        String path4Generated = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Generated\\";
+        String path4Connection = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Connection\\";
+
+        for (String directory : new String[]{path4Generated, path4Connection}) {
+            int packed = KeyVault.pack(directory, directory + KeyVault.FILE_NAME);
+            System.out.println(packed + " llaves empaquetadas en " + directory + KeyVault.FILE_NAME);
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package Controllers.Kerberos.AS;
 
+import Model.Log;
 import Model.Messenger;
+import Security.Model.KeyCache;
+import Security.Model.KeyStoreLog;
+import Security.Model.KeyStoreReplication;
+import Security.Model.PrincipalDatabase;
+import Security.Model.ShardRing;
 
 import java.net.ServerSocket;
 
@@ -34,29 +40,79 @@ public class Controller {
      *               with other principals.</li>
      *       </ul>
      *   </li>
+     *   <li>If a shard name is given, serve only that shard of {@code Shards.properties}
+     *       through {@link ShardRing#serve(ShardRing, String)}, on the shard's port.</li>
+     *   <li>Map {@code Security/SecretVault/Principals.db} (or {@code <shard>-Principals.db}) if it exists.</li>
+     *   <li>Optionally load the key store's snapshot ({@code Generated/AS-KeyStore.snapshot}),
+     *       replay and attach its write-ahead log ({@code Generated/AS-KeyStore.wal}) through
+     *       {@link KeyStoreLog#recover}, and schedule a snapshot every {@code snapshotInterval}
+     *       milliseconds through {@link KeyStoreLog#scheduleSnapshots(long)}, and
+     *       stream its changes to replicas on {@code replicationPort} ({@code 1131}) through
+     *       {@link KeyStoreReplication#startPrimary(int, javax.crypto.SecretKey)}, authenticating them
+     *       with {@code Connection/Symmetric-AS-Replica.key}.</li>
+     *   <li>Preload every key of {@code Connection} through {@link KeyCache#preload(String...)}.</li>
      *   <li>Initialize a {@link ServerSocket} via
      *       {@link Messenger#serverSocketInitializer(int)}.</li>
      *   <li>Enter a loop that:
      *       <ul>
      *           <li>Waits for incoming client connections.</li>
      *           <li>Delegates the request to
-     *               {@link ProcessRequest#processUserRequest(java.net.Socket, String, String)}.</li>
+     *               {@link ProcessRequest#processUserRequest(java.net.Socket, String, PrincipalDatabase)}.</li>
      *           <li>Logs whether the response was sent successfully.</li>
      *       </ul>
      *   </li>
      * </ol>
      * The loop terminates only when the underlying {@code ServerSocket} is closed.
      *
-     * @param args not used
+     * @param args optional shard name, as listed in {@code Security/SecretVault/Shards.properties}
+     * @throws Exception if the write-ahead log, the principal database or a key cannot be loaded
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
 
         int receivingPort = 1121;
         String projectPath = "D:\\Kerberos_Echo\\Kerberos";
+        boolean writeAheadLog = true;
+        long snapshotInterval = 60000L;
+        String path4Vault = projectPath + "\\src\\main\\java\\Security\\SecretVault\\";
+
+        //  Started with a shard name, this AS serves only the principals the ring assigns to that shard,
+        //  on the shard's port, with its own principal database and log.
+        String shardName = args.length > 0 ? args[0] : null;
+        String shardPrefix = "";
+        if (shardName != null) {
+            ShardRing ring = ShardRing.load(path4Vault + ShardRing.FILE_NAME);
+            if (ring == null || ring.getShard(shardName) == null) {
+                System.out.println("El shard " + shardName + " no est\u00E1 en " + ShardRing.FILE_NAME + ".");
+                System.exit(-1);
+            }
+            ShardRing.serve(ring, shardName);
+            receivingPort = ring.getShard(shardName).getAsPort();
+            shardPrefix = shardName + "-";
+        }
+        int replicationPort = receivingPort + 10;
 
         String path4SecretKeySaving = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Generated\\";
         String path4SecretKeyComms = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Connection\\";
 
+        //  The principal database is optional; without it every key comes from the pairwise files.
+        PrincipalDatabase principals = PrincipalDatabase.openIfExists(path4Vault + shardPrefix + PrincipalDatabase.FILE_NAME);
+
+        //  Key store changes are logged; the log left by the previous run is replayed first.
+        //  A snapshot is written every minute, so a restart only replays the last minute of the log.
+        if (writeAheadLog) {
+            KeyStoreLog.recover(path4SecretKeySaving + "AS-" + shardPrefix + KeyStoreLog.FILE_NAME, principals);
+            KeyStoreLog.scheduleSnapshots(snapshotInterval);
+            //  Replicas (Controllers.Kerberos.Replica.Controller) follow this node's changes on replicationPort.
+            //  They must hold a copy of Connection/Symmetric-AS-Replica.key, created here on the first start.
+            KeyStoreReplication.startPrimary(replicationPort,
+                    KeyStoreReplication.replicationKey(path4SecretKeyComms, "AS", true));
+        }
+
+        //  We load every key before accepting requests, so the first client does not wait for the disk.
+        long preloadStart = System.currentTimeMillis();
+        int preloaded = KeyCache.preload(path4SecretKeyComms);
+        System.out.println(preloaded + " llaves precargadas en " + (System.currentTimeMillis() - preloadStart) + " ms.");
+
         ServerSocket serverSocket = Messenger.serverSocketInitializer(receivingPort);
 
         if (serverSocket == null) {
@@ -67,17 +123,14 @@ public class Controller {
         System.out.println("AS iniciado.");
 
         do {
-            System.out.println("En espera de petici\u00F3n...");
+            //  ProcessRequest logs why a request was rejected or failed.
             if (
                     ProcessRequest.processUserRequest(
                             Messenger.requestAccepter(serverSocket),
-                            path4SecretKeySaving, path4SecretKeyComms
+                            path4SecretKeyComms, principals
                     )
-            ) {
-                System.out.println("Respuesta enviada del AS al cliente.");
-            } else {
-                System.out.println("Ha ocurrido un error en la respuesta.");
-            }
+            )
+                Log.debug("Respuesta enviada del AS al cliente.");
         } while (!serverSocket.isClosed());
     }
 
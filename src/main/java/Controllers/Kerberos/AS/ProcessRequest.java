@@ -1,16 +1,22 @@
 package Controllers.Kerberos.AS;
 
+import Model.Log;
 import Model.Messenger;
 import Model.Ticket;
+import Model.TicketKind;
+import Model.TicketPool;
 import Model.TimeMethods;
 import Model.UTicket;
 import Security.Model.Encryption;
+import Security.Model.KeyCache;
 import Security.Model.KeyMethods;
+import Security.Model.Principal;
+import Security.Model.PrincipalDatabase;
+import Security.Model.ShardRing;
+import Security.Model.VersionedKey;
 
 import javax.crypto.SecretKey;
 import java.net.Socket;
-import java.sql.Timestamp;
-import java.time.Instant;
 
 /**
  * Handles client requests to the Authentication Server (AS).
@@ -30,9 +36,17 @@ import java.time.Instant;
  *   <li>Encrypts {@code "TGT"} using the AS–TGS and AS–Client keys (for demonstration purposes).</li>
  *   <li>Sends the resulting {@link UTicket} back to the client over the socket.</li>
  * </ol>
+ * The AS-REP is built in the thread's envelope from {@link TicketPool}.
  *
- * The generated long-term and session keys are persisted using {@link KeyMethods}
- * under {@code Security/SecretVault/Generated} and {@code Security/SecretVault/Connection}.
+ * Long-term keys of the client and of the TGS are looked up by principal name in the
+ * {@link PrincipalDatabase}, and requests for principals it does not hold are rejected.
+ * Only when the database has not been created are the keys read from the pairwise
+ * files of {@code Security/SecretVault/Connection}. The session key
+ * {@code K_c,tgs} is not kept by the AS: it travels sealed in the TGT, from
+ * which the TGS recovers it, so nothing is written on the request path.
+ * <p>
+ * When the AS runs as a shard of the realm (see {@link ShardRing}), requests for
+ * principals owned by another shard are rejected.
  * <br><br>
  * @author Silver-VS
  */
@@ -43,74 +57,120 @@ public class ProcessRequest {
      * Processes an AS-REQ from the client and sends an AS-REP response.
      *
      * @param socket            accepted socket representing the client connection
-     * @param path4KeySaving    path where new symmetric keys (e.g. Client–TGS) should be stored
      * @param path4KeyRetrieving path where existing long-term keys (AS–Client, AS–TGS) are stored
+     * @param principals         principal database, or {@code null} to use only the pairwise key files
      * @return {@code true} if the response was sent successfully, {@code false} otherwise
      */
-    public static boolean processUserRequest(Socket socket, String path4KeySaving, String path4KeyRetrieving) {
+    public static boolean processUserRequest(Socket socket, String path4KeyRetrieving,
+                                             PrincipalDatabase principals) {
         try {
             UTicket userRequest = Messenger.ticketAccepter(socket);
             if (userRequest == null) {
-                System.out.println("Ha ocurrido un error");
+                Log.error("No se ha podido recibir la petici\u00F3n del usuario.");
                 System.exit(-1);
             }
-            Ticket ticket = userRequest.searchTicket("request");
-            UTicket userResponse = new UTicket();
+            Ticket ticket = userRequest.getTicket(TicketKind.REQUEST);
+            UTicket userResponse = TicketPool.envelope();
+
+            if (Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("Ticket recibido:\n" + userRequest.describe());
+
+            if (!ShardRing.isLocal(ticket.getFirstId())) {
+                Log.info("Principal de otro shard, se rechaza la petici\u00F3n.", "principal", ticket.getFirstId(),
+                        "shard", ShardRing.local().owner(ticket.getFirstId()).getName());
+                return reject(socket);
+            }
 
-            System.out.println("Ticket recibido");
-            userResponse.printTicket(userRequest);
-            System.out.println("Final de ticket recibido");
+            //  With a principal database, only the principals it holds get a TGT.
+            Principal client = null;
+            Principal tgs = null;
+            if (principals != null) {
+                client = principals.lookup(ticket.getFirstId());
+                if (client == null) {
+                    Log.info("Principal desconocido, se rechaza la petici\u00F3n.", "principal", ticket.getFirstId());
+                    return reject(socket);
+                }
+                if (client.isDisabled()) {
+                    Log.info("Principal deshabilitado, se rechaza la petici\u00F3n.", "principal", ticket.getFirstId());
+                    return reject(socket);
+                }
+                tgs = principals.lookup(Principal.TGS_NAME);
+                if (tgs == null) {
+                    Log.error("La base de datos de principales no contiene al TGS.", "principal", Principal.TGS_NAME);
+                    return reject(socket);
+                }
+            }
 
             SecretKey sessionKeyClientTGS = KeyMethods.generateSecretKey();
-            KeyMethods.saveSecret(sessionKeyClientTGS, path4KeySaving, "Client", "TGS");
 
-            Timestamp timestamp = Timestamp.from(Instant.now());
-            Timestamp lifetime = new Timestamp(timestamp.getTime() + TimeMethods.getMillis(5,0));
+            long lifetimeMillis = TimeMethods.getMillis(5,0);
+            if (client != null && client.getMaxLifetime() > 0)
+                lifetimeMillis = Math.min(lifetimeMillis, client.getMaxLifetime());
+            long now = TimeMethods.now();
+            long lifetime = now + lifetimeMillis;
+
+            String sessionKey = KeyMethods.convertAnyKey2String(sessionKeyClientTGS);
+            String issued = TimeMethods.format(now);
+            String expires = TimeMethods.format(lifetime);
 
             userResponse.generateResponse4User( // Name of ticket: responseToClient
-                    "TGS - Victor", // ID TGS
-                    timestamp.toString(), // TS 2
-                    lifetime.toString(), // Tiempo de vida 2
-                    KeyMethods.convertAnyKey2String(sessionKeyClientTGS)); // K c-tgs
+                    Principal.TGS_NAME, // ID TGS
+                    issued, // TS 2
+                    expires, // Tiempo de vida 2
+                    sessionKey); // K c-tgs
 
             userResponse.generateTicket(
-                    "TGT", // Ticket TGS
+                    TicketKind.TGT.getId(), // Ticket TGS
                     ticket.getFirstId(), // ID c
-                    "TGS - Victor", // ID tgs
-                    timestamp.toString(), // TS 2
+                    Principal.TGS_NAME, // ID tgs
+                    issued, // TS 2
                     socket.getInetAddress().getHostAddress(), //AD c
-                    lifetime.toString(), // Tiempo de vida 2
-                    KeyMethods.convertAnyKey2String(sessionKeyClientTGS)); // K c-tgs
+                    expires, // Tiempo de vida 2
+                    sessionKey); // K c-tgs
 
-            SecretKey secretAS_Client = KeyMethods.recoverSecret(path4KeyRetrieving, "AS", "Client");
-            SecretKey secretAS_TGS = KeyMethods.recoverSecret(path4KeyRetrieving, "AS", "TGS");
+            //  We always encrypt with the current version of each key; its kvno travels with the ticket.
+            VersionedKey secretAS_Client = principals != null
+                    ? client.getVersionedKey() : KeyCache.recoverVersioned(path4KeyRetrieving, "AS", "Client");
+            VersionedKey secretAS_TGS = principals != null
+                    ? tgs.getVersionedKey() : KeyCache.recoverVersioned(path4KeyRetrieving, "AS", "TGS");
 
-            if (userResponse.encryptTicket(secretAS_Client, "responseToClient"))
-                System.out.println("El ticket responseToClient ha sido encriptado con la llave AS-Client exitosamente.");
+            if (userResponse.encryptTicket(secretAS_Client, TicketKind.RESPONSE_TO_CLIENT))
+                Log.debug("El ticket responseToClient ha sido encriptado con la llave AS-Client exitosamente.");
             else {
-                System.out.println("Ha ocurrido un error al encriptar el ticket responseToClient");
+                Log.error("Ha ocurrido un error al encriptar el ticket responseToClient");
                 System.exit(-1);
             }
-            if (userResponse.encryptTicket(secretAS_TGS, "TGT"))
-                System.out.println("Ticket TGT ha sido encriptado exitosamente con la llave secrete AS-TGS.");
+            if (userResponse.encryptTicket(secretAS_TGS, TicketKind.TGT))
+                Log.debug("Ticket TGT ha sido encriptado exitosamente con la llave secrete AS-TGS.");
             else {
-                System.out.println("Ha ocurrido un error al encriptar el ticket TGT");
+                Log.error("Ha ocurrido un error al encriptar el ticket TGT");
                 System.exit(-1);
             }
-            if (userResponse.encryptTicket(secretAS_Client, "TGT"))
-                System.out.println("Ticket TGT ha sido encriptado exitosamente con la llave secrete AS-Client.");
+            if (userResponse.encryptTicket(secretAS_Client, TicketKind.TGT))
+                Log.debug("Ticket TGT ha sido encriptado exitosamente con la llave secrete AS-Client.");
             else {
-                System.out.println("Ha ocurrido un error al encriptar el ticket TGT");
+                Log.error("Ha ocurrido un error al encriptar el ticket TGT");
                 System.exit(-1);
             }
 
             return Messenger.ticketResponder(socket, userResponse);
 
         } catch (Exception e) {
-
-            e.printStackTrace();
+            Log.error("Error al procesar la petici\u00F3n.", e);
             return false;
         }
     }
 
+    /**
+     * Sends a negative boolean response to the client and reports the request as not served.
+     *
+     * @param socket socket connected to the client
+     * @return always {@code false}
+     */
+    private static boolean reject(Socket socket) {
+        boolean flag;
+        do flag = Messenger.booleanResponder(socket, false); while (!flag);
+        return false;
+    }
+
 }
@@ -1,13 +1,14 @@
 package Controllers.Kerberos.Client;
 
 import Model.Ticket;
+import Model.TicketKind;
 import Model.TimeMethods;
 import Model.UTicket;
 import Security.Model.KeyMethods;
+import Security.Model.Principal;
+import Security.Model.ShardRing;
 
 import javax.crypto.SecretKey;
-import java.sql.Timestamp;
-import java.time.Instant;
 
 /**
  * Kerberos client controller and demo entry point.
@@ -21,7 +22,16 @@ import java.time.Instant;
  * </ol>
  * For simplicity, the IP addresses, ports and file system paths are currently
  * hardcoded, and all three servers (AS, TGS, Server) are assumed to be
- * reachable on {@code localhost} with predefined ports.
+ * reachable on {@code localhost} with predefined ports. If
+ * {@code Security/SecretVault/Shards.properties} exists, the AS and TGS of the
+ * shard that owns the client principal are used instead (see {@link ShardRing}).
+ * <p>
+ * The tickets obtained are kept with their session keys in the client's
+ * {@link CredentialCache} ({@code Client.ccache}, next to its keys) until they
+ * expire. A later run that finds a valid service ticket there goes straight to
+ * the Server; one that only finds a valid TGT skips the AS. A cached ticket
+ * the TGS or the Server rejects (its key was changed, or the service restarted
+ * without it) is removed from the cache and the exchanges it skipped are run again.
  *
  * <p>High-level flow:</p>
  * <ol>
@@ -56,7 +66,7 @@ import java.time.Instant;
  */
 
 public class Controller {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         //  Main project directory
         String projectPath = "D:\\Kerberos_Echo\\Kerberos";
         //  Client info
@@ -71,109 +81,75 @@ public class Controller {
         String addressIP_TGS = "localhost";
         int connectionPort_TGS = 1202;
 
-        //  Server info
+        //  Server info, by the service name the TGS knows it under
+        String serviceName = "Server";
         String addressIP_Server = "localhost";
         int connectionPort_Server = 1203;
 
-        //  Variables to use later on.
-        String receiverName;
-        SecretKey ClientAS;
-        SecretKey sessionKeyClientTGS;
-        SecretKey sessionKeyClientServer;
         //  This lifetime can be changed accordingly to the interpretation we are giving it.
-        Timestamp requestedLifetime = TimeMethods.timeSignature();
-        requestedLifetime.setTime(requestedLifetime.getTime() + TimeMethods.getMillis(5, 0));
+        String requestedLifetime = TimeMethods.format(TimeMethods.now() + TimeMethods.getMillis(5, 0));
         String path4SecretKeyComms = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Connection\\";
 
+        //  In a sharded realm, our AS-REQ and TGS-REQ go to the shard that holds our principal.
+        ShardRing ring = ShardRing.load(projectPath + "\\src\\main\\java\\Security\\SecretVault\\" + ShardRing.FILE_NAME);
+        if (ring != null) {
+            ShardRing.Shard shard = ring.owner(whoAmI);
+            addressIP_AS = shard.getHost();
+            connectionPort_AS = shard.getAsPort();
+            addressIP_TGS = shard.getHost();
+            connectionPort_TGS = shard.getTgsPort();
+            System.out.println("Usando el shard " + shard);
+        }
+
         try { //Intenta encontrar la llave del AS con el Cliente
 
-            ClientAS = KeyMethods.recoverSecret(path4SecretKeyComms, whoAmI, "AS");
-
-            System.out.print("\nSolicitud al AS");
-            receiverName = "AS";
-            //  We send the request ticket to the AS and receive the response from the AS
-            UTicket responseFromAS = RequestAccess.startAuth(whoAmI, receiverName, requestedLifetime.toString(),
-                    addressIP_AS, connectionPort_AS);
-            //  We decrypt the tickets with our secret key.
-            if (responseFromAS.decryptTicket(ClientAS, "responseToClient"))
-                System.out.println("El ticket responseToClient enviado por el AS ha sido desencriptado exitosamente.");
-            else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket responseToClient enviado por el AS.");
-                System.exit(-1);
-            }
+            //  Tickets obtained by earlier runs, until they expire.
+            CredentialCache ccache = CredentialCache.open(path4SecretKeyComms + whoAmI + CredentialCache.EXTENSION);
+            CredentialCache.Credential serviceCredential = ccache.lookup(whoAmI, serviceName);
+            UTicket responseFromServer = null;
 
-            if (responseFromAS.decryptTicket(ClientAS, "TGT"))
-                System.out.println("El ticket TGT enviado por el AS ha sido desencriptado exitosamente.");
-            else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket TGT enviado por el AS.");
-                System.exit(-1);
+            if (serviceCredential != null) {
+                System.out.println("\nServiceTicket tomado de la cach\u00E9 de credenciales, se omiten el AS y el TGS.");
+                responseFromServer = askServer(serviceCredential, whoAmI, addressIP_Self,
+                        addressIP_Server, connectionPort_Server);
+                if (responseFromServer == null) {
+                    //  The Server no longer accepts it; we drop it and get a new one below.
+                    System.out.println("El Server ha rechazado el ServiceTicket de la cach\u00E9; se descarta y se solicita otro.");
+                    ccache.remove(whoAmI, serviceCredential.getServer());
+                }
             }
-            //  We show in console the tickets unencrypted, but we should only be able to read the response to
-            //  the client, but not TGT, as this is still encrypted with the Public key of the TGS.
-            System.out.println("\nTickets decrypted: ");
-            responseFromAS.printTicket(responseFromAS);
-            System.out.println("Termina respuesta del AS\n");
-
-            //  We retrieve the secret key sent by the AS for communication with the TGS.
-            Ticket responseAS = responseFromAS.searchTicket("responseToClient");
-            sessionKeyClientTGS = KeyMethods.convertString2Key(responseAS.getKey());
-            KeyMethods.saveSecret(sessionKeyClientTGS, path4SecretKeyComms, whoAmI, "TGS");
-
-            //We send the TGT, emitted by the AS, to the TGS, adding our authenticator and our ID.
-            System.out.println("Solicitud al TGS");
-            UTicket responseFromTGS =
-                    RequestAccess.followTGS(
-                            responseFromAS, "Server", sessionKeyClientTGS, responseAS.getLifetime(), whoAmI,
-                            TimeMethods.timeSignature().toString(),
-                            addressIP_Self, addressIP_TGS, connectionPort_TGS
-                    );
-            if (responseFromTGS == null) {
-                System.out.println("Ha ocurrido un error al recibir la respuesta.");
-                System.exit(-1);
-            }
-            //  We decrypt the tickets using the key sent by the AS for communication with the TGS.
-            if (responseFromTGS.decryptTicket(sessionKeyClientTGS, "responseToClient"))
-                System.out.println("El ticket responseToClient enviado por el TGS ha sido desencriptado exitosamente.");
-            else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket responseToClient enviado por el TGS.");
-                System.exit(-1);
-            }
-            if (responseFromTGS.decryptTicket(sessionKeyClientTGS, "serviceTicket"))
-                System.out.println("El ticket responseToClient enviado por el TGS ha sido desencriptado exitosamente.");
-            else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket responseToClient enviado por el TGS.");
-                System.exit(-1);
-            }
-            //  We show in console the tickets unencrypted, but we should only be able to read the response to
-            //  the client, but not serviceTicket, as this is still encrypted with the Public key of the Server.
-            responseFromTGS.printTicket(responseFromTGS);
-            System.out.println("\nTermina respuesta del TGS");
-
-            //  We retrieve the secret key sent by the TGS for communication with the Server.
-            Ticket responseTGS = responseFromTGS.searchTicket("responseToClient");
-            sessionKeyClientServer = KeyMethods.convertString2Key(responseTGS.getKey());
-            String serverName = responseTGS.getFirstId();
-            KeyMethods.saveSecret(sessionKeyClientServer, path4SecretKeyComms, whoAmI, serverName);
-
-            //  We sent the ServiceTicket, emitted by the TGS, to the Server, adding our auth.
-            System.out.println("Solicitud al servidor");
-            UTicket responseFromServer =
-                    RequestAccess.askForService(
-                            responseFromTGS, whoAmI, Timestamp.from(Instant.now()).toString(),
-                            sessionKeyClientServer, addressIP_Self, addressIP_Server, connectionPort_Server
-                    );
-
             if (responseFromServer == null) {
-                System.out.println("Ha ocurrido un error al recibir la respuesta del servidor");
-                System.exit(-1);
-            }
+                CredentialCache.Credential tgtCredential = ccache.lookup(whoAmI, Principal.TGS_NAME);
+                boolean cachedTGT = tgtCredential != null;
+                if (cachedTGT)
+                    System.out.println("\nTGT tomado de la cach\u00E9 de credenciales, se omite el AS.");
+                else
+                    tgtCredential = askAS(ccache, whoAmI, requestedLifetime, path4SecretKeyComms,
+                            addressIP_AS, connectionPort_AS);
+
+                serviceCredential = askTGS(ccache, tgtCredential, whoAmI, serviceName, path4SecretKeyComms,
+                        addressIP_Self, addressIP_TGS, connectionPort_TGS);
+                if (serviceCredential == null && cachedTGT) {
+                    //  The TGS no longer accepts the cached TGT; we drop it and go through the AS once more.
+                    System.out.println("El TGS ha rechazado el TGT de la cach\u00E9; se descarta y se solicita otro al AS.");
+                    ccache.remove(whoAmI, tgtCredential.getServer());
+                    tgtCredential = askAS(ccache, whoAmI, requestedLifetime, path4SecretKeyComms,
+                            addressIP_AS, connectionPort_AS);
+                    serviceCredential = askTGS(ccache, tgtCredential, whoAmI, serviceName, path4SecretKeyComms,
+                            addressIP_Self, addressIP_TGS, connectionPort_TGS);
+                }
+                if (serviceCredential == null) {
+                    System.out.println("Ha ocurrido un error al obtener el ServiceTicket del TGS.");
+                    System.exit(-1);
+                }
 
-            //  We decrypt the ticket using the key sent by the TGS for communication with the Server.
-            if (responseFromServer.decryptTicket(sessionKeyClientServer, "auth"))
-                System.out.println("El ticket auth enviado por el Server ha sido desencriptado exitosamente.");
-            else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket auth enviado por el Server.");
-                System.exit(-1);
+                responseFromServer = askServer(serviceCredential, whoAmI, addressIP_Self,
+                        addressIP_Server, connectionPort_Server);
+                if (responseFromServer == null) {
+                    System.out.println("Ha ocurrido un error al recibir la respuesta del servidor");
+                    ccache.remove(whoAmI, serviceCredential.getServer());
+                    System.exit(-1);
+                }
             }
             responseFromServer.printTicket(responseFromServer);
             System.out.println("Termina solicitud del servidor.");
@@ -186,4 +162,151 @@ public class Controller {
         }
 
     }
+
+    /**
+     * Runs the TGS-REQ / TGS-REP exchange with a TGT and keeps the service
+     * ticket obtained in the credential cache.
+     *
+     * @param ccache              credential cache of the client
+     * @param tgtCredential       the TGT with its session key {@code K_c,tgs}
+     * @param whoAmI              client principal
+     * @param serviceName         service the ticket is requested for
+     * @param path4SecretKeyComms directory of the client's symmetric keys
+     * @param addressIP_Self      IP/hostname of the client
+     * @param addressIP_TGS       IP/hostname where the TGS listens
+     * @param connectionPort_TGS  TCP port of the TGS
+     * @return the cached service ticket with its session key {@code K_c,s}, or
+     *         {@code null} if the TGS rejected the TGT or its response could not be decrypted
+     * @throws Exception if the session key or the service ticket cannot be stored
+     */
+    private static CredentialCache.Credential askTGS(CredentialCache ccache, CredentialCache.Credential tgtCredential,
+                                                     String whoAmI, String serviceName, String path4SecretKeyComms,
+                                                     String addressIP_Self, String addressIP_TGS,
+                                                     int connectionPort_TGS) throws Exception {
+        SecretKey sessionKeyClientTGS = tgtCredential.getSessionKey();
+
+        //We send the TGT, emitted by the AS, to the TGS, adding our authenticator and our ID.
+        System.out.println("Solicitud al TGS");
+        UTicket responseFromTGS =
+                RequestAccess.followTGS(
+                        tgtCredential.toUTicket(), serviceName, sessionKeyClientTGS,
+                        TimeMethods.format(tgtCredential.getExpiresAt()), whoAmI,
+                        TimeMethods.format(TimeMethods.now()),
+                        addressIP_Self, addressIP_TGS, connectionPort_TGS
+                );
+        if (responseFromTGS == null) {
+            System.out.println("Ha ocurrido un error al recibir la respuesta.");
+            return null;
+        }
+        //  We decrypt the tickets using the key sent by the AS for communication with the TGS.
+        if (responseFromTGS.decryptTicket(sessionKeyClientTGS, TicketKind.RESPONSE_TO_CLIENT))
+            System.out.println("El ticket responseToClient enviado por el TGS ha sido desencriptado exitosamente.");
+        else {
+            System.out.println("Ha ocurrido un error al desencriptar el ticket responseToClient enviado por el TGS.");
+            return null;
+        }
+        if (responseFromTGS.decryptTicket(sessionKeyClientTGS, TicketKind.SERVICE_TICKET))
+            System.out.println("El ticket responseToClient enviado por el TGS ha sido desencriptado exitosamente.");
+        else {
+            System.out.println("Ha ocurrido un error al desencriptar el ticket responseToClient enviado por el TGS.");
+            return null;
+        }
+        //  We show in console the tickets unencrypted, but we should only be able to read the response to
+        //  the client, but not serviceTicket, as this is still encrypted with the Public key of the Server.
+        responseFromTGS.printTicket(responseFromTGS);
+        System.out.println("\nTermina respuesta del TGS");
+
+        //  We retrieve the secret key sent by the TGS for communication with the Server.
+        Ticket responseTGS = responseFromTGS.getTicket(TicketKind.RESPONSE_TO_CLIENT);
+        SecretKey sessionKeyClientServer = responseTGS.getSecretKey();
+        String serverName = responseTGS.getFirstId();
+        //  The credential cache is the only copy the client keeps; no key file is written.
+        return ccache.store(whoAmI, serverName,
+                responseFromTGS.getTicket(TicketKind.SERVICE_TICKET), sessionKeyClientServer,
+                responseTGS.getLifetimeMillis());
+    }
+
+    /**
+     * Runs the AP-REQ / AP-REP exchange with a service ticket.
+     *
+     * @param serviceCredential     the service ticket with its session key {@code K_c,s}
+     * @param whoAmI                client principal
+     * @param addressIP_Self        IP/hostname of the client
+     * @param addressIP_Server      IP/hostname where the Server listens
+     * @param connectionPort_Server TCP port of the Server
+     * @return the Server's response, decrypted, or {@code null} if the Server
+     *         rejected the ticket or its response could not be decrypted
+     */
+    private static UTicket askServer(CredentialCache.Credential serviceCredential, String whoAmI,
+                                     String addressIP_Self, String addressIP_Server, int connectionPort_Server) {
+        SecretKey sessionKeyClientServer = serviceCredential.getSessionKey();
+
+        //  We sent the ServiceTicket, emitted by the TGS, to the Server, adding our auth.
+        System.out.println("Solicitud al servidor");
+        UTicket responseFromServer =
+                RequestAccess.askForService(
+                        serviceCredential.toUTicket(), whoAmI, TimeMethods.format(TimeMethods.now()),
+                        sessionKeyClientServer, addressIP_Self, addressIP_Server, connectionPort_Server
+                );
+        if (responseFromServer == null)
+            return null;
+
+        //  We decrypt the ticket using the key sent by the TGS for communication with the Server.
+        if (responseFromServer.decryptTicket(sessionKeyClientServer, TicketKind.AUTH))
+            System.out.println("El ticket auth enviado por el Server ha sido desencriptado exitosamente.");
+        else {
+            System.out.println("Ha ocurrido un error al desencriptar el ticket auth enviado por el Server.");
+            return null;
+        }
+        return responseFromServer;
+    }
+
+    /**
+     * Runs the AS-REQ / AS-REP exchange and keeps the TGT obtained in the credential cache.
+     *
+     * @param ccache              credential cache of the client
+     * @param whoAmI              client principal
+     * @param requestedLifetime   lifetime requested for the TGT
+     * @param path4SecretKeyComms directory of the client's symmetric keys
+     * @param addressIP_AS        IP/hostname where the AS listens
+     * @param connectionPort_AS   TCP port of the AS
+     * @return the cached TGT with its session key {@code K_c,tgs}
+     * @throws Exception if the Client–AS key cannot be read or the TGT cannot be cached
+     */
+    private static CredentialCache.Credential askAS(CredentialCache ccache, String whoAmI, String requestedLifetime,
+                                                    String path4SecretKeyComms, String addressIP_AS,
+                                                    int connectionPort_AS) throws Exception {
+        SecretKey ClientAS = KeyMethods.recoverSecret(path4SecretKeyComms, whoAmI, "AS");
+
+        System.out.print("\nSolicitud al AS");
+        //  We send the request ticket to the AS and receive the response from the AS
+        UTicket responseFromAS = RequestAccess.startAuth(whoAmI, "AS", requestedLifetime,
+                addressIP_AS, connectionPort_AS);
+        //  We decrypt the tickets with our secret key.
+        if (responseFromAS.decryptTicket(ClientAS, TicketKind.RESPONSE_TO_CLIENT))
+            System.out.println("El ticket responseToClient enviado por el AS ha sido desencriptado exitosamente.");
+        else {
+            System.out.println("Ha ocurrido un error al desencriptar el ticket responseToClient enviado por el AS.");
+            System.exit(-1);
+        }
+
+        if (responseFromAS.decryptTicket(ClientAS, TicketKind.TGT))
+            System.out.println("El ticket TGT enviado por el AS ha sido desencriptado exitosamente.");
+        else {
+            System.out.println("Ha ocurrido un error al desencriptar el ticket TGT enviado por el AS.");
+            System.exit(-1);
+        }
+        //  We show in console the tickets unencrypted, but we should only be able to read the response to
+        //  the client, but not TGT, as this is still encrypted with the Public key of the TGS.
+        System.out.println("\nTickets decrypted: ");
+        responseFromAS.printTicket(responseFromAS);
+        System.out.println("Termina respuesta del AS\n");
+
+        //  We retrieve the secret key sent by the AS for communication with the TGS.
+        Ticket responseAS = responseFromAS.getTicket(TicketKind.RESPONSE_TO_CLIENT);
+        SecretKey sessionKeyClientTGS = responseAS.getSecretKey();
+        //  The credential cache is the only copy the client keeps; no key file is written.
+        return ccache.store(whoAmI, responseAS.getFirstId(), responseFromAS.getTicket(TicketKind.TGT),
+                sessionKeyClientTGS, responseAS.getLifetimeMillis());
+    }
 }
@@ -0,0 +1,372 @@
+package Controllers.Kerberos.Client;
+
+import Model.Ticket;
+import Model.TimeMethods;
+import Model.UTicket;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * Memory-mapped credential cache (ccache) of the Client.
+ * <p>
+ * Keeps the tickets the Client has obtained, each with its session key, until
+ * they expire, so that a later client process can skip the exchanges it
+ * already went through: with a valid service ticket it goes straight to the
+ * Server (one round trip instead of three), and with only a valid TGT it
+ * skips the AS.
+ * <p>
+ * The cache is one file of fixed-size slots, one credential per (client, server)
+ * pair, preceded by a small header ({@code magic | version | capacity}):
+ * <pre>
+ *   offset  0  seq (int)         odd while the slot is being written
+ *   offset  4  length (int)      length of the body; 0 = empty slot
+ *   offset  8  expiresAt (long)  end of the ticket's lifetime, epoch millis
+ *   offset 16  body              client | server | sessionKey | ticket (id, six fields, MAC, kvno)
+ * </pre>
+ * The ticket is kept exactly as the Client received it, still encrypted for
+ * its service, and is sent again as is.
+ * <p>
+ * Several client processes may share the file. Writers take an exclusive
+ * lock on it; readers take no lock and instead reread a slot whose sequence
+ * number changed while they copied it, as with a seqlock. A slot left half
+ * written by a crashed process keeps an odd sequence number and reads as empty.
+ * <p>
+ * Like the {@code .key} files next to it, the cache holds session keys in
+ * clear and must be protected the same way.
+ *
+ * @author Silver-VS
+ */
+public class CredentialCache {
+
+    /**
+     * Extension of the cache file, named after the client: {@code Client.ccache}.
+     */
+    public static final String EXTENSION = ".ccache";
+
+    /**
+     * A credential is not handed out when it expires in less than this, so
+     * that it does not expire on its way to the service.
+     */
+    public static final long EXPIRY_MARGIN = TimeMethods.getMillis(0, 30);
+
+    private static final int MAGIC = 0x43434331; // "CCC1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 2048;
+    private static final int DEFAULT_CAPACITY = 32;
+    private static final int MAX_READ_ATTEMPTS = 16;
+
+    private static final int SEQ = 0;
+    private static final int LENGTH = 4;
+    private static final int EXPIRES_AT = 8;
+    private static final int BODY = 16;
+    private static final int MAX_BODY = SLOT_SIZE - BODY;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private CredentialCache(RandomAccessFile file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("El archivo no es una cach\u00E9 de credenciales v\u00E1lida.");
+        this.capacity = buffer.getInt(8);
+    }
+
+    /**
+     * Maps the cache at {@code address}, creating an empty one if there is no such file.
+     *
+     * @param address path of the cache file
+     * @return the opened cache
+     * @throws IOException if the file cannot be created or mapped, or is not a credential cache
+     */
+    public static CredentialCache open(String address) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(address, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            FileLock lock = channel.lock();
+            try {
+                if (file.length() < HEADER_SIZE) {
+                    file.setLength(HEADER_SIZE + (long) DEFAULT_CAPACITY * SLOT_SIZE);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+                    buffer.putInt(8, DEFAULT_CAPACITY);
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(0, MAGIC);
+                    buffer.force();
+                    return new CredentialCache(file, buffer);
+                }
+                return new CredentialCache(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length()));
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds an unexpired credential of {@code client} for {@code server}.
+     *
+     * @param client client principal
+     * @param server service the ticket is for, such as {@code "TGS"} or {@code "Server"}
+     * @return the credential, or {@code null} if there is none valid for at least {@link #EXPIRY_MARGIN}
+     */
+    public Credential lookup(String client, String server) {
+        long now = TimeMethods.now();
+        for (int slot = 0; slot < capacity; slot++) {
+            Credential credential = read(slot);
+            if (credential != null && credential.client.equals(client) && credential.server.equals(server))
+                return credential.expiresAt - EXPIRY_MARGIN > now ? credential : null;
+        }
+        return null;
+    }
+
+    /**
+     * Stores a ticket obtained by {@code client}, replacing its previous
+     * credential for the same server. If the cache is full, the credential
+     * that expires first is dropped.
+     *
+     * @param client     client principal
+     * @param server     service the ticket is for
+     * @param ticket     the ticket as it must be presented to the service
+     * @param sessionKey session key shared with the service
+     * @param expiresAt  end of the ticket's lifetime, epoch millis
+     * @return the stored credential
+     * @throws IOException if the credential does not fit in a slot or the file cannot be locked
+     */
+    public synchronized Credential store(String client, String server, Ticket ticket, SecretKey sessionKey,
+                                         long expiresAt) throws IOException {
+        Credential credential = new Credential(client, server, ticket, sessionKey, expiresAt);
+        byte[] body = encode(credential);
+        if (body.length > MAX_BODY)
+            throw new IOException("La credencial de " + client + " para " + server + " no cabe en la cach\u00E9.");
+
+        FileLock lock = file.getChannel().lock();
+        try {
+            long now = TimeMethods.now();
+            int target = -1;
+            long earliest = Long.MAX_VALUE;
+            for (int slot = 0; slot < capacity; slot++) {
+                Credential current = read(slot);
+                if (current != null && current.client.equals(client) && current.server.equals(server)) {
+                    target = slot;
+                    break;
+                }
+                //  Empty slots and expired credentials go first, then the one closest to expiring.
+                long expires = current == null || current.expiresAt <= now ? Long.MIN_VALUE : current.expiresAt;
+                if (expires < earliest) {
+                    earliest = expires;
+                    target = slot;
+                }
+            }
+            write(target, body, expiresAt);
+        } finally {
+            lock.release();
+        }
+        return credential;
+    }
+
+    /**
+     * Drops the credential of {@code client} for {@code server}, as when the
+     * service rejects its ticket.
+     *
+     * @param client client principal
+     * @param server service the ticket is for
+     * @return {@code true} if there was such a credential
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized boolean remove(String client, String server) throws IOException {
+        FileLock lock = file.getChannel().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                Credential current = read(slot);
+                if (current != null && current.client.equals(client) && current.server.equals(server)) {
+                    write(slot, new byte[0], 0);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Drops every credential, as after a change of password.
+     *
+     * @throws IOException if the file cannot be locked
+     */
+    public synchronized void clear() throws IOException {
+        FileLock lock = file.getChannel().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++)
+                write(slot, new byte[0], 0);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Forces the mapping to disk and closes the file; the cache must not be used afterwards.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private void write(int slot, byte[] body, long expiresAt) {
+        int offset = offset(slot);
+        //  Odd while writing; a slot left odd by a crash is simply rewritten.
+        int seq = buffer.getInt(offset + SEQ) | 1;
+        buffer.putInt(offset + SEQ, seq);
+        buffer.putInt(offset + LENGTH, body.length);
+        buffer.putLong(offset + EXPIRES_AT, expiresAt);
+        for (int i = 0; i < body.length; i++) buffer.put(offset + BODY + i, body[i]);
+        buffer.putInt(offset + SEQ, seq + 1);
+    }
+
+    /**
+     * Copies a slot out of the mapping, retrying while another process rewrites it.
+     *
+     * @return the credential in the slot, or {@code null} if it is empty or being written
+     */
+    private Credential read(int slot) {
+        int offset = offset(slot);
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int seq = buffer.getInt(offset + SEQ);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            int length = buffer.getInt(offset + LENGTH);
+            long expiresAt = buffer.getLong(offset + EXPIRES_AT);
+            if (length <= 0 || length > MAX_BODY) {
+                if (seq == buffer.getInt(offset + SEQ))
+                    return null;
+                continue;
+            }
+            byte[] body = new byte[length];
+            for (int i = 0; i < length; i++) body[i] = buffer.get(offset + BODY + i);
+            if (seq != buffer.getInt(offset + SEQ))
+                continue;
+            try {
+                return decode(body, expiresAt);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] encode(Credential credential) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(credential.client);
+            out.writeUTF(credential.server);
+            byte[] key = credential.sessionKey.getEncoded();
+            out.writeShort(key.length);
+            out.write(key);
+            Ticket ticket = credential.ticket;
+            writeNullable(out, ticket.getIdTicket());
+            for (int field = Ticket.FIRST_ID; field <= Ticket.KEY; field <<= 1)
+                writeNullable(out, ticket.getField(field));
+            writeNullable(out, ticket.getMac());
+            writeNullable(out, ticket.getKvno());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Credential decode(byte[] body, long expiresAt) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String client = in.readUTF();
+        String server = in.readUTF();
+        byte[] key = new byte[in.readUnsignedShort()];
+        in.readFully(key);
+        Ticket ticket = new Ticket();
+        ticket.setIdTicket(readNullable(in));
+        for (int field = Ticket.FIRST_ID; field <= Ticket.KEY; field <<= 1)
+            ticket.setField(field, readNullable(in));
+        ticket.setMac(readNullable(in));
+        ticket.setKvno(readNullable(in));
+        return new Credential(client, server, ticket, new SecretKeySpec(key, "DES"), expiresAt);
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * One cached ticket with its session key.
+     */
+    public static class Credential {
+        private final String client;
+        private final String server;
+        private final Ticket ticket;
+        private final SecretKey sessionKey;
+        private final long expiresAt;
+
+        Credential(String client, String server, Ticket ticket, SecretKey sessionKey, long expiresAt) {
+            this.client = client;
+            this.server = server;
+            this.ticket = ticket;
+            this.sessionKey = sessionKey;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public String getServer() {
+            return server;
+        }
+
+        /**
+         * @return the ticket, still encrypted for its service
+         */
+        public Ticket getTicket() {
+            return ticket;
+        }
+
+        public SecretKey getSessionKey() {
+            return sessionKey;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * @return a {@link UTicket} holding only the ticket, to hand to {@link RequestAccess}
+         */
+        public UTicket toUTicket() {
+            UTicket holder = new UTicket();
+            holder.addTicket(ticket);
+            return holder;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package Controllers.Kerberos.Client;
 
 import Model.Messenger;
+import Model.TicketKind;
 import Model.UTicket;
 
 import javax.crypto.SecretKey;
@@ -83,7 +84,7 @@ public class RequestAccess {
      * <ol>
      *   <li>Create a new {@link UTicket}.</li>
      *   <li>Copy the TGT from {@code ticketFromAS}:
-     *       {@code ticketFromAS.searchTicket("TGT")}.</li>
+     *       {@code ticketFromAS.getTicket(TicketKind.TGT)}.</li>
      *   <li>Add a {@code request4TGS} ticket indicating the target service
      *       via {@link UTicket#request4TGS(String)}.</li>
      *   <li>Add an {@code auth} ticket (authenticator) with
@@ -115,13 +116,13 @@ public class RequestAccess {
                                     String addressIP_Self, String addressIP_TGS, int connectionPort_TGS) {
 
         UTicket followUpTicketTGS = new UTicket();
-        followUpTicketTGS.addTicket(ticketFromAS.searchTicket("TGT"));
+        followUpTicketTGS.addTicket(ticketFromAS.getTicket(TicketKind.TGT));
         followUpTicketTGS.request4TGS(serviceID);
         followUpTicketTGS.addAuthenticator(userID, addressIP_Self, timeStamp);
         System.out.println("Tickets a enviar:\n");
         followUpTicketTGS.printTicket(followUpTicketTGS);
 
-        if (followUpTicketTGS.encryptTicket(sessionKeyClientTGS, "auth"))
+        if (followUpTicketTGS.encryptTicket(sessionKeyClientTGS, TicketKind.AUTH))
             System.out.println("\nTicket auth encriptado exitosamente con llave de sesi\u00F3n Client - TGS");
         else {
             System.out.println("\nHa ocurrido un error al encriptar el ticket auth.");
@@ -178,10 +179,10 @@ public class RequestAccess {
                                         String addressIP_Server, int connectionPort_Server) {
 
         UTicket askForService = new UTicket();
-        askForService.addTicket(ticketFromTGS.searchTicket("serviceTicket"));
+        askForService.addTicket(ticketFromTGS.getTicket(TicketKind.SERVICE_TICKET));
         askForService.addAuthenticator(userID, addressIP_Self, timeStamp);
 
-        if(askForService.encryptTicket(secretKey, "auth"))
+        if(askForService.encryptTicket(secretKey, TicketKind.AUTH))
             System.out.println("Ticket auth encriptado exitosamente con llave de sesi\u00F3n Client - Server.");
         else {
             System.out.println("Ha ocurrido un error al encriptar el ticket auth.");
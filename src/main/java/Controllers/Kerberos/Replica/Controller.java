@@ -0,0 +1,111 @@
+package Controllers.Kerberos.Replica;
+
+import Model.Log;
+import Model.Messenger;
+import Security.Model.KeyCache;
+import Security.Model.KeyStoreReplication;
+import Security.Model.PrincipalDatabase;
+
+import javax.crypto.SecretKey;
+import java.net.ServerSocket;
+
+/**
+ * Network service entry point for a read-only replica of the AS or the TGS.
+ * <p>
+ * A replica follows the key store of a primary AS or TGS (see
+ * {@link KeyStoreReplication}) and answers the same requests with the same
+ * {@code ProcessRequest} as the primary, so clients can be spread over several
+ * nodes. Principals and keys are only changed on the primary; the replica
+ * receives them through the change feed.
+ * <p>
+ * Usage:
+ * <pre>
+ *   Controller &lt;AS|TGS&gt; &lt;port&gt; [primaryHost] [primaryReplicationPort]
+ * </pre>
+ * By default the primary is on {@code localhost}, with the replication port of
+ * the role ({@code 1131} for the AS, {@code 1212} for the TGS). Each replica
+ * keeps its principals in its own {@code Replica-<Role>-<port>-Principals.db},
+ * so several replicas can run on one machine, e.g.:
+ * <pre>
+ *   Controller TGS 1302
+ *   Controller TGS 1303
+ * </pre>
+ * The primary only feeds replicas that hold its replication key,
+ * {@code Connection/Symmetric-<Role>-Replica.key}; copy that file from the
+ * primary before starting a replica on another machine.
+ * <p>
+ * Paths are currently hardcoded for demonstration purposes; adjust
+ * {@code projectPath} and {@code expectedPrincipals} as needed.
+ *
+ * @author Silver-VS
+ */
+public class Controller {
+
+    /**
+     * Starts a replica and serves requests once it has caught up with the primary.
+     *
+     * @param args role, listening port, and optionally the primary's host and replication port
+     * @throws Exception if the principal database or a key cannot be loaded
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2 || !(args[0].equals("AS") || args[0].equals("TGS"))) {
+            System.out.println("Uso: Controller <AS|TGS> <puerto> [hostPrimario] [puertoPrimario]");
+            return;
+        }
+        String role = args[0];
+        int receivingPort = Integer.parseInt(args[1]);
+        String primaryHost = args.length > 2 ? args[2] : "localhost";
+        int primaryPort = args.length > 3 ? Integer.parseInt(args[3]) : role.equals("AS") ? 1131 : 1212;
+
+        String projectPath = "D:\\Kerberos_Echo\\Kerberos";
+        int expectedPrincipals = 100000;
+        long catchUpTimeout = 30000L;
+
+        String path4Vault = projectPath + "\\src\\main\\java\\Security\\SecretVault\\";
+        String path4SecretKeyComms = path4Vault + "Connection\\";
+
+        String databaseAddress = path4Vault + "Replica-" + role + "-" + receivingPort + "-" + PrincipalDatabase.FILE_NAME;
+        PrincipalDatabase principals = PrincipalDatabase.openIfExists(databaseAddress);
+        if (principals == null)
+            principals = PrincipalDatabase.create(databaseAddress, expectedPrincipals);
+
+        SecretKey replicationKey;
+        try {
+            replicationKey = KeyStoreReplication.replicationKey(path4SecretKeyComms, role, false);
+        } catch (Exception e) {
+            System.out.println("No se encuentra la llave de replicaci\u00F3n Symmetric-" + role + "-"
+                    + KeyStoreReplication.KEY_PEER + ".key; c\u00F3piela del primario.");
+            return;
+        }
+
+        //  We follow the primary and wait for the first catch-up, so we never serve an empty key store.
+        KeyStoreReplication.startReplica(primaryHost, primaryPort, principals, replicationKey);
+        if (!KeyStoreReplication.awaitCaughtUp(catchUpTimeout))
+            System.out.println("La r\u00E9plica a\u00FAn no est\u00E1 al d\u00EDa con el primario; se atender\u00E1n peticiones de todos modos.");
+
+        long preloadStart = System.currentTimeMillis();
+        int preloaded = KeyCache.preload(path4SecretKeyComms);
+        System.out.println(preloaded + " llaves precargadas en " + (System.currentTimeMillis() - preloadStart) + " ms.");
+
+        ServerSocket serverSocket = Messenger.serverSocketInitializer(receivingPort);
+
+        if (serverSocket == null) {
+            System.out.println("No se ha podido iniciar la r\u00E9plica.");
+            System.exit(-1);
+        }
+
+        System.out.println("R\u00E9plica del " + role + " iniciada en el puerto " + receivingPort + ".");
+
+        do {
+            //  ProcessRequest logs why a request was rejected or failed.
+            boolean sent = role.equals("AS")
+                    ? Controllers.Kerberos.AS.ProcessRequest.processUserRequest(
+                            Messenger.requestAccepter(serverSocket), path4SecretKeyComms, principals)
+                    : Controllers.Kerberos.TGS.ProcessRequest.processUserRequest(
+                            Messenger.requestAccepter(serverSocket), path4SecretKeyComms, principals);
+            if (sent)
+                Log.debug("Respuesta enviada de la r\u00E9plica al cliente.", "rol", role);
+        } while (!serverSocket.isClosed());
+    }
+}
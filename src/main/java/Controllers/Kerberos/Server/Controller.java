@@ -1,8 +1,16 @@
 package Controllers.Kerberos.Server;
 
+import Model.Log;
 import Model.Messenger;
+import Security.Model.KeyCache;
 
+import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Network service entry point for the protected application server.
@@ -12,10 +20,11 @@ import java.net.ServerSocket;
  * a protected service using a Kerberos-style <strong>AP-REQ / AP-REP</strong>
  * exchange.
  * <p>
- * The class is intentionally simple:
- * it opens a {@link ServerSocket} on a fixed port and delegates each accepted
- * connection to {@link ProcessRequest}, which implements the server-side
- * authentication logic (validation of the service ticket and authenticator).
+ * It opens a {@link ServerSocket} on a fixed port and hands each accepted
+ * connection to a pool of worker threads, which run {@link ProcessRequest}
+ * (validation of the service ticket and authenticator) for many clients in
+ * parallel. The process keeps serving until it is stopped; a failed request
+ * only gets a negative response.
  * <p>
  * Configuration (paths and ports) is hardcoded for didactic purposes and can
  * be adapted by editing the first lines of {@link #main(String[])}.
@@ -35,6 +44,8 @@ public class Controller {
      *             resolve the SecretVault paths).</li>
      *         <li>{@code addressIP_Self} – logical address/host name of this
      *             server (used by the Kerberos logic when building authenticators).</li>
+     *         <li>{@code whoAmI} – service principal name of this server, as registered
+     *             in the TGS's {@code Services.properties} (default {@code "Server"}).</li>
      *         <li>{@code receivingPort} – TCP port where AP-REQ messages are accepted
      *             (default {@code 1203}).</li>
      *       </ul>
@@ -42,32 +53,48 @@ public class Controller {
      *   <li>Build {@code path4SecretKeyRetrieving}, pointing to
      *       {@code Security/SecretVault/Connection/}, where long-term and
      *       session keys (e.g. TGS–Server, Client–Server) are stored.</li>
+     *   <li>Preload every key of that directory through {@link KeyCache#preload(String...)}.</li>
      *   <li>Initialize a {@link ServerSocket} via
      *       {@link Messenger#serverSocketInitializer(int)}.</li>
      *   <li>If initialization fails, log an error and terminate the process.</li>
+     *   <li>Start {@code workers} threads (one per processor by default) fed by a queue of
+     *       {@code queueCapacity} connections. When the queue is full, the accepting thread
+     *       serves the connection itself, which slows accepting down instead of dropping clients.</li>
      *   <li>Enter a loop that:
      *       <ul>
      *         <li>Waits for incoming client connections
      *             ({@link Messenger#requestAccepter(ServerSocket)}).</li>
-     *         <li>Passes each accepted {@code Socket} to
-     *             {@link ProcessRequest#processUserRequest(java.net.Socket, String, String)},
-     *             along with the key path and {@code addressIP_Self}.</li>
-     *         <li>Logs that a response has been sent back to the client.</li>
+     *         <li>Gives each accepted {@code Socket} a read timeout of {@code requestTimeout},
+     *             so a silent client cannot hold a worker, and queues it for
+     *             {@link ProcessRequest#processUserRequest(Socket, String, String, String)},
+     *             along with the key path, {@code whoAmI} and {@code addressIP_Self}.</li>
      *       </ul>
      *   </li>
      * </ol>
-     * The loop runs until the underlying {@code ServerSocket} is closed.
+     * The loop runs until the underlying {@code ServerSocket} is closed. On shutdown the
+     * socket is closed, the requests in progress are given {@code requestTimeout} to finish,
+     * and the counters of the replay and service ticket caches are logged.
      *
      * @param args not used
+     * @throws Exception if a key cannot be loaded
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
 
         String projectPath = "D:\\Kerberos_Echo\\Kerberos";
         String addressIP_Self = "localhost";
+        String whoAmI = "Server";
         int receivingPort = 1203;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queueCapacity = 1024;
+        int requestTimeout = 10000;
 
         String path4SecretKeyRetrieving = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Connection\\";
 
+        //  We load every key before accepting requests, so the first client does not wait for the disk.
+        long preloadStart = System.currentTimeMillis();
+        int preloaded = KeyCache.preload(path4SecretKeyRetrieving);
+        System.out.println(preloaded + " llaves precargadas en " + (System.currentTimeMillis() - preloadStart) + " ms.");
+
         ServerSocket serverSocket = Messenger.serverSocketInitializer(receivingPort);
 
         if (serverSocket == null) {
@@ -75,16 +102,54 @@ public class Controller {
             System.exit(-1);
         }
 
-        System.out.println("Servidor iniciado.");
+        AtomicInteger workerCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "Server-worker-" + workerCount.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                serverSocket.close();
+                pool.shutdown();
+                pool.awaitTermination(requestTimeout, TimeUnit.MILLISECONDS);
+            } catch (IOException | InterruptedException ignored) {
+                //  The process is ending anyway.
+            }
+            logStatistics();
+            Log.flush();
+        }, "Server-shutdown"));
 
-        do {
-            System.out.println("En espera de petici\u00F3n...");
+        System.out.println("Servidor iniciado con " + workers + " hilos de trabajo.");
 
-            ProcessRequest.processUserRequest(
-                    Messenger.requestAccepter(serverSocket),
-                    path4SecretKeyRetrieving, addressIP_Self
-            );
-            System.out.println("Respuesta enviada al cliente.");
-        } while (!serverSocket.isClosed());
+        while (!serverSocket.isClosed()) {
+            Socket socket = Messenger.requestAccepter(serverSocket);
+            if (socket == null)
+                continue;
+            try {
+                socket.setSoTimeout(requestTimeout);
+            } catch (IOException e) {
+                Log.warn("No se ha podido configurar la conexi\u00F3n.", "cliente", socket.getRemoteSocketAddress());
+            }
+            pool.execute(() -> {
+                if (ProcessRequest.processUserRequest(socket, path4SecretKeyRetrieving, whoAmI, addressIP_Self))
+                    Log.debug("Respuesta enviada al cliente.");
+            });
+        }
+    }
+
+    /**
+     * Logs the counters of the replay cache and of the cache of validated service tickets.
+     */
+    private static void logStatistics() {
+        Log.info("Cach\u00E9 de autenticadores.",
+                "repeticiones", ProcessRequest.getReplayCache().getHits(),
+                "nuevos", ProcessRequest.getReplayCache().getMisses(),
+                "fueraDeMargen", ProcessRequest.getReplayCache().getSkewed(),
+                "tama\u00F1o", ProcessRequest.getReplayCache().size());
+        Log.info("Cach\u00E9 de serviceTickets.",
+                "aciertos", ProcessRequest.getServiceTicketCache().getHits(),
+                "fallos", ProcessRequest.getServiceTicketCache().getMisses(),
+                "tama\u00F1o", ProcessRequest.getServiceTicketCache().size());
     }
 }
@@ -1,15 +1,19 @@
 package Controllers.Kerberos.Server;
 
+import Model.Log;
 import Model.Messenger;
 import Model.Ticket;
+import Model.TicketKind;
+import Model.TicketPool;
+import Model.TicketView;
 import Model.TimeMethods;
 import Model.UTicket;
-import Security.Model.KeyMethods;
+import Security.Model.KeyCache;
+import Security.Model.ReplayCache;
 
 import javax.crypto.SecretKey;
+import java.io.IOException;
 import java.net.Socket;
-import java.sql.Timestamp;
-import java.time.Instant;
 
 /**
  * Handles client requests to the application server.
@@ -22,13 +26,17 @@ import java.time.Instant;
  *         <li>{@code "auth"} – client authenticator encrypted with {@code K_c,s}.</li>
  *       </ul>
  *   </li>
- *   <li>Decrypts the service ticket using the Server–TGS symmetric key.</li>
+ *   <li>Looks the service ticket up in the {@link ServiceTicketCache}. If it has not been validated
+ *       before, checks its MAC and opens it with the Server–TGS symmetric key as a {@link TicketView},
+ *       which decrypts each field only when it is first read, and caches the result.</li>
  *   <li>Validates that the ticket has not expired.</li>
- *   <li>Extracts the session key {@code K_c,s} from the service ticket.</li>
+ *   <li>Takes the session key {@code K_c,s} of the service ticket.</li>
  *   <li>Decrypts the authenticator with {@code K_c,s} and validates:
  *       <ul>
  *         <li>Client identity matches the service ticket.</li>
- *         <li>The ticket is indeed addressed to this server.</li>
+ *         <li>The authenticator is within the allowed clock skew and has not been presented before
+ *             (see {@link ReplayCache}).</li>
+ *         <li>The ticket is indeed addressed to this server, the service named {@code serviceName}.</li>
  *         <li>The client IP address is consistent.</li>
  *       </ul>
  *   </li>
@@ -37,71 +45,112 @@ import java.time.Instant;
  *       with {@code K_c,s} and sends it back to the client.</li>
  *   <li>If validation fails, sends a boolean {@code false} response instead.</li>
  * </ol>
+ * Requests are independent: the {@link Controller} runs them on a pool of
+ * workers, and nothing here ends the process.
  * <br><br>
  * @author Silver-VS
  */
 
 public class ProcessRequest {
 
+    /**
+     * Authenticators accepted by this Server within the allowed clock skew.
+     */
+    private static final ReplayCache replays = new ReplayCache();
+
+    /**
+     * Service tickets already validated by this Server, until they expire.
+     */
+    private static final ServiceTicketCache validatedTickets = new ServiceTicketCache();
+
+    /**
+     * @return the replay cache of the Server, for its hit, miss and size counters
+     */
+    public static ReplayCache getReplayCache() {
+        return replays;
+    }
+
+    /**
+     * @return the cache of validated service tickets, for its hit, miss and size counters
+     */
+    public static ServiceTicketCache getServiceTicketCache() {
+        return validatedTickets;
+    }
+
     /**
      * Processes an AP-REQ from the client and sends an AP-REP response.
+     * <p>
+     * Safe to call from several threads at once. Every failure, an expired
+     * ticket included, is answered with a negative response to that client
+     * only; the socket is closed before returning in every case.
      *
      * @param socket             accepted socket representing the client connection
      * @param path4KeyRetrieving path where the Server–TGS symmetric key is stored
+     * @param serviceName        service principal name of this server, as registered in the TGS; names its key file
      * @param serviceIPAddress   IP address or logical identifier used in the server's authenticator
+     * @return {@code true} if the session was approved and the AP-REP sent, {@code false} otherwise
      */
-    public static void processUserRequest(Socket socket, String path4KeyRetrieving, String serviceIPAddress) {
+    public static boolean processUserRequest(Socket socket, String path4KeyRetrieving, String serviceName,
+                                             String serviceIPAddress) {
         try {
 
             UTicket userRequest = Messenger.ticketAccepter(socket);
 
             if (userRequest == null) {
-                System.out.println("Ha ocurrido un error");
-                System.exit(-1);
+                Log.warn("No se ha podido recibir la petici\u00F3n del usuario.");
+                return false;
             }
 
-            //  We retrieve our SecretKey with the TGS.
-            SecretKey secretKeyServer_TGS = KeyMethods.recoverSecret(path4KeyRetrieving, "Server", "TGS");
-
-            //  We decrypt our ticket with our secret key.
-            userRequest.decryptTicket(secretKeyServer_TGS, "serviceTicket");
-
-            Ticket serviceTicket = userRequest.searchTicket("serviceTicket");
-
-            Timestamp now = TimeMethods.timeSignature();
-
-            Timestamp ticketLifetime = TimeMethods.string2TimeStamp(serviceTicket.getLifetime());
-
-            if (now.compareTo(ticketLifetime) < 0){
-                SecretKey sessionKeyClientServer = KeyMethods.convertString2Key(serviceTicket.getKey());
-
-                userRequest.decryptTicket(sessionKeyClientServer, "auth");
-
-                Ticket userAuth = userRequest.searchTicket("auth");
+            //  A ticket we have already validated is taken as it is; only the authenticator is new.
+            Ticket sealedTicket = userRequest.getTicket(TicketKind.SERVICE_TICKET);
+            ServiceTicketCache.Entry serviceTicket = validatedTickets.lookup(sealedTicket);
+            if (serviceTicket == null) {
+                //  We retrieve our SecretKey with the TGS, in the version the TGS used for the serviceTicket.
+                SecretKey secretKeyServer_TGS = KeyCache.recoverSecret(path4KeyRetrieving, serviceName, "TGS",
+                        userRequest.peekKvno(TicketKind.SERVICE_TICKET));
+
+                //  We open our ticket with our secret key, once its MAC has been checked. Its fields are only
+                //  decrypted as we read them, so a request rejected early pays only for what was checked.
+                TicketView opened = userRequest.openTicket(secretKeyServer_TGS, TicketKind.SERVICE_TICKET);
+                if (opened == null) {
+                    Log.warn("El serviceTicket no supera la verificaci\u00F3n de integridad. Se rechaza la petici\u00F3n.");
+                    return reject(socket);
+                }
+                serviceTicket = validatedTickets.put(sealedTicket, opened);
+            } else
+                Log.debug("serviceTicket ya validado, tomado de la cach\u00E9.", "cliente", serviceTicket.getClient());
+
+            if (TimeMethods.now() >= serviceTicket.getExpiresAt()) {
+                Log.info("El tiempo de vida del ticket ha expirado. Es necesario conseguir un nuevo ticket.",
+                        "cliente", serviceTicket.getClient());
+                return reject(socket);
+            }
 
+            SecretKey sessionKeyClientServer = serviceTicket.getSessionKey();
+            TicketView userAuth = userRequest.openTicket(sessionKeyClientServer, TicketKind.AUTH);
 
-                if (serviceTicket.getFirstId().equals(userAuth.getFirstId())) {
-                    if (
-                            serviceTicket.getSecondId().equals("Server")
-                                    &&
+            if (userAuth != null && serviceTicket.getClient().equals(userAuth.getFirstId())) {
+                //  The authenticator must be recent and seen for the first time.
+                ReplayCache.Result freshness =
+                        replays.check(userAuth.getFirstId(), userAuth.getTimeStampMillis(), userAuth.getMac());
+                if (freshness != ReplayCache.Result.FRESH)
+                    Log.warn("Autenticador rechazado.", "principal", userAuth.getFirstId(), "motivo", freshness);
+                else if (
+                        serviceTicket.getServer().equals(serviceName)
+                                &&
 
-                                    userAuth.getAddressIP().equals("localhost")
+                                userAuth.getAddressIP().equals("localhost")
 //                                userAuth.getAddressIP().equals(socket.getInetAddress().getHostAddress())
-                    )
-                        approveSession(socket, sessionKeyClientServer, serviceIPAddress);
-                }
-                boolean flag;
-                do flag = Messenger.booleanResponder(socket, false); while (!flag);
-            } else {
-                System.out.println("El tiempo de vida del ticket ha expirado. Es necesario conseguir un nuevo ticket.");
-                System.exit(1);
+                )
+                    return approveSession(socket, sessionKeyClientServer, serviceIPAddress);
             }
+            return reject(socket);
 
         } catch (Exception e) {
-            System.out.println("Ha ocurrido un error.");
-            System.out.println("Error: ");
-            e.printStackTrace();
-            System.exit(-1);
+            Log.error("Error al procesar la petici\u00F3n.", e);
+            return reject(socket);
+        } finally {
+            closeQuietly(socket);
         }
     }
 
@@ -110,27 +159,48 @@ public class ProcessRequest {
      * <p>
      * This method:
      * <ul>
-     *   <li>Creates a {@link UTicket} with a single {@code "auth"} ticket
+     *   <li>Fills the thread's {@link TicketPool} envelope with a single {@code "auth"} ticket
      *       (service authenticator).</li>
      *   <li>Encrypts it with the session key {@code K_c,s} shared with the client.</li>
      *   <li>Uses {@link Messenger#ticketResponder(Socket, UTicket)} to send it.</li>
      * </ul>
+     * If the authenticator cannot be encrypted, the client gets a negative response instead.
      *
      * @param socket               socket connected to the client
      * @param sessionKeyClientServer session key {@code K_c,s} shared with the client
      * @param serviceIPAddress     IP address or identifier of the service/server
+     * @return {@code true} if the AP-REP was sent
      */
-    public static void approveSession(Socket socket, SecretKey sessionKeyClientServer, String serviceIPAddress) {
-        UTicket approved = new UTicket();
-        approved.addAuthenticator("ServiceAuth", serviceIPAddress, Timestamp.from(Instant.now()).toString());
-        if (approved.encryptTicket(sessionKeyClientServer, "auth"))
-            System.out.println("Ticket auth encriptado correctamente con llave de sesi\u00F3n Servidor-Cliente");
+    public static boolean approveSession(Socket socket, SecretKey sessionKeyClientServer, String serviceIPAddress) {
+        UTicket approved = TicketPool.envelope();
+        approved.addAuthenticator("ServiceAuth", serviceIPAddress, TimeMethods.format(TimeMethods.now()));
+        if (approved.encryptTicket(sessionKeyClientServer, TicketKind.AUTH))
+            Log.debug("Ticket auth encriptado correctamente con llave de sesi\u00F3n Servidor-Cliente");
         else {
-            System.out.println("Ha ocurrido un error al encriptar el ticket auth.");
-            System.exit(-1);
+            Log.error("Ha ocurrido un error al encriptar el ticket auth.");
+            return reject(socket);
+        }
+        return Messenger.ticketResponder(socket, approved);
+    }
+
+    /**
+     * Sends a negative boolean response to the client, once: a client that is
+     * already gone must not keep the worker busy.
+     *
+     * @param socket socket connected to the client
+     * @return always {@code false}
+     */
+    private static boolean reject(Socket socket) {
+        if (!socket.isClosed())
+            Messenger.booleanResponder(socket, false);
+        return false;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            //  Nothing left to release.
         }
-        boolean flag;
-        do flag = Messenger.ticketResponder(socket, approved); while (!flag);
-        System.exit(0);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,211 @@
+package Controllers.Kerberos.Server;
+
+import Model.Ticket;
+import Model.TicketView;
+import Model.TimeMethods;
+
+import javax.crypto.SecretKey;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the service tickets the Server has already validated.
+ * <p>
+ * A client presents the same serviceTicket on every AP-REQ until it expires.
+ * The first time, the Server checks its MAC and opens it with the Server–TGS
+ * key; this cache then keeps the opened {@link TicketView}, so later AP-REQs
+ * with the same ticket only decrypt their fresh authenticator. The view stays
+ * lazy in the cache: the client, the server and the session key {@code K_c,s}
+ * are decrypted the first time any request asks for them, and a field never
+ * asked for is never decrypted.
+ * <p>
+ * Entries are keyed by the ticket's MAC, which already is a keyed digest of
+ * the encrypted ticket. A hit also requires every encrypted field, the ticket
+ * id and the kvno to be identical to the ticket validated, so a ticket only
+ * skips validation if it is exactly the one validated before.
+ * <p>
+ * An entry is dropped once its ticket's lifetime has passed. When the cache
+ * holds {@code capacity} entries, expired ones are purged first and, if that
+ * is not enough, arbitrary entries are evicted; an evicted ticket is simply
+ * validated again. {@link #getHits()}, {@link #getMisses()} and {@link #size()}
+ * report how it is doing.
+ *
+ * @author Silver-VS
+ */
+public class ServiceTicketCache {
+
+    /**
+     * Number of entries kept by {@link #ServiceTicketCache()}.
+     */
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    private final int capacity;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ServiceTicketCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of tickets kept
+     */
+    public ServiceTicketCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("La capacidad debe ser al menos 1.");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Looks for an earlier validation of exactly this ticket.
+     *
+     * @param sealed the serviceTicket as received, still encrypted
+     * @return the cached validation, or {@code null} if the ticket has not been validated or has expired
+     */
+    public Entry lookup(Ticket sealed) {
+        if (sealed == null || sealed.getMac() == null) {
+            misses.increment();
+            return null;
+        }
+        Entry entry = entries.get(sealed.getMac());
+        if (entry == null || !entry.matches(sealed)) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt <= TimeMethods.now()) {
+            entries.remove(sealed.getMac(), entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    /**
+     * Remembers a ticket whose MAC has been checked, with the view it was opened
+     * with. Only the lifetime is decrypted here, which the caller checks next anyway.
+     *
+     * @param sealed the serviceTicket as received, still encrypted
+     * @param opened the view it was opened with; the cache takes it over
+     * @return the new entry
+     */
+    public Entry put(Ticket sealed, TicketView opened) {
+        Entry entry = new Entry(sealed, opened);
+        if (entry.expiresAt <= TimeMethods.now())
+            return entry;
+        if (entries.size() >= capacity)
+            makeRoom();
+        entries.put(sealed.getMac(), entry);
+        return entry;
+    }
+
+    /**
+     * @return number of AP-REQs whose ticket was found validated
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of AP-REQs whose ticket had to be validated
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of tickets currently kept, expired ones included until they are purged
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops expired entries and, if the cache is still full, enough arbitrary
+     * ones to leave a sixteenth of it free, so the next puts do not purge again.
+     */
+    private synchronized void makeRoom() {
+        if (entries.size() < capacity)
+            return;
+        long now = TimeMethods.now();
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+        int excess = entries.size() - (capacity - Math.max(1, capacity / 16));
+        for (Iterator<String> keys = entries.keySet().iterator(); excess > 0 && keys.hasNext(); excess--) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * One validated serviceTicket: the ticket as received and the view it was
+     * opened with. A view is not thread-safe, so the fields are read from it
+     * under the entry's lock, once each, and kept.
+     */
+    public static final class Entry {
+        private final Ticket sealed;
+        private final TicketView opened;
+        private final long expiresAt;
+        private String client;
+        private String server;
+        private SecretKey sessionKey;
+
+        private Entry(Ticket sealed, TicketView opened) {
+            this.sealed = sealed;
+            this.opened = opened;
+            this.expiresAt = opened.getLifetimeMillis();
+        }
+
+        /**
+         * Compares the encrypted fields, the id and the kvno of a received ticket
+         * with those of the ticket validated; nothing is decrypted.
+         */
+        private boolean matches(Ticket received) {
+            return Objects.equals(sealed.getIdTicket(), received.getIdTicket())
+                    && Objects.equals(sealed.getFirstId(), received.getFirstId())
+                    && Objects.equals(sealed.getSecondId(), received.getSecondId())
+                    && Objects.equals(sealed.getAddressIP(), received.getAddressIP())
+                    && Objects.equals(sealed.getLifetime(), received.getLifetime())
+                    && Objects.equals(sealed.getTimeStamp(), received.getTimeStamp())
+                    && Objects.equals(sealed.getKey(), received.getKey())
+                    && Objects.equals(sealed.getKvno(), received.getKvno());
+        }
+
+        /**
+         * @return the client the ticket was issued to
+         */
+        public synchronized String getClient() {
+            if (client == null)
+                client = opened.getFirstId();
+            return client;
+        }
+
+        /**
+         * @return the service the ticket was issued for
+         */
+        public synchronized String getServer() {
+            if (server == null)
+                server = opened.getSecondId();
+            return server;
+        }
+
+        /**
+         * @return the session key {@code K_c,s}
+         */
+        public synchronized SecretKey getSessionKey() {
+            if (sessionKey == null)
+                sessionKey = opened.getSecretKey();
+            return sessionKey;
+        }
+
+        /**
+         * @return the end of the ticket's lifetime, epoch millis
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
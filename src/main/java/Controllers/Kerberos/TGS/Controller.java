@@ -1,6 +1,13 @@
 package Controllers.Kerberos.TGS;
 
+import Model.Log;
 import Model.Messenger;
+import Security.Model.KeyCache;
+import Security.Model.KeyStoreLog;
+import Security.Model.KeyStoreReplication;
+import Security.Model.PrincipalDatabase;
+import Security.Model.ServiceRegistry;
+import Security.Model.ShardRing;
 
 import java.net.ServerSocket;
 
@@ -15,7 +22,7 @@ import java.net.ServerSocket;
  *   <li>Opens a {@link ServerSocket} on a fixed port (default {@code 1202}).</li>
  *   <li>Accepts incoming connections from clients.</li>
  *   <li>Delegates each request to
- *       {@link ProcessRequest#processUserRequest(java.net.Socket, String, String)}.</li>
+ *       {@link ProcessRequest#processUserRequest(java.net.Socket, String, PrincipalDatabase)}.</li>
  *   <li>Prints console logs for debugging / demonstration purposes.</li>
  * </ul>
  *
@@ -49,9 +56,22 @@ public class Controller {
      *             keys shared with AS, Client, and Server are stored.</li>
      *         <li>{@code path4SecretKeySaving} – points to
      *             {@code Security/SecretVault/Generated/}, used here for
-     *             storing newly generated session keys if needed.</li>
+     *             the key store's write-ahead log ({@code TGS-KeyStore.wal})
+     *             and its snapshot ({@code TGS-KeyStore.snapshot}).</li>
      *       </ul>
      *   </li>
+     *   <li>If a shard name is given, serve only that shard of {@code Shards.properties}
+     *       through {@link ShardRing#serve(ShardRing, String)}, on the shard's port.</li>
+     *   <li>Map {@code Security/SecretVault/Principals.db} (or {@code <shard>-Principals.db}) if it exists.</li>
+     *   <li>Install the services of {@code Security/SecretVault/Services.properties} and watch the file
+     *       for changes through {@link ServiceRegistry#watch(String, long)}.</li>
+     *   <li>Optionally load the snapshot, replay and attach the write-ahead log through
+     *       {@link KeyStoreLog#recover}, and schedule periodic snapshots through
+     *       {@link KeyStoreLog#scheduleSnapshots(long)}, and stream the changes to
+     *       replicas on {@code replicationPort} ({@code 1212}) through
+     *       {@link KeyStoreReplication#startPrimary(int, javax.crypto.SecretKey)}, authenticating them
+     *       with {@code Connection/Symmetric-TGS-Replica.key}.</li>
+     *   <li>Preload every key of {@code Connection} through {@link KeyCache#preload(String...)}.</li>
      *   <li>Initialize a {@link ServerSocket} using
      *       {@link Messenger#serverSocketInitializer(int)}.</li>
      *   <li>If initialization fails, log an error and terminate the process.</li>
@@ -60,7 +80,7 @@ public class Controller {
      *         <li>Waits for incoming client connections
      *             ({@link Messenger#requestAccepter(ServerSocket)}).</li>
      *         <li>For each connection, calls
-     *             {@link ProcessRequest#processUserRequest(java.net.Socket, String, String)}
+     *             {@link ProcessRequest#processUserRequest(java.net.Socket, String, PrincipalDatabase)}
      *             to handle the TGS-REQ.</li>
      *         <li>Logs whether a response was successfully sent or if an error
      *             occurred.</li>
@@ -69,15 +89,59 @@ public class Controller {
      * </ol>
      * The loop exits only when the underlying {@code ServerSocket} is closed.
      *
-     * @param args not used
+     * @param args optional shard name, as listed in {@code Security/SecretVault/Shards.properties}
+     * @throws Exception if the write-ahead log, the principal database, the service list or a key cannot be loaded
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
 
         int receivingPort = 1202;
         String projectPath = "D:\\Kerberos_Echo\\Kerberos";
 
         String path4SecretKeyRetrieving = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Connection\\";
         String path4SecretKeySaving = projectPath + "\\src\\main\\java\\Security\\SecretVault\\Generated\\";
+        boolean writeAheadLog = true;
+        long snapshotInterval = 60000L;
+        String path4Vault = projectPath + "\\src\\main\\java\\Security\\SecretVault\\";
+        long serviceRegistryInterval = 5000L;
+
+        //  Started with a shard name, this TGS serves only the principals the ring assigns to that shard,
+        //  on the shard's port, with its own principal database and log.
+        String shardName = args.length > 0 ? args[0] : null;
+        String shardPrefix = "";
+        if (shardName != null) {
+            ShardRing ring = ShardRing.load(path4Vault + ShardRing.FILE_NAME);
+            if (ring == null || ring.getShard(shardName) == null) {
+                System.out.println("El shard " + shardName + " no est\u00E1 en " + ShardRing.FILE_NAME + ".");
+                System.exit(-1);
+            }
+            ShardRing.serve(ring, shardName);
+            receivingPort = ring.getShard(shardName).getTgsPort();
+            shardPrefix = shardName + "-";
+        }
+        int replicationPort = receivingPort + 10;
+
+        //  The principal database is optional; without it every key comes from the pairwise files.
+        PrincipalDatabase principals = PrincipalDatabase.openIfExists(path4Vault + shardPrefix + PrincipalDatabase.FILE_NAME);
+
+        //  Services this TGS issues tickets for; an edit of the file is picked up without a restart.
+        ServiceRegistry.watch(path4Vault + ServiceRegistry.FILE_NAME, serviceRegistryInterval);
+        System.out.println(ServiceRegistry.current().size() + " servicios registrados.");
+
+        //  Key store changes are logged; the log left by the previous run is replayed first.
+        //  A snapshot is written every minute, so a restart only replays the last minute of the log.
+        if (writeAheadLog) {
+            KeyStoreLog.recover(path4SecretKeySaving + "TGS-" + shardPrefix + KeyStoreLog.FILE_NAME, principals);
+            KeyStoreLog.scheduleSnapshots(snapshotInterval);
+            //  Replicas (Controllers.Kerberos.Replica.Controller) follow this node's changes on replicationPort.
+            //  They must hold a copy of Connection/Symmetric-TGS-Replica.key, created here on the first start.
+            KeyStoreReplication.startPrimary(replicationPort,
+                    KeyStoreReplication.replicationKey(path4SecretKeyRetrieving, "TGS", true));
+        }
+
+        //  We load every key before accepting requests, so the first client does not wait for the disk.
+        long preloadStart = System.currentTimeMillis();
+        int preloaded = KeyCache.preload(path4SecretKeyRetrieving);
+        System.out.println(preloaded + " llaves precargadas en " + (System.currentTimeMillis() - preloadStart) + " ms.");
 
         ServerSocket serverSocket = Messenger.serverSocketInitializer(receivingPort);
 
@@ -89,18 +153,14 @@ public class Controller {
         System.out.println("TGS iniciado.");
 
         do {
-            System.out.println("En espera de petici\u00F3n...");
+            //  ProcessRequest logs why a request was rejected or failed.
             if (
                     ProcessRequest.processUserRequest(
                             Messenger.requestAccepter(serverSocket),
-                            path4SecretKeyRetrieving, path4SecretKeySaving
+                            path4SecretKeyRetrieving, principals
                     )
-            ) {
-                System.out.println("Respuesta enviada del TGS al cliente.");
-            } else {
-                System.out.println("Ha ocurrido un error en la respuesta.");
-                System.out.println("Error: ");
-            }
+            )
+                Log.debug("Respuesta enviada del TGS al cliente.");
         } while (!serverSocket.isClosed());
     }
 }
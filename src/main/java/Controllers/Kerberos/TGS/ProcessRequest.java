@@ -1,16 +1,25 @@
 package Controllers.Kerberos.TGS;
 
+import Model.Log;
 import Model.Messenger;
 import Model.Ticket;
+import Model.TicketKind;
+import Model.TicketPool;
+import Model.TicketView;
 import Model.TimeMethods;
 import Model.UTicket;
+import Security.Model.KeyCache;
 import Security.Model.KeyMethods;
+import Security.Model.KeyTable;
+import Security.Model.Principal;
+import Security.Model.PrincipalDatabase;
+import Security.Model.ReplayCache;
+import Security.Model.ServiceRegistry;
+import Security.Model.ShardRing;
+import Security.Model.VersionedKey;
 
 import javax.crypto.SecretKey;
 import java.net.Socket;
-import java.sql.Time;
-import java.sql.Timestamp;
-import java.time.Instant;
 
 /**
  * Handles client requests to the Ticket Granting Server (TGS).
@@ -24,15 +33,23 @@ import java.time.Instant;
  *         <li>{@code "request4TGS"} – the identifier of the target service.</li>
  *       </ul>
  *   </li>
- *   <li>Decrypts the TGT using the TGS–AS symmetric key and recovers the session key {@code K_c,tgs}.</li>
- *   <li>Decrypts the authenticator with {@code K_c,tgs} and validates:
+ *   <li>Checks the MAC of the TGT and rejects the request without decrypting anything if it does not match.</li>
+ *   <li>Checks the TGT with the TGS key (from the {@link PrincipalDatabase}, or the TGS–AS file) and opens it as a
+ *       {@link TicketView}, whose fields are decrypted as they are read; recovers the session key {@code K_c,tgs}.</li>
+ *   <li>When the TGS runs as a shard (see {@link ShardRing}), rejects clients owned by another shard.</li>
+ *   <li>Opens the authenticator with {@code K_c,tgs} and validates:
  *       <ul>
  *         <li>Client identity matches between TGT and authenticator.</li>
+ *         <li>The authenticator is within the allowed clock skew and has not been presented before
+ *             (see {@link ReplayCache}).</li>
  *         <li>The TGT lifetime has not expired.</li>
  *         <li>The client IP address matches.</li>
  *       </ul>
  *   </li>
- *   <li>Generates a new session key {@code K_c,s} for the Client–Server communication.</li>
+ *   <li>Looks the requested service up in the {@link ServiceRegistry} (and the {@link PrincipalDatabase}) and
+ *       rejects unknown or disabled services.</li>
+ *   <li>Generates a new session key {@code K_c,s} for the Client–Server communication, valid for the service's
+ *       ticket lifetime but never beyond the TGT.</li>
  *   <li>Builds a TGS-REP as a new {@link UTicket} containing:
  *       <ul>
  *         <li>{@code "responseToClient"} – readable by the client, carrying {@code K_c,s}.</li>
@@ -40,111 +57,170 @@ import java.time.Instant;
  *       </ul>
  *   </li>
  *   <li>Encrypts {@code "responseToClient"} with {@code K_c,tgs}.</li>
- *   <li>Encrypts {@code "serviceTicket"} with the TGS–Server key (and additionally with {@code K_c,tgs} in this demo).</li>
+ *   <li>Encrypts {@code "serviceTicket"} with the requested service's key, looked up by name in the
+ *       {@link PrincipalDatabase} or taken from the TGS's key file for that service in the registry
+ *       (and additionally with {@code K_c,tgs} in this demo).</li>
  *   <li>Sends the resulting {@link UTicket} back to the client.</li>
  * </ol>
+ * The TGS-REP is built in the thread's envelope from {@link TicketPool}.
  * <br><br>
  * @author Silver-VS
  */
 
 public class ProcessRequest {
 
+    /**
+     * Authenticators accepted by this TGS within the allowed clock skew.
+     */
+    private static final ReplayCache replays = new ReplayCache();
+
+    /**
+     * @return the replay cache of the TGS, for its hit, miss and size counters
+     */
+    public static ReplayCache getReplayCache() {
+        return replays;
+    }
+
     /**
      * Processes a TGS-REQ from the client and sends a TGS-REP response.
      *
      * @param socket             accepted socket representing the client connection
      * @param path4KeyRetrieving path where long-term TGS keys (with AS and Server) are stored
-     * @param path4KeySaving     path where newly generated Client–Server keys should be stored
+     * @param principals         principal database holding the TGS and service keys, or {@code null}
+     *                           to use only the pairwise key files
      * @return {@code true} if the response was sent successfully, {@code false} otherwise
      */
-    public static boolean processUserRequest(Socket socket, String path4KeyRetrieving, String path4KeySaving) {
+    public static boolean processUserRequest(Socket socket, String path4KeyRetrieving,
+                                             PrincipalDatabase principals) {
         try {
             UTicket userRequest = Messenger.ticketAccepter(socket);
 
             if (userRequest == null) {
-                System.out.println("Ha ocurrido un error al aceptar la petici\u00F3n del usuario.");
+                Log.error("Ha ocurrido un error al aceptar la petici\u00F3n del usuario.");
                 System.exit(-1);
             }
 
-            //  We retrieve our SecretKey with the AS.
-            SecretKey secretKeyTGS_AS = KeyMethods.recoverSecret(path4KeyRetrieving, "TGS", "AS");
-
-            //  We decrypt the ticket sent by the AS with our symmetric key.
-            if (userRequest.decryptTicket(secretKeyTGS_AS, "TGT"))
-                System.out.println("Ticket TGT desencriptado correctamente con llave secreta TGS-AS");
+            //  We retrieve our own long-term key, in the version the AS used to encrypt the TGT.
+            Principal tgs = principals == null ? null : principals.lookup(Principal.TGS_NAME);
+            int tgtKvno = userRequest.peekKvno(TicketKind.TGT);
+            SecretKey secretKeyTGS_AS;
+            if (principals != null) {
+                if (tgs == null) {
+                    Log.error("La base de datos de principales no contiene al TGS.", "principal", Principal.TGS_NAME);
+                    return reject(socket);
+                }
+                KeyTable.observe(tgs);
+                secretKeyTGS_AS = KeyTable.lookup(tgs.getName(), tgtKvno);
+            } else
+                secretKeyTGS_AS = KeyCache.recoverSecret(path4KeyRetrieving, "TGS", "AS", tgtKvno);
+
+            //  We open the ticket sent by the AS with our symmetric key. Its MAC is checked first,
+            //  so a tampered request is rejected before any field is decrypted; the fields are then
+            //  decrypted as we read them.
+            TicketView tgt = userRequest.openTicket(secretKeyTGS_AS, TicketKind.TGT);
+            if (tgt != null)
+                Log.debug("Ticket TGT verificado correctamente con llave secreta TGS-AS");
             else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket TGT.");
-                System.exit(-1);
+                Log.warn("El ticket TGT no supera la verificaci\u00F3n de integridad.");
+                return reject(socket);
             }
 
-            Ticket tgt = userRequest.searchTicket("TGT");
+            //  As a shard, we only serve the clients the ring assigns to us.
+            if (!ShardRing.isLocal(tgt.getFirstId())) {
+                Log.info("Principal de otro shard, se rechaza la petici\u00F3n.", "principal", tgt.getFirstId(),
+                        "shard", ShardRing.local().owner(tgt.getFirstId()).getName());
+                return reject(socket);
+            }
 
             //  We recover the session key generated by the AS to be able to send a secure response
-            SecretKey sessionKeyTGS_Client = KeyMethods.convertString2Key(tgt.getKey());
-            KeyMethods.saveSecret(sessionKeyTGS_Client, path4KeyRetrieving, "TGS", "Client");
+            SecretKey sessionKeyTGS_Client = tgt.getSecretKey();
 
-            if (userRequest.decryptTicket(sessionKeyTGS_Client, "auth"))
-                System.out.println("Ticket auth desencriptado correctamente con llave de sesi\u00F3n Cliente-TGS");
+            TicketView userAuth = userRequest.openTicket(sessionKeyTGS_Client, TicketKind.AUTH);
+            if (userAuth != null)
+                Log.debug("Ticket auth verificado correctamente con llave de sesi\u00F3n Cliente-TGS");
             else {
-                System.out.println("Ha ocurrido un error al desencriptar el ticket auth.");
-                System.exit(-1);
+                Log.warn("El ticket auth no supera la verificaci\u00F3n de integridad.");
+                return reject(socket);
             }
 
-            Ticket userService = userRequest.searchTicket("request4TGS");
-            Ticket userAuth = userRequest.searchTicket("auth");
+            Ticket userService = userRequest.getTicket(TicketKind.REQUEST_4_TGS);
+
+            //  The service must be known, to the registry or to the principal database, and not disabled.
+            String serviceName = userService.getFirstId();
+            ServiceRegistry.Service registered = ServiceRegistry.current().lookup(serviceName);
+            Principal service = principals == null ? null : principals.lookup(serviceName);
+            if (registered == null && service == null) {
+                Log.info("Servicio desconocido, se rechaza la petici\u00F3n.", "servicio", serviceName);
+                return reject(socket);
+            }
+            if (registered != null && registered.isDisabled() || service != null && service.isDisabled()) {
+                Log.info("Servicio deshabilitado, se rechaza la petici\u00F3n.", "servicio", serviceName);
+                return reject(socket);
+            }
 
             //  We compare the ID of the client.
             if (tgt.getFirstId().equals(userAuth.getFirstId())) {
-                Timestamp lifetime = TimeMethods.string2TimeStamp(tgt.getLifetime());
-                Timestamp now = TimeMethods.timeSignature();
-                if (now.compareTo(lifetime) < 0){
-                    //  We compare the IP address of the client.
-                    if (tgt.getAddressIP().equals(socket.getInetAddress().getHostAddress())) {
-
+                //  The authenticator must be recent and seen for the first time.
+                ReplayCache.Result freshness =
+                        replays.check(userAuth.getFirstId(), userAuth.getTimeStampMillis(), userAuth.getMac());
+                if (freshness != ReplayCache.Result.FRESH) {
+                    Log.warn("Autenticador rechazado.", "principal", userAuth.getFirstId(), "motivo", freshness);
+                    return reject(socket);
+                }
+                long lifetime = tgt.getLifetimeMillis();
+                long now = TimeMethods.now();
+                if (now < lifetime){
+                    //  We compare the IP address of the client, as bytes.
+                    if (tgt.hasAddress(socket.getInetAddress())) {
                         //  We generate a session key for the user to use with the Server.
                         SecretKey sessionKeyClient_Server = KeyMethods.generateSecretKey();
-                        KeyMethods.saveSecret(sessionKeyClient_Server, path4KeySaving, "Client", "Server");
-                        UTicket userResponse = new UTicket(); // id ticket: responseToClient
+                        long serviceLifetime = registered != null ? registered.getMaxLifetime()
+                                : service.getMaxLifetime() > 0 ? service.getMaxLifetime()
+                                : ServiceRegistry.DEFAULT_LIFETIME;
+                        long secondLifetime = Math.min(now + serviceLifetime, lifetime);
+
+                        String sessionKey = KeyMethods.convertAnyKey2String(sessionKeyClient_Server);
+                        String issued = TimeMethods.format(now);
+                        String expires = TimeMethods.format(secondLifetime);
+
+                        UTicket userResponse = TicketPool.envelope(); // id ticket: responseToClient
                         userResponse.generateResponse4User( //
-                                "Server", //  ID v
-                                now.toString(), // TS 4
-                                lifetime.toString(), //  Tiempo de vida 2
-                                KeyMethods.convertAnyKey2String(sessionKeyClient_Server) //  K c-v
+                                serviceName, //  ID v
+                                issued, // TS 4
+                                expires, //  Tiempo de vida 4, so the client knows when serviceTicket expires
+                                sessionKey //  K c-v
                         );
 
-                        Timestamp secondLifetime = new Timestamp(now.getTime() + TimeMethods.getMillis(5,0));
-
                         userResponse.generateTicket(
-                                "serviceTicket",
+                                TicketKind.SERVICE_TICKET.getId(),
                                 tgt.getFirstId(), // ID c
-                                userService.getFirstId(), //  ID v
-                                now.toString(),  // TS 4
+                                serviceName, //  ID v
+                                issued,  // TS 4
                                 tgt.getAddressIP(), //  AD c
-                                secondLifetime.toString(), //  Tiempo de vida 4
-                                KeyMethods.convertAnyKey2String(sessionKeyClient_Server) //  K c-v
+                                expires, //  Tiempo de vida 4
+                                sessionKey //  K c-v
                         );
 
-                        SecretKey secretTGS_Server =
-                                KeyMethods.recoverSecret(
-                                        path4KeyRetrieving, "TGS", "Server"
-                                );
+                        VersionedKey secretTGS_Server = service != null
+                                ? service.getVersionedKey()
+                                : KeyCache.recoverVersioned(path4KeyRetrieving, "TGS", registered.getKeyPeer());
 
-                        if (userResponse.encryptTicket(sessionKeyTGS_Client, "responseToClient"))
-                            System.out.println("El ticket responseToClient ha sido encriptado con la llave TGS-Client exitosamente.");
+                        if (userResponse.encryptTicket(sessionKeyTGS_Client, TicketKind.RESPONSE_TO_CLIENT))
+                            Log.debug("El ticket responseToClient ha sido encriptado con la llave TGS-Client exitosamente.");
                         else {
-                            System.out.println("Ha ocurrido un error al encriptar el ticket responseToClient");
+                            Log.error("Ha ocurrido un error al encriptar el ticket responseToClient");
                             System.exit(-1);
                         }
-                        if (userResponse.encryptTicket(secretTGS_Server, "serviceTicket"))
-                            System.out.println("El ticket serviceTicket ha sido encriptado con la llave TGS-Server exitosamente.");
+                        if (userResponse.encryptTicket(secretTGS_Server, TicketKind.SERVICE_TICKET))
+                            Log.debug("El ticket serviceTicket ha sido encriptado con la llave TGS-Server exitosamente.");
                         else {
-                            System.out.println("Ha ocurrido un error al encriptar el ticket serviceTicket.");
+                            Log.error("Ha ocurrido un error al encriptar el ticket serviceTicket.");
                             System.exit(-1);
                         }
-                        if (userResponse.encryptTicket(sessionKeyTGS_Client, "serviceTicket"))
-                            System.out.println("El ticket serviceTicket ha sido encriptado con la llave TGS-Client exitosamente.");
+                        if (userResponse.encryptTicket(sessionKeyTGS_Client, TicketKind.SERVICE_TICKET))
+                            Log.debug("El ticket serviceTicket ha sido encriptado con la llave TGS-Client exitosamente.");
                         else {
-                            System.out.println("Ha ocurrido un error al encriptar el ticket serviceTicket.");
+                            Log.error("Ha ocurrido un error al encriptar el ticket serviceTicket.");
                             System.exit(-1);
                         }
 
@@ -153,15 +229,24 @@ public class ProcessRequest {
                 }
             }
 
-            boolean flag;
-            do flag = Messenger.booleanResponder(socket, false); while (!flag);
-            return false;
+            return reject(socket);
 
         } catch (Exception e) {
-            System.out.println("Error: ");
-            e.printStackTrace();
+            Log.error("Error al procesar la petici\u00F3n.", e);
             return false;
         }
     }
 
+    /**
+     * Sends a negative boolean response to the client and reports the request as not served.
+     *
+     * @param socket socket connected to the client
+     * @return always {@code false}
+     */
+    private static boolean reject(Socket socket) {
+        boolean flag;
+        do flag = Messenger.booleanResponder(socket, false); while (!flag);
+        return false;
+    }
+
 }
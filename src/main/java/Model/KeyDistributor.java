@@ -1,8 +1,8 @@
 package Model;
 
 import Security.Model.KeyMethods;
+import Security.Model.VersionedKey;
 
-import javax.crypto.SecretKey;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.PrivateKey;
@@ -37,7 +37,8 @@ public class KeyDistributor {
      *       {@link Messenger#sendPublicReceiveSecret(Socket, PublicKey, PrivateKey)}.</li>
      *   <li>Receive the symmetric key encrypted with the public key, decrypt it
      *       with the private key and store it under
-     *       {@code Security/SecretVault/Connection} using {@link KeyMethods#saveSecret}.</li>
+     *       {@code Security/SecretVault/Connection} using {@link KeyMethods#saveSecret},
+     *       with the version number chosen by the remote side.</li>
      * </ol>
      *
      * @param receiverHost      hostname or IP address of the remote actor
@@ -60,8 +61,8 @@ public class KeyDistributor {
         PublicKey publicKey = KeyMethods.recoverPublic(path4KeysRetrieval, whoAreYou);
         PrivateKey privateKey = KeyMethods.recoverPrivate(path4KeysRetrieval, whoAreYou);
 
-        SecretKey secretKey = Messenger.sendPublicReceiveSecret(socket, publicKey, privateKey);
-        KeyMethods.saveSecret(secretKey, path4KeySaving, whoAreYou, whosResponding);
+        VersionedKey secretKey = Messenger.sendPublicReceiveSecret(socket, publicKey, privateKey);
+        KeyMethods.saveSecret(secretKey.getKey(), path4KeySaving, whoAreYou, whosResponding, secretKey.getKvno());
     }
 
     /**
@@ -75,9 +76,11 @@ public class KeyDistributor {
      *       {@code Security/SecretVault/Connection}.</li>
      *   <li>Generate a new symmetric key using
      *       {@link KeyMethods#generateSecretKey()} and store it with a name that
-     *       identifies both the local actor ({@code whoAreYou}) and the sender ({@code whoIsSending}).</li>
+     *       identifies both the local actor ({@code whoAreYou}) and the sender ({@code whoIsSending}),
+     *       as the next version of the key already stored for the pair ({@link KeyMethods#nextKvno}).</li>
      *   <li>Encrypt the symmetric key with the received public key and send it
-     *       back using {@link Messenger#secretResponder(Socket, SecretKey, PublicKey)}.</li>
+     *       back with its version number using
+     *       {@link Messenger#secretResponder(Socket, VersionedKey, PublicKey)}.</li>
      * </ol>
      *
      * @param serverSocket  server socket that will accept the incoming connection
@@ -98,8 +101,9 @@ public class KeyDistributor {
         PublicKey publicKey = Messenger.receivePublic(socket);
         KeyMethods.saveKey(publicKey, path4KeySaving, whoIsSending + "Received", true);
         System.out.println("La llave publica ha sido guardada exitosamente");
-        SecretKey secretKey = KeyMethods.generateSecretKey();
-        KeyMethods.saveSecret(secretKey, path4KeySaving, whoAreYou, whoIsSending);
+        VersionedKey secretKey = new VersionedKey(KeyMethods.nextKvno(path4KeySaving, whoAreYou, whoIsSending),
+                KeyMethods.generateSecretKey());
+        KeyMethods.saveSecret(secretKey.getKey(), path4KeySaving, whoAreYou, whoIsSending, secretKey.getKvno());
         System.out.println("La llave secreta ha sido generada exitosamente.");
         return Messenger.secretResponder(socket, secretKey, publicKey);
     }
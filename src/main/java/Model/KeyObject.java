@@ -3,8 +3,11 @@ package Model;
 import java.io.Serializable;
 
 public class KeyObject implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String publicKey;
     private String secretKey;
+    private int kvno;
 
     public String getPublicKey() {
         return publicKey;
@@ -21,4 +24,12 @@ public class KeyObject implements Serializable {
     public void setSecretKey(String secretKey) {
         this.secretKey = secretKey;
     }
+
+    public int getKvno() {
+        return kvno;
+    }
+
+    public void setKvno(int kvno) {
+        this.kvno = kvno;
+    }
 }
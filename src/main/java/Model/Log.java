@@ -0,0 +1,300 @@
+package Model;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, leveled logging for the request path of the Kerberos services.
+ * <p>
+ * Printing straight to {@code System.out} from a worker takes the stream's
+ * lock and waits for the console, so busy workers end up queued behind each
+ * other. Here a worker only claims a slot of a fixed ring buffer with one
+ * compare-and-set and stores its message there; a daemon thread,
+ * {@code Log-writer}, drains the ring, formats the entries and prints them
+ * in batches. When the ring is full the entry is dropped and counted (see
+ * {@link #getDropped()}) rather than making the worker wait.
+ * <p>
+ * Each line reads
+ * <pre>
+ *   2024-05-01T10:15:30.123 INFO  [main] message key=value key=value
+ * </pre>
+ * where the trailing pairs are the optional {@code fields} given with the message.
+ * <p>
+ * Messages below the level set with {@link #setLevel(Level)} are discarded
+ * before anything is stored; the initial level is read from the
+ * {@code kerberos.log.level} system property ({@code INFO} by default).
+ * {@link #setSampling(Level, int)} keeps only one message out of every
+ * {@code n} of a level, to thin out chatty levels under load. Ticket dumps,
+ * which show session keys, are only written at {@link Level#DEBUG}; guard
+ * building them with {@link #isEnabled(Level)}.
+ * <p>
+ * A shutdown hook drains whatever is left in the ring before the JVM exits.
+ *
+ * @author Silver-VS
+ */
+public class Log {
+
+    /**
+     * Severity of a message, from the most verbose to {@link #OFF}.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    //  Ring buffer: a slot is free for position p when its sequence is p, and full when it is p + 1.
+    private static final Entry[] entries = new Entry[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head; // only read and written while holding the drain lock
+    //  The formatted second of the last entry written, reused while entries fall in the same second.
+    private static long formattedSecond = Long.MIN_VALUE;
+    private static String formattedPrefix;
+
+    private static final Object drainLock = new Object();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final int[] sampling = new int[Level.values().length];
+    private static final AtomicLong[] sampleCounters = new AtomicLong[Level.values().length];
+
+    private static volatile Level level = parseLevel(System.getProperty("kerberos.log.level"));
+    private static volatile PrintStream out = System.out;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        for (int i = 0; i < sampleCounters.length; i++) {
+            sampling[i] = 1;
+            sampleCounters[i] = new AtomicLong();
+        }
+        Thread writer = new Thread(Log::writeLoop, "Log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Log-flush"));
+    }
+
+    /**
+     * @param newLevel lowest level written from now on; {@link Level#OFF} silences everything
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Keeps one message out of every {@code everyN} of the given level.
+     *
+     * @param target level to sample
+     * @param everyN {@code 1} to keep every message
+     */
+    public static void setSampling(Level target, int everyN) {
+        if (everyN < 1)
+            throw new IllegalArgumentException("La tasa de muestreo debe ser al menos 1.");
+        sampling[target.ordinal()] = everyN;
+    }
+
+    /**
+     * @param target level to check
+     * @return {@code true} if messages of that level are written at all
+     */
+    public static boolean isEnabled(Level target) {
+        return target != Level.OFF && target.compareTo(level) >= 0;
+    }
+
+    /**
+     * @param stream where the writer thread prints from now on; {@code System.out} by default
+     */
+    public static void setOutput(PrintStream stream) {
+        out = stream;
+    }
+
+    /**
+     * @return number of messages dropped because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, null, fields);
+    }
+
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, null, fields);
+    }
+
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, null, fields);
+    }
+
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, null, fields);
+    }
+
+    /**
+     * Logs an error together with the stack trace of {@code cause}.
+     *
+     * @param message description of what failed
+     * @param cause   exception that caused it
+     */
+    public static void error(String message, Throwable cause) {
+        log(Level.ERROR, message, cause, null);
+    }
+
+    /**
+     * Queues a message for the writer thread, unless its level is disabled or sampled out.
+     *
+     * @param target  level of the message
+     * @param message text of the message
+     * @param cause   exception whose stack trace follows the message, or {@code null}
+     * @param fields  alternating keys and values appended to the line, or {@code null}
+     */
+    public static void log(Level target, String message, Throwable cause, Object[] fields) {
+        if (!isEnabled(target))
+            return;
+        int every = sampling[target.ordinal()];
+        if (every > 1 && sampleCounters[target.ordinal()].getAndIncrement() % every != 0)
+            return;
+
+        long position = tail.get();
+        while (true) {
+            long available = sequences.get((int) position & MASK) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+                position = tail.get();
+            } else if (available < 0) {
+                //  The writer is a whole ring behind: drop rather than block the worker.
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int slot = (int) position & MASK;
+        Entry entry = entries[slot];
+        entry.time = System.currentTimeMillis();
+        entry.level = target;
+        entry.thread = Thread.currentThread().getName();
+        entry.message = message;
+        entry.cause = cause;
+        entry.fields = fields;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    /**
+     * Writes every queued message now, from the calling thread.
+     */
+    public static void flush() {
+        drain();
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Formats and prints every entry published so far as one batch.
+     *
+     * @return number of entries written
+     */
+    private static int drain() {
+        synchronized (drainLock) {
+            StringBuilder batch = null;
+            int count = 0;
+            while (true) {
+                int slot = (int) head & MASK;
+                if (sequences.get(slot) != head + 1)
+                    break;
+                Entry entry = entries[slot];
+                if (batch == null)
+                    batch = new StringBuilder(256);
+                format(entry, batch);
+                entry.clear();
+                sequences.lazySet(slot, head + CAPACITY);
+                head++;
+                count++;
+            }
+            if (batch != null) {
+                PrintStream stream = out;
+                stream.print(batch);
+                stream.flush();
+            }
+            return count;
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        long second = Math.floorDiv(entry.time, 1000L);
+        if (second != formattedSecond) {
+            formattedPrefix = FORMAT.format(Instant.ofEpochSecond(second));
+            formattedSecond = second;
+        }
+        int millis = (int) Math.floorMod(entry.time, 1000L);
+        line.append(formattedPrefix).append('.');
+        if (millis < 100) line.append('0');
+        if (millis < 10) line.append('0');
+        line.append(millis).append(' ').append(entry.level);
+        for (int i = entry.level.name().length(); i < 5; i++) line.append(' ');
+        line.append(" [").append(entry.thread).append("] ").append(entry.message);
+        Object[] fields = entry.fields;
+        if (fields != null) {
+            for (int i = 0; i + 1 < fields.length; i += 2)
+                line.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+        }
+        line.append(System.lineSeparator());
+        if (entry.cause != null) {
+            StringWriter trace = new StringWriter();
+            entry.cause.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    private static Level parseLevel(String value) {
+        if (value == null)
+            return Level.INFO;
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * One slot of the ring; reused for every message that lands in it.
+     */
+    private static final class Entry {
+        long time;
+        Level level;
+        String thread;
+        String message;
+        Throwable cause;
+        Object[] fields;
+
+        void clear() {
+            message = null;
+            cause = null;
+            fields = null;
+            thread = null;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package Model;
 
 import Security.Model.Encryption;
 import Security.Model.KeyMethods;
+import Security.Model.VersionedKey;
 
 import javax.crypto.SecretKey;
 import java.io.*;
@@ -25,6 +26,10 @@ import java.util.Objects;
  * The actual cryptographic operations (encryption/decryption, key conversion)
  * are delegated to {@link Encryption} and {@link KeyMethods}. All messages
  * are serialized using Java's {@link ObjectInputStream}/{@link ObjectOutputStream}.
+ * <p>
+ * The ticket exchanges report through {@link Log}, off the caller's thread;
+ * the tickets themselves are only dumped at debug level, since they carry
+ * session keys.
  */
 public class Messenger {
 
@@ -76,6 +81,23 @@ public class Messenger {
         }
     }
 
+    /**
+     * Opens an object input stream on the socket, the counterpart of
+     * {@link #objectSenderInitializer(Socket)} for connections that carry
+     * several objects, such as key store replication.
+     *
+     * @param socket an open socket
+     * @return the stream, or {@code null} if it cannot be opened
+     */
+    public static ObjectInputStream objectReceiverInitializer(Socket socket) {
+        try {
+            return new ObjectInputStream(socket.getInputStream());
+        } catch (Exception e) {
+            System.out.println("Error al obtener InputStream del socket: " + socket.toString());
+            return null;
+        }
+    }
+
     /**
      * Accepts an incoming connection from the given {@link ServerSocket}.
      *
@@ -144,10 +166,9 @@ public class Messenger {
             //  Now we need to send the object through the connection.
             Objects.requireNonNull(objectSenderInitializer(socket)).writeObject(ticket);
 
-            //  We show in the console what are we trying to send.
-            System.out.print("\nTicket enviado:\n");
-            ticket.printTicket(ticket);
-            System.out.print("\ntermina ticket enviado.\n");
+            //  We log what we are trying to send; tickets carry keys, so only at debug level.
+            if (Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("Ticket enviado:\n" + ticket.describe());
 
             //  So now we think it has been sent, but we need to be sure of it.
             //  We are going to be receiving information from the socket to confirm
@@ -159,17 +180,15 @@ public class Messenger {
             //  At this point, we are reading the information sent as a response for our request.
             UTicket ticket1 = (UTicket) objectReceiver.readObject();
 
-            System.out.print("\nRecibido en red:\n");
-            ticket1.printTicket(ticket1);
-            System.out.print("\nTermina recibo en red\n");
+            if (Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("Recibido en red:\n" + ticket1.describe());
 
             //  Now that we have a response we can close the communication channel.
             socket.close();
 
             return ticket1;
         } catch (Exception e) {
-            System.out.print("\nError al recibir el ticket." + "\nError:");
-            e.printStackTrace();
+            Log.error("Error al recibir el ticket.", e);
             return null;
         }
     }
@@ -181,19 +200,19 @@ public class Messenger {
      * <ol>
      *   <li>Wrap the provided {@code keyToSend} in a {@link KeyObject} and send it.</li>
      *   <li>Wait for a {@link KeyObject} containing a symmetric key encrypted
-     *       with the same public key.</li>
+     *       with the same public key, and its version number.</li>
      *   <li>Decrypt the symmetric key with the provided {@code privateKey}
      *       using {@link Encryption#privateDecrypt(PrivateKey, String)}.</li>
      *   <li>Convert the decrypted string into a {@link SecretKey} using
-     *       {@link KeyMethods#convertString2Key(String)} and return it.</li>
+     *       {@link KeyMethods#convertString2Key(String)} and return it with its version.</li>
      * </ol>
      *
      * @param socket     open socket to the remote endpoint
      * @param keyToSend  public key that will be sent to the remote side
      * @param privateKey private key used to decrypt the received symmetric key
-     * @return the symmetric {@link SecretKey}, or {@code null} if an error occurs
+     * @return the symmetric key and its version number, or {@code null} if an error occurs
      */
-    public static SecretKey sendPublicReceiveSecret(Socket socket, PublicKey keyToSend, PrivateKey privateKey) {
+    public static VersionedKey sendPublicReceiveSecret(Socket socket, PublicKey keyToSend, PrivateKey privateKey) {
 
         try {
             KeyObject keyObject = new KeyObject();
@@ -205,12 +224,12 @@ public class Messenger {
             ObjectOutputStream objectSender = new ObjectOutputStream(outputStream);
             objectSender.writeObject(keyObject);
             System.out.println("La llave publica ha sido enviada exitosamente.");
-            String receivedEncrypted = awaitSecret(socket);
+            KeyObject received = awaitKeyObject(socket);
             System.out.println("La llave secreta encriptada ha sido recibida exitosamente.");
-            String secretDecrypted = Encryption.privateDecrypt(privateKey, receivedEncrypted);
+            String secretDecrypted = Encryption.privateDecrypt(privateKey, received.getSecretKey());
             System.out.println("Se ha desencriptado exitosamente la llave privada");
 
-            return KeyMethods.convertString2Key(secretDecrypted);
+            return new VersionedKey(received.getKvno(), KeyMethods.convertString2Key(secretDecrypted));
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -219,12 +238,16 @@ public class Messenger {
 
 
     public static String awaitSecret(Socket socket) {
+        KeyObject keyObject = awaitKeyObject(socket);
+        return keyObject == null ? null : keyObject.getSecretKey();
+    }
+
+    private static KeyObject awaitKeyObject(Socket socket) {
 
         try {
             InputStream inputStream = socket.getInputStream();
             ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-            KeyObject keyObject = (KeyObject) objectInputStream.readObject();
-            return keyObject.getSecretKey();
+            return (KeyObject) objectInputStream.readObject();
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -251,8 +274,7 @@ public class Messenger {
             //  Now we need to read the Ticket.
             return (UTicket) objectReceiver.readObject();
         } catch (Exception e) {
-            System.out.println("No se ha podido recibir el ticket." + "\nError: ");
-            e.printStackTrace();
+            Log.error("No se ha podido recibir el ticket.", e);
             return null;
         }
     }
@@ -272,12 +294,13 @@ public class Messenger {
             OutputStream outputStream = socket.getOutputStream();
             ObjectOutputStream objectSender = new ObjectOutputStream(outputStream);
             objectSender.writeBoolean(response);
+            //  A primitive stays in the stream's block buffer until flushed; closing the socket would lose it.
+            objectSender.flush();
             //  We can proceed to close the receiving socket.
             socket.close();
             return true;
         } catch (Exception e) {
-            System.out.println("\nNo se ha podido enviar una respuesta (boolean responder)." + "\nError: ");
-            e.printStackTrace();
+            Log.error("No se ha podido enviar una respuesta (boolean responder).", e);
             return false;
         }
     }
@@ -298,17 +321,16 @@ public class Messenger {
             ObjectOutputStream objectSender = new ObjectOutputStream(outputStream);
             objectSender.writeObject(ticketResponse);
 
-            //  We print the ticket response.
-            ticketResponse.printTicket(ticketResponse);
-            System.out.println("\nEl ticket ha sido enviado exitosamente.");
+            //  We log the ticket response; it carries keys, so only at debug level.
+            if (Log.isEnabled(Log.Level.DEBUG))
+                Log.debug("Ticket enviado:\n" + ticketResponse.describe());
+            Log.debug("El ticket ha sido enviado exitosamente.");
 
             //  We can proceed to close the receiving socket.
             socket.close();
             return true;
         } catch (Exception e) {
-            System.out.println("\nHa ocurrido un error al enviar el ticket.");
-            System.out.println("Error: ");
-            e.printStackTrace();
+            Log.error("Ha ocurrido un error al enviar el ticket.", e);
             return false;
         }
     }
@@ -319,20 +341,23 @@ public class Messenger {
      * <p>
      * The symmetric key is converted to a string, encrypted using
      * {@link Encryption#publicEncrypt(PublicKey, String)}, wrapped into a
-     * {@link KeyObject}, serialized and written to the socket.
+     * {@link KeyObject} together with its version number, serialized and
+     * written to the socket.
      *
      * @param socket    open socket to the remote endpoint
-     * @param secretKey symmetric key to be encrypted and sent
+     * @param secretKey symmetric key to be encrypted and sent, with the version both sides save it under
      * @param publicKey remote actor's public key
      * @return {@code true} if the key was sent successfully, {@code false} otherwise
      */
-    public static boolean secretResponder(Socket socket, SecretKey secretKey, PublicKey publicKey) {
+    public static boolean secretResponder(Socket socket, VersionedKey secretKey, PublicKey publicKey) {
 
         try {
-            String encryptedString = Encryption.publicEncrypt(publicKey, KeyMethods.convertAnyKey2String(secretKey));
+            String encryptedString = Encryption.publicEncrypt(publicKey,
+                    KeyMethods.convertAnyKey2String(secretKey.getKey()));
             System.out.println("Se ha encriptado exitosamente la llave secreta.");
             KeyObject keyObject = new KeyObject();
             keyObject.setSecretKey(encryptedString);
+            keyObject.setKvno(secretKey.getKvno());
             OutputStream outputStream = socket.getOutputStream();
             ObjectOutputStream objectSender = new ObjectOutputStream(outputStream);
             objectSender.writeObject(keyObject);
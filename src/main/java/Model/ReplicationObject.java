@@ -0,0 +1,103 @@
+package Model;
+
+import java.io.Serializable;
+
+/**
+ * Message of the key store replication stream between a primary KDC and its
+ * replicas (see {@code Security.Model.KeyStoreReplication}).
+ * <p>
+ * Like {@link KeyObject}, it is a plain serializable carrier sent through the
+ * object streams opened by {@link Messenger}; the payload is never interpreted here.
+ */
+public class ReplicationObject implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Replica to primary: the last sequence number the replica has applied, and the replica's nonce.
+     */
+    public static final byte HELLO = 0;
+    /**
+     * A snapshot image of the key store, covering the log up to {@code seq}.
+     */
+    public static final byte SNAPSHOT = 1;
+    /**
+     * One principal of the primary's database, sent after a snapshot.
+     */
+    public static final byte PRINCIPAL = 2;
+    /**
+     * One record of the primary's write-ahead log.
+     */
+    public static final byte RECORD = 3;
+    /**
+     * The replica has received everything the primary had logged when it connected.
+     */
+    public static final byte CAUGHT_UP = 4;
+    /**
+     * Nothing new; {@code seq} is the primary's last sequence number.
+     */
+    public static final byte HEARTBEAT = 5;
+    /**
+     * Primary to replica, in answer to {@link #HELLO}: the primary's nonce.
+     */
+    public static final byte CHALLENGE = 6;
+    /**
+     * Replica to primary: proof that the replica holds the replication key.
+     */
+    public static final byte AUTH = 7;
+    /**
+     * Any other message from the primary, encrypted and authenticated; the payload is the sealed message.
+     */
+    public static final byte SEALED = 8;
+    /**
+     * The last principal sent after a {@link #SNAPSHOT}; the replica drops the principals it did not receive.
+     */
+    public static final byte SNAPSHOT_END = 9;
+
+    private byte kind;
+    private long seq;
+    private byte type;
+    private byte[] payload;
+
+    public ReplicationObject() {
+    }
+
+    public ReplicationObject(byte kind, long seq, byte type, byte[] payload) {
+        this.kind = kind;
+        this.seq = seq;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    public void setKind(byte kind) {
+        this.kind = kind;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public void setType(byte type) {
+        this.type = type;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+}
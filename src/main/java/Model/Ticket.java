@@ -1,6 +1,13 @@
 package Model;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Base64;
 
 /**
  * Represents a simplified Kerberos-style ticket.
@@ -26,11 +33,31 @@ import java.io.Serializable;
  *   <li>{@code lifetime}: validity interval expressed as a string.</li>
  *   <li>{@code timeStamp}: time at which the ticket/authenticator was created.</li>
  *   <li>{@code key}: symmetric key (session key) encoded in Base64.</li>
+ *   <li>{@code mac}: keyed MAC over the encrypted fields, set by
+ *       {@link UTicket#encryptTicket} and checked before any decryption.</li>
+ *   <li>{@code kvno}: key version numbers of the encryption layers, in clear,
+ *       outermost first and separated by dots (e.g. {@code "1.3"}).</li>
  * </ul>
+ * The strings are what travels and what gets encrypted and MACed. Once a
+ * ticket is decrypted, the typed accessors ({@link #getLifetimeMillis()},
+ * {@link #getTimeStampMillis()}, {@link #getAddress()}, {@link #getSecretKey()})
+ * decode a field once and keep the result in a transient cache tied to the
+ * string it came from, so validations compare numbers and bytes instead of
+ * parsing the same text again; the typed setters skip the parse entirely.
+ * <p>
+ * The setters also keep a bitmask of the fields that hold a value (see
+ * {@link #getPresent()} and the field constants such as {@link #FIRST_ID}).
+ * {@link #transformFields} and {@link #forEachField} walk the set bits in
+ * field order, which is how {@link UTicket} encrypts, decrypts and prints a
+ * ticket without building a list of the filled fields first.
  *
  * @author Silver-VS
  */
 public class Ticket implements Serializable {
+    //  The value computed for the baseline class, whose fields are all still here: an older peer's ticket still
+    //  deserializes (with no MAC or kvno), but it is rejected once its MAC is checked.
+    private static final long serialVersionUID = 5320861532323342131L;
+
 
     private String idTicket;
     private String firstId;
@@ -39,6 +66,37 @@ public class Ticket implements Serializable {
     private String lifetime;
     private String timeStamp;
     private String key;
+    private String mac;
+    private String kvno;
+
+    public static final int FIRST_ID = 1;
+    public static final int SECOND_ID = 1 << 1;
+    public static final int ADDRESS_IP = 1 << 2;
+    public static final int LIFETIME = 1 << 3;
+    public static final int TIME_STAMP = 1 << 4;
+    public static final int KEY = 1 << 5;
+    public static final int MAC = 1 << 6;
+
+    /**
+     * The six fields encrypted and printed as a ticket's content; the MAC and
+     * the kvno list are handled separately.
+     */
+    public static final int CONTENT_FIELDS = FIRST_ID | SECOND_ID | ADDRESS_IP | LIFETIME | TIME_STAMP | KEY;
+
+    private static final String[] FIELD_NAMES = {"firstId", "secondId", "addressIP", "lifetime", "timeStamp", "key", "mac"};
+
+    //  One bit per field constant, set while the field is not null. Rebuilt on deserialization.
+    private transient int present;
+
+    //  Decoded values, each valid while its field still holds the string it was decoded from.
+    private transient String lifetimeSource;
+    private transient long lifetimeMillis;
+    private transient String timeStampSource;
+    private transient long timeStampMillis;
+    private transient String addressSource;
+    private transient byte[] address;
+    private transient String keySource;
+    private transient SecretKey secretKey;
 
     public Ticket() {
     }
@@ -46,12 +104,12 @@ public class Ticket implements Serializable {
     public Ticket(String idTicket, String firstId, String secondId, String addressIP, String lifetime,
                   String timeStamp, String key) {
         this.idTicket = idTicket;
-        this.firstId = firstId;
-        this.secondId = secondId;
-        this.addressIP = addressIP;
-        this.lifetime = lifetime;
-        this.timeStamp = timeStamp;
-        this.key = key;
+        setFirstId(firstId);
+        setSecondId(secondId);
+        setAddressIP(addressIP);
+        setLifetime(lifetime);
+        setTimeStamp(timeStamp);
+        setKey(key);
     }
 
     public String getIdTicket() {
@@ -68,6 +126,7 @@ public class Ticket implements Serializable {
 
     public void setFirstId(String firstId) {
         this.firstId = firstId;
+        mark(FIRST_ID, firstId);
     }
 
     public String getSecondId() {
@@ -76,6 +135,7 @@ public class Ticket implements Serializable {
 
     public void setSecondId(String secondId) {
         this.secondId = secondId;
+        mark(SECOND_ID, secondId);
     }
 
     public String getAddressIP() {
@@ -84,6 +144,7 @@ public class Ticket implements Serializable {
 
     public void setAddressIP(String addressIP) {
         this.addressIP = addressIP;
+        mark(ADDRESS_IP, addressIP);
     }
 
     public String getLifetime() {
@@ -92,6 +153,7 @@ public class Ticket implements Serializable {
 
     public void setLifetime(String lifetime) {
         this.lifetime = lifetime;
+        mark(LIFETIME, lifetime);
     }
 
     public String getTimeStamp() {
@@ -100,6 +162,7 @@ public class Ticket implements Serializable {
 
     public void setTimeStamp(String timeStamp) {
         this.timeStamp = timeStamp;
+        mark(TIME_STAMP, timeStamp);
     }
 
     public String getKey() {
@@ -108,29 +171,344 @@ public class Ticket implements Serializable {
 
     public void setKey(String key) {
         this.key = key;
+        mark(KEY, key);
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    public void setMac(String mac) {
+        this.mac = mac;
+        mark(MAC, mac);
+    }
+
+    public String getKvno() {
+        return kvno;
+    }
+
+    public void setKvno(String kvno) {
+        this.kvno = kvno;
     }
 
     public boolean isFilledFirstId() {
-        return getFirstId() != null;
+        return (present & FIRST_ID) != 0;
     }
 
     public boolean isFilledSecondId() {
-        return getSecondId() != null;
+        return (present & SECOND_ID) != 0;
     }
 
     public boolean isFilledAddressIP() {
-        return getAddressIP() != null;
+        return (present & ADDRESS_IP) != 0;
     }
 
     public boolean isFilledLifetime() {
-        return getLifetime() != null;
+        return (present & LIFETIME) != 0;
     }
 
     public boolean isFilledTimeStamp() {
-        return getTimeStamp() != null;
+        return (present & TIME_STAMP) != 0;
     }
 
     public boolean isFilledKey() {
-        return getKey() != null;
+        return (present & KEY) != 0;
+    }
+
+    public boolean isFilledMac() {
+        return (present & MAC) != 0;
+    }
+
+    /**
+     * @return the field constants of every field holding a value, or-ed together
+     */
+    public int getPresent() {
+        return present;
+    }
+
+    /**
+     * @param field one field constant, e.g. {@link #LIFETIME}
+     * @return the value of that field
+     */
+    public String getField(int field) {
+        switch (field) {
+            case FIRST_ID:
+                return firstId;
+            case SECOND_ID:
+                return secondId;
+            case ADDRESS_IP:
+                return addressIP;
+            case LIFETIME:
+                return lifetime;
+            case TIME_STAMP:
+                return timeStamp;
+            case KEY:
+                return key;
+            case MAC:
+                return mac;
+            default:
+                throw new IllegalArgumentException("Campo desconocido: " + field);
+        }
+    }
+
+    /**
+     * @param field one field constant, e.g. {@link #LIFETIME}
+     * @param value new value of that field
+     */
+    public void setField(int field, String value) {
+        switch (field) {
+            case FIRST_ID:
+                setFirstId(value);
+                break;
+            case SECOND_ID:
+                setSecondId(value);
+                break;
+            case ADDRESS_IP:
+                setAddressIP(value);
+                break;
+            case LIFETIME:
+                setLifetime(value);
+                break;
+            case TIME_STAMP:
+                setTimeStamp(value);
+                break;
+            case KEY:
+                setKey(value);
+                break;
+            case MAC:
+                setMac(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Campo desconocido: " + field);
+        }
+    }
+
+    /**
+     * @param field one field constant
+     * @return the name of the field, as printed by {@link UTicket#printTicket}
+     */
+    public static String fieldName(int field) {
+        return FIELD_NAMES[Integer.numberOfTrailingZeros(field)];
+    }
+
+    /**
+     * Replaces every field of {@code fields} that holds a value with
+     * {@code transform.apply(context, value)}, in field order.
+     * <p>
+     * The context is passed through so the transform can be a method reference
+     * that captures nothing, e.g. {@code Encryption::encrypt} with the layer's
+     * cipher as context; the walk itself allocates nothing.
+     *
+     * @param fields    field constants to transform, or-ed together
+     * @param context   first argument of every call to {@code transform}
+     * @param transform computes the new value of a field
+     * @throws Exception whatever {@code transform} throws; fields before the failing one keep their new value
+     */
+    public <C> void transformFields(int fields, C context, FieldTransform<C> transform) throws Exception {
+        for (int remaining = present & fields; remaining != 0; remaining &= remaining - 1) {
+            int field = Integer.lowestOneBit(remaining);
+            setField(field, transform.apply(context, getField(field)));
+        }
+    }
+
+    /**
+     * Calls {@code visitor} for every field of {@code fields} that holds a value, in field order.
+     *
+     * @param fields  field constants to visit, or-ed together
+     * @param visitor receives each field constant and its value
+     */
+    public void forEachField(int fields, FieldVisitor visitor) {
+        for (int remaining = present & fields; remaining != 0; remaining &= remaining - 1) {
+            int field = Integer.lowestOneBit(remaining);
+            visitor.visit(field, getField(field));
+        }
+    }
+
+    /**
+     * Clears every field, so the ticket can be filled again for another message
+     * (see {@link UTicket#reset()}).
+     */
+    public void reset() {
+        idTicket = null;
+        firstId = null;
+        secondId = null;
+        addressIP = null;
+        lifetime = null;
+        timeStamp = null;
+        key = null;
+        mac = null;
+        kvno = null;
+        present = 0;
+        lifetimeSource = null;
+        timeStampSource = null;
+        addressSource = null;
+        address = null;
+        keySource = null;
+        secretKey = null;
+    }
+
+    private void mark(int field, String value) {
+        if (value == null)
+            present &= ~field;
+        else
+            present |= field;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        present = 0;
+        mark(FIRST_ID, firstId);
+        mark(SECOND_ID, secondId);
+        mark(ADDRESS_IP, addressIP);
+        mark(LIFETIME, lifetime);
+        mark(TIME_STAMP, timeStamp);
+        mark(KEY, key);
+        mark(MAC, mac);
+    }
+
+    /**
+     * @return the lifetime as epoch milliseconds
+     * @throws IllegalArgumentException if the field is not a plain timestamp (e.g. still encrypted)
+     */
+    public long getLifetimeMillis() {
+        if (lifetime != lifetimeSource) {
+            lifetimeMillis = TimeMethods.parse(lifetime);
+            lifetimeSource = lifetime;
+        }
+        return lifetimeMillis;
+    }
+
+    /**
+     * @param millis lifetime as epoch milliseconds
+     */
+    public void setLifetimeMillis(long millis) {
+        setLifetime(TimeMethods.format(millis));
+        lifetimeSource = lifetime;
+        lifetimeMillis = millis;
+    }
+
+    /**
+     * @return the time stamp as epoch milliseconds
+     * @throws IllegalArgumentException if the field is not a plain timestamp (e.g. still encrypted)
+     */
+    public long getTimeStampMillis() {
+        if (timeStamp != timeStampSource) {
+            timeStampMillis = TimeMethods.parse(timeStamp);
+            timeStampSource = timeStamp;
+        }
+        return timeStampMillis;
+    }
+
+    /**
+     * @param millis time stamp as epoch milliseconds
+     */
+    public void setTimeStampMillis(long millis) {
+        setTimeStamp(TimeMethods.format(millis));
+        timeStampSource = timeStamp;
+        timeStampMillis = millis;
+    }
+
+    /**
+     * @return the address as raw bytes (4 for IPv4, 16 for IPv6), or {@code null}
+     *         if the field is empty or not a numeric address (e.g. {@code "localhost"})
+     */
+    public byte[] getAddress() {
+        if (addressIP != addressSource) {
+            address = parseAddress(addressIP);
+            addressSource = addressIP;
+        }
+        return address;
+    }
+
+    /**
+     * @param address the client's address, usually {@code socket.getInetAddress()}
+     */
+    public void setAddress(InetAddress address) {
+        setAddressIP(address.getHostAddress());
+        addressSource = addressIP;
+        this.address = address.getAddress();
+    }
+
+    /**
+     * Compares the address of the ticket with {@code address} byte by byte.
+     *
+     * @param address address to compare with, usually the peer of the socket
+     * @return {@code true} if the ticket holds that numeric address
+     */
+    public boolean hasAddress(InetAddress address) {
+        return Arrays.equals(getAddress(), address.getAddress());
+    }
+
+    /**
+     * @return the key field as a DES key
+     * @throws IllegalArgumentException if the field is not Base64 (e.g. still encrypted)
+     */
+    public SecretKey getSecretKey() {
+        if (key != keySource) {
+            byte[] raw = Base64.getDecoder().decode(key);
+            secretKey = new SecretKeySpec(raw, 0, raw.length, "DES");
+            keySource = key;
+        }
+        return secretKey;
+    }
+
+    /**
+     * @param secretKey session key to carry
+     */
+    public void setSecretKey(SecretKey secretKey) {
+        setKey(Base64.getEncoder().encodeToString(secretKey.getEncoded()));
+        keySource = key;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * Parses a numeric IPv4 or IPv6 address without ever resolving a host name.
+     */
+    static byte[] parseAddress(String value) {
+        if (value == null)
+            return null;
+        if (value.indexOf(':') >= 0) {
+            try {
+                //  A literal containing ':' is never looked up.
+                return InetAddress.getByName(value).getAddress();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        byte[] bytes = new byte[4];
+        int part = 0;
+        int octet = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i < value.length() ? value.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255)
+                    return null;
+            } else if (c == '.' && octet >= 0 && part < 4) {
+                bytes[part++] = (byte) octet;
+                octet = -1;
+            } else {
+                return null;
+            }
+        }
+        return part == 4 ? bytes : null;
+    }
+
+    /**
+     * Computes the new value of a field; see {@link #transformFields}.
+     *
+     * @param <C> type of the context, e.g. a key
+     */
+    @FunctionalInterface
+    public interface FieldTransform<C> {
+        String apply(C context, String value) throws Exception;
+    }
+
+    /**
+     * Receives the fields walked by {@link #forEachField}.
+     */
+    @FunctionalInterface
+    public interface FieldVisitor {
+        void visit(int field, String value);
     }
-}
\ No newline at end of file
+}
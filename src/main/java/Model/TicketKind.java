@@ -0,0 +1,75 @@
+package Model;
+
+/**
+ * The kinds of {@link Ticket} a {@link UTicket} carries through the protocol.
+ * <p>
+ * Each kind keeps the {@code idTicket} string that travels on the wire, so
+ * tickets stay compatible with peers that only know the strings, while
+ * {@link UTicket} can keep one slot per kind and find a ticket without
+ * scanning its list.
+ */
+public enum TicketKind {
+
+    /**
+     * AS-REQ sent by the client.
+     */
+    REQUEST("request"),
+    /**
+     * Name of the service asked for in a TGS-REQ.
+     */
+    REQUEST_4_TGS("request4TGS"),
+    /**
+     * Authenticator of the client.
+     */
+    AUTH("auth"),
+    /**
+     * Ticket-Granting Ticket issued by the AS.
+     */
+    TGT("TGT"),
+    /**
+     * Service ticket issued by the TGS.
+     */
+    SERVICE_TICKET("serviceTicket"),
+    /**
+     * Part of a response readable by the client.
+     */
+    RESPONSE_TO_CLIENT("responseToClient");
+
+    private final String id;
+
+    TicketKind(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the {@code idTicket} of this kind on the wire
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param id an {@code idTicket}
+     * @return the matching kind, or {@code null} for any other id
+     */
+    public static TicketKind of(String id) {
+        if (id == null)
+            return null;
+        switch (id) {
+            case "request":
+                return REQUEST;
+            case "request4TGS":
+                return REQUEST_4_TGS;
+            case "auth":
+                return AUTH;
+            case "TGT":
+                return TGT;
+            case "serviceTicket":
+                return SERVICE_TICKET;
+            case "responseToClient":
+                return RESPONSE_TO_CLIENT;
+            default:
+                return null;
+        }
+    }
+}
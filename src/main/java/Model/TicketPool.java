@@ -0,0 +1,35 @@
+package Model;
+
+/**
+ * Per-thread envelopes for the responses built by the Kerberos services.
+ * <p>
+ * A service thread builds one response at a time and is done with it once
+ * {@link Messenger#ticketResponder} has written it to the socket, so each
+ * thread keeps a single {@link UTicket} and resets it for every request
+ * instead of allocating a new envelope, its list and its tickets each time.
+ * The field values are still new strings, since they are immutable.
+ * <p>
+ * Requests themselves are not pooled: they are created by the
+ * {@link java.io.ObjectInputStream} that reads them.
+ *
+ * @author Silver-VS
+ */
+public class TicketPool {
+
+    private static final ThreadLocal<UTicket> ENVELOPE = ThreadLocal.withInitial(UTicket::new);
+
+    /**
+     * Returns the calling thread's envelope, emptied.
+     * <p>
+     * The envelope, and every ticket taken from it, is only valid until the
+     * same thread calls this method again; it must not be kept or handed to
+     * another thread.
+     *
+     * @return an empty envelope owned by the calling thread
+     */
+    public static UTicket envelope() {
+        UTicket envelope = ENVELOPE.get();
+        envelope.reset();
+        return envelope;
+    }
+}
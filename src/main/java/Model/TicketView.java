@@ -0,0 +1,161 @@
+package Model;
+
+import Security.Model.Encryption;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Read-only, lazily decrypted view of a received {@link Ticket}.
+ * <p>
+ * {@link UTicket#decryptTicket} decrypts the six fields of a ticket at once,
+ * even when the receiver rejects the request after looking at one or two of
+ * them. A view, obtained from {@link UTicket#openTicket(SecretKey, TicketKind)}
+ * once the ticket's MAC has been checked, decrypts a field the first time it is
+ * read and keeps the plaintext; fields never read are never decrypted. A
+ * request refused because its ticket expired, for instance, only pays for the
+ * lifetime.
+ * <p>
+ * The view only removes the outermost encryption layer and leaves the ticket
+ * itself untouched, so it suits tickets that reach their final receiver with
+ * a single layer left, as the TGT does at the TGS and the serviceTicket at the
+ * Server. A field that cannot be decrypted with the view's key makes its
+ * getter throw {@link IllegalStateException}.
+ *
+ * @author Silver-VS
+ */
+public class TicketView {
+
+    private static final int FIELD_COUNT = 6;
+
+    private final Ticket ticket;
+    private final SecretKey key;
+    private Cipher cipher;
+
+    private final String[] plain = new String[FIELD_COUNT];
+    //  Field constants of the plaintexts already in plain[].
+    private int decrypted;
+
+    private long lifetimeMillis;
+    private boolean lifetimeParsed;
+    private byte[] address;
+    private boolean addressParsed;
+    private SecretKey secretKey;
+
+    TicketView(Ticket ticket, SecretKey key) {
+        this.ticket = ticket;
+        this.key = key;
+    }
+
+    public String getIdTicket() {
+        return ticket.getIdTicket();
+    }
+
+    public String getFirstId() {
+        return field(Ticket.FIRST_ID);
+    }
+
+    public String getSecondId() {
+        return field(Ticket.SECOND_ID);
+    }
+
+    public String getAddressIP() {
+        return field(Ticket.ADDRESS_IP);
+    }
+
+    public String getLifetime() {
+        return field(Ticket.LIFETIME);
+    }
+
+    public String getTimeStamp() {
+        return field(Ticket.TIME_STAMP);
+    }
+
+    public String getKey() {
+        return field(Ticket.KEY);
+    }
+
+    /**
+     * @return the MAC of the ticket as received, over its encrypted fields
+     */
+    public String getMac() {
+        return ticket.getMac();
+    }
+
+    /**
+     * @return the lifetime as epoch milliseconds
+     */
+    public long getLifetimeMillis() {
+        if (!lifetimeParsed) {
+            lifetimeMillis = TimeMethods.parse(getLifetime());
+            lifetimeParsed = true;
+        }
+        return lifetimeMillis;
+    }
+
+    /**
+     * @return the time stamp as epoch milliseconds
+     */
+    public long getTimeStampMillis() {
+        return TimeMethods.parse(getTimeStamp());
+    }
+
+    /**
+     * Compares the address of the ticket with {@code address} byte by byte.
+     *
+     * @param address address to compare with, usually the peer of the socket
+     * @return {@code true} if the ticket holds that numeric address
+     */
+    public boolean hasAddress(InetAddress address) {
+        if (!addressParsed) {
+            this.address = Ticket.parseAddress(getAddressIP());
+            addressParsed = true;
+        }
+        return Arrays.equals(this.address, address.getAddress());
+    }
+
+    /**
+     * @return the key field as a DES key
+     */
+    public SecretKey getSecretKey() {
+        if (secretKey == null) {
+            byte[] raw = Base64.getDecoder().decode(getKey());
+            secretKey = new SecretKeySpec(raw, 0, raw.length, "DES");
+        }
+        return secretKey;
+    }
+
+    /**
+     * @param field one of the six content field constants of {@link Ticket}
+     * @return {@code true} if that field has already been decrypted
+     */
+    public boolean isDecrypted(int field) {
+        return (decrypted & field) != 0;
+    }
+
+    /**
+     * Decrypts a field on first access, with one cipher shared by all the fields of the view.
+     */
+    private String field(int field) {
+        int index = Integer.numberOfTrailingZeros(field);
+        if ((decrypted & field) == 0) {
+            String encrypted = ticket.getField(field);
+            try {
+                if (encrypted != null) {
+                    if (cipher == null)
+                        cipher = Encryption.symmetricCipher(Cipher.DECRYPT_MODE, key);
+                    plain[index] = Encryption.decrypt(cipher, encrypted);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException("El campo " + Ticket.fieldName(field) + " del ticket "
+                        + ticket.getIdTicket() + " no pudo desencriptarse.", e);
+            }
+            decrypted |= field;
+        }
+        return plain[index];
+    }
+}
@@ -1,8 +1,16 @@
 package Model;
 
 import java.sql.Timestamp;
+import java.time.Clock;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Utility methods for working with timestamps and durations.
@@ -20,21 +28,318 @@ import java.time.format.DateTimeFormatter;
  *   <li>Compute requested lifetimes on the client side.</li>
  *   <li>Validate ticket lifetimes on the TGS/server side.</li>
  * </ul>
+ * <p>
+ * The services read the time through {@link #now()}, which by default is a
+ * {@link CachedClock}: a background thread stores the wall clock once per
+ * millisecond and every reader gets it with a single volatile read. Tests and
+ * benchmarks can install any other {@link Clock} with {@link #setClock(Clock)},
+ * e.g. {@link Clock#fixed}.
+ * <p>
+ * Ticket times travel as text in the format of {@link Timestamp#toString()}, in
+ * the local time zone, so peers built before this codec still read them.
+ * {@link #format(long)} always writes the fixed-width form
+ * {@code yyyy-MM-dd HH:mm:ss.SSS} and {@link #parse(CharSequence)} reads it
+ * (and the shorter fractions {@code Timestamp} produces) straight into epoch
+ * milliseconds. Neither creates a {@code Timestamp}; the offset of the local
+ * zone is worked out once per minute and reused.
  */
 public class TimeMethods {
 
     /**
-     * @return current timestamp based on {@link Instant#now()}
+     * Length of the strings written by {@link #format(long)}.
+     */
+    public static final int TIMESTAMP_LENGTH = 23;
+
+    private static volatile Clock clock = CachedClock.INSTANCE;
+
+    //  Last minute converted in each direction; replaced as a whole, so readers never see half an update.
+    private static volatile MinuteFormat lastFormatted;
+    private static volatile MinuteOffset lastParsed;
+
+    /**
+     * @return current time in epoch milliseconds, from the installed clock
+     */
+    public static long now() {
+        return clock.millis();
+    }
+
+    /**
+     * @return the clock behind {@link #now()}
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Replaces the clock behind {@link #now()} and the other time helpers.
+     *
+     * @param newClock clock to use, e.g. {@link Clock#fixed} in a test; {@code null} restores the {@link CachedClock}
+     */
+    public static void setClock(Clock newClock) {
+        clock = newClock == null ? CachedClock.INSTANCE : newClock;
+    }
+
+    /**
+     * Writes {@code millis} as {@code yyyy-MM-dd HH:mm:ss.SSS} in the local time zone.
+     *
+     * @param millis epoch milliseconds
+     * @return the formatted time, readable by {@link Timestamp#valueOf(String)}
+     */
+    public static String format(long millis) {
+        char[] text = new char[TIMESTAMP_LENGTH];
+        format(millis, text, 0);
+        return new String(text);
+    }
+
+    /**
+     * Same as {@link #format(long)}, appending to {@code out} without allocating.
+     *
+     * @param millis epoch milliseconds
+     * @param out    buffer to append to
+     */
+    public static void format(long millis, StringBuilder out) {
+        MinuteFormat minute = minuteFormat(Math.floorDiv(millis, 60000L));
+        out.append(minute.prefix);
+        int rest = (int) Math.floorMod(millis, 60000L);
+        int seconds = rest / 1000;
+        int fraction = rest % 1000;
+        out.append(':').append((char) ('0' + seconds / 10)).append((char) ('0' + seconds % 10)).append('.')
+                .append((char) ('0' + fraction / 100)).append((char) ('0' + fraction / 10 % 10))
+                .append((char) ('0' + fraction % 10));
+    }
+
+    /**
+     * Same as {@link #format(long)}, writing {@link #TIMESTAMP_LENGTH} characters into {@code out}.
+     *
+     * @param millis epoch milliseconds
+     * @param out    destination
+     * @param offset index of the first character to write
+     */
+    public static void format(long millis, char[] out, int offset) {
+        MinuteFormat minute = minuteFormat(Math.floorDiv(millis, 60000L));
+        minute.prefix.getChars(0, 16, out, offset);
+        int rest = (int) Math.floorMod(millis, 60000L);
+        int seconds = rest / 1000;
+        int fraction = rest % 1000;
+        out[offset + 16] = ':';
+        out[offset + 17] = (char) ('0' + seconds / 10);
+        out[offset + 18] = (char) ('0' + seconds % 10);
+        out[offset + 19] = '.';
+        out[offset + 20] = (char) ('0' + fraction / 100);
+        out[offset + 21] = (char) ('0' + fraction / 10 % 10);
+        out[offset + 22] = (char) ('0' + fraction % 10);
+    }
+
+    /**
+     * Reads a time written by {@link #format(long)} or {@link Timestamp#toString()}.
+     * <p>
+     * The usual form {@code yyyy-MM-dd HH:mm:ss[.f...]} is decoded digit by digit
+     * without allocating; anything else {@link Timestamp#valueOf(String)} accepts
+     * is handed to it.
+     *
+     * @param text time in the local time zone
+     * @return epoch milliseconds
+     * @throws IllegalArgumentException if the text is not a time
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        if (length < 19 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != ' '
+                || text.charAt(13) != ':' || text.charAt(16) != ':' || (length > 19 && text.charAt(19) != '.'))
+            return Timestamp.valueOf(text.toString()).getTime();
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        int fractionDigits = length - 20;
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 59 || fractionDigits == 0 || fractionDigits > 9)
+            return Timestamp.valueOf(text.toString()).getTime();
+        int millis = 0;
+        for (int i = 0; i < 3; i++) {
+            int digit = i < fractionDigits ? text.charAt(20 + i) - '0' : 0;
+            if (digit < 0 || digit > 9)
+                return Timestamp.valueOf(text.toString()).getTime();
+            millis = millis * 10 + digit;
+        }
+        for (int i = 3; i < fractionDigits; i++) {
+            char c = text.charAt(20 + i);
+            if (c < '0' || c > '9')
+                return Timestamp.valueOf(text.toString()).getTime();
+        }
+        long localMinute = (daysFromCivil(year, month, day) * 24 + hour) * 60 + minute;
+        return (localMinute - offsetMinutes(localMinute, year, month, day, hour, minute)) * 60000L
+                + second * 1000L + millis;
+    }
+
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days from 1970-01-01 to a date of the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static MinuteFormat minuteFormat(long epochMinute) {
+        MinuteFormat cached = lastFormatted;
+        if (cached != null && cached.epochMinute == epochMinute)
+            return cached;
+        LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochSecond(epochMinute * 60), ZoneId.systemDefault());
+        StringBuilder prefix = new StringBuilder(16);
+        pad(prefix, local.getYear(), 4).append('-');
+        pad(prefix, local.getMonthValue(), 2).append('-');
+        pad(prefix, local.getDayOfMonth(), 2).append(' ');
+        pad(prefix, local.getHour(), 2).append(':');
+        pad(prefix, local.getMinute(), 2);
+        cached = new MinuteFormat(epochMinute, prefix.toString());
+        lastFormatted = cached;
+        return cached;
+    }
+
+    private static long offsetMinutes(long localMinute, int year, int month, int day, int hour, int minute) {
+        MinuteOffset cached = lastParsed;
+        if (cached != null && cached.localMinute == localMinute)
+            return cached.offsetMinutes;
+        ZoneRules rules = ZoneId.systemDefault().getRules();
+        LocalDateTime local = LocalDateTime.of(year, month, day, hour, minute);
+        //  A time repeated when the clocks go back is read as the second one, like Timestamp.valueOf does.
+        ZoneOffsetTransition transition = rules.getTransition(local);
+        ZoneOffset offset = transition != null && transition.isOverlap()
+                ? transition.getOffsetAfter() : rules.getOffset(local);
+        cached = new MinuteOffset(localMinute, offset.getTotalSeconds() / 60);
+        lastParsed = cached;
+        return cached.offsetMinutes;
+    }
+
+    private static StringBuilder pad(StringBuilder out, int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) out.append('0');
+        return out.append(digits);
+    }
+
+    /**
+     * The formatted {@code yyyy-MM-dd HH:mm} of one minute.
+     */
+    private static final class MinuteFormat {
+        final long epochMinute;
+        final String prefix;
+
+        MinuteFormat(long epochMinute, String prefix) {
+            this.epochMinute = epochMinute;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * The offset of the local zone at one local minute.
+     */
+    private static final class MinuteOffset {
+        final long localMinute;
+        final long offsetMinutes;
+
+        MinuteOffset(long localMinute, long offsetMinutes) {
+            this.localMinute = localMinute;
+            this.offsetMinutes = offsetMinutes;
+        }
+    }
+
+    /**
+     * Millisecond clock read from a field a background thread refreshes.
+     * <p>
+     * The {@code TimeMethods-clock} daemon thread stores
+     * {@link System#currentTimeMillis()} about once per millisecond, so reading
+     * the time costs a volatile read. If the thread falls behind (a long GC pause,
+     * for instance) the clock lags by as much; ticket lifetimes are minutes, so
+     * that is harmless here.
+     * <p>
+     * {@link #withZone(ZoneId)} returns a view in another zone that reads the
+     * same field; there is only ever one ticker thread.
+     */
+    public static final class CachedClock extends Clock {
+
+        private static volatile long millis = System.currentTimeMillis();
+
+        static {
+            Thread ticker = new Thread(() -> {
+                while (true) {
+                    millis = System.currentTimeMillis();
+                    LockSupport.parkNanos(1_000_000L);
+                }
+            }, "TimeMethods-clock");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+
+        static final CachedClock INSTANCE = new CachedClock(null);
+
+        //  null follows the system default zone, even if it changes.
+        private final ZoneId zone;
+
+        private CachedClock(ZoneId zone) {
+            this.zone = zone;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zone == null ? ZoneId.systemDefault() : zone;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            if (zone == null)
+                throw new NullPointerException("zone");
+            return zone.equals(this.zone) ? this : new CachedClock(zone);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CachedClock && Objects.equals(zone, ((CachedClock) other).zone);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(zone) + 1;
+        }
+    }
+
+    /**
+     * @return current timestamp, read from the installed clock
      */
     public static Timestamp timeSignature(){
-        return Timestamp.from(Instant.now());
+        return new Timestamp(now());
     }
 
     /**
-     * @return current timestamp as a string using {@link Timestamp#toString()}
+     * @return current timestamp as a string, see {@link #format(long)}
      */
     public static String timeSignatureInString() {
-        return timeSignature().toString();
+        return format(now());
     }
 
     /**
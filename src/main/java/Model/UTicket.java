@@ -1,10 +1,16 @@
 package Model;
 
 import Security.Model.Encryption;
+import Security.Model.VersionedKey;
 
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Container and utility for Kerberos tickets sent over the network.
@@ -17,7 +23,7 @@ import java.util.ArrayList;
  *       response to client, etc.).</li>
  *   <li>Encrypt/decrypt all relevant fields of a specific ticket using a
  *       symmetric key.</li>
- *   <li>Search tickets by their {@code idTicket}.</li>
+ *   <li>Find tickets by their {@link TicketKind} or {@code idTicket}.</li>
  *   <li>Print tickets for debugging or demonstration purposes.</li>
  * </ul>
  * Conceptually, the {@code UTicket} is what the client "sees" and sends,
@@ -27,24 +33,71 @@ import java.util.ArrayList;
  * <br><br>
  * This class should be used to create, encrypt and decrypt all the Tickets created
  * to transit in the network.
+ * <p>
+ * Besides the list that is serialized, each {@code UTicket} keeps a transient
+ * slot per {@link TicketKind}, so the protocol steps find their tickets
+ * without scanning the list or comparing strings. The slots are rebuilt when
+ * a {@code UTicket} is deserialized; the serialized form is unchanged.
+ * <p>
+ * An envelope can be {@link #reset()} and filled again; its tickets are then
+ * kept aside and reused by the {@code generate...} methods. The services build
+ * their responses in the envelope {@link TicketPool} keeps for each thread.
  *
  * @author Silver_VS
  */
 public class UTicket implements Serializable {
+    //  The value computed for the baseline class, so an older peer's envelope still deserializes instead of
+    //  failing with InvalidClassException; its tickets carry no MAC, though, and are rejected when checked.
+    private static final long serialVersionUID = -1758614349624678214L;
+
+    private static final char MAC_SEPARATOR = '.';
+
+    private static final int KIND_COUNT = TicketKind.values().length;
+
     private final ArrayList<Ticket> tickets;
 
+    private transient Ticket[] slots;
+
+    //  Tickets released by reset(), handed out again by newTicket().
+    private transient ArrayList<Ticket> spare;
+
     /**
      * Method to initialize the arraylist for a new UTicket.
      */
     public UTicket() {
         tickets = new ArrayList<>();
+        slots = new Ticket[KIND_COUNT];
+        spare = new ArrayList<>();
     }
 
+    /**
+     * @return the tickets in the order they were added; add new ones through {@link #addTicket(Ticket)}
+     */
     public ArrayList<Ticket> getTickets() {
         return tickets;
     }
 
+    /**
+     * Returns the first ticket of the given kind.
+     *
+     * @param kind ticket kind
+     * @return the ticket, or {@code null} if there is none
+     */
+    public Ticket getTicket(TicketKind kind) {
+        return slots[kind.ordinal()];
+    }
+
+    /**
+     * Returns the first ticket with the given {@code idTicket}. The ids of
+     * {@link TicketKind} are answered from their slot; any other id is searched for.
+     *
+     * @param id ticket id
+     * @return the ticket, or {@code null} if there is none
+     */
     public Ticket searchTicket(String id) {
+        TicketKind kind = TicketKind.of(id);
+        if (kind != null)
+            return slots[kind.ordinal()];
         for (Ticket i : tickets) {
             if (i.getIdTicket().equals(id)) {
                 return i;
@@ -55,6 +108,45 @@ public class UTicket implements Serializable {
 
     public void addTicket(Ticket ticket) {
         tickets.add(ticket);
+        index(ticket);
+    }
+
+    /**
+     * Fills the slot of the ticket's kind, unless an earlier ticket holds it.
+     */
+    private void index(Ticket ticket) {
+        TicketKind kind = TicketKind.of(ticket.getIdTicket());
+        if (kind != null && slots[kind.ordinal()] == null)
+            slots[kind.ordinal()] = ticket;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        slots = new Ticket[KIND_COUNT];
+        spare = new ArrayList<>();
+        for (Ticket ticket : tickets) index(ticket);
+    }
+
+    /**
+     * Empties the envelope so it can carry another message. Its tickets are
+     * cleared and reused by the next {@code generate...} calls, so no ticket
+     * obtained from this envelope may be used after calling this method.
+     */
+    public void reset() {
+        for (int i = tickets.size() - 1; i >= 0; i--) {
+            Ticket ticket = tickets.get(i);
+            ticket.reset();
+            spare.add(ticket);
+        }
+        tickets.clear();
+        Arrays.fill(slots, null);
+    }
+
+    /**
+     * @return an empty ticket, reused from a previous {@link #reset()} when there is one
+     */
+    private Ticket newTicket() {
+        return spare.isEmpty() ? new Ticket() : spare.remove(spare.size() - 1);
     }
 
     /**
@@ -73,8 +165,8 @@ public class UTicket implements Serializable {
      * @param requestedLifetime requested lifetime for the issued ticket(s)
      */
     public void generateRequest(String userID, String serviceID, String requestedLifetime) {
-        Ticket request = new Ticket();
-        request.setIdTicket("request");
+        Ticket request = newTicket();
+        request.setIdTicket(TicketKind.REQUEST.getId());
         request.setFirstId(userID);
         request.setSecondId(serviceID);
         request.setLifetime(requestedLifetime);
@@ -93,8 +185,8 @@ public class UTicket implements Serializable {
      * @param key       session key encoded as Base64
      */
     public void generateResponse4User(String firstId, String timeStamp, String lifetime, String key) {
-        Ticket response = new Ticket();
-        response.setIdTicket("responseToClient");
+        Ticket response = newTicket();
+        response.setIdTicket(TicketKind.RESPONSE_TO_CLIENT.getId());
         response.setFirstId(firstId);
         response.setTimeStamp(timeStamp);
         response.setLifetime(lifetime);
@@ -115,9 +207,15 @@ public class UTicket implements Serializable {
      */
     public void generateTicket(String nameOfTicket, String firstID, String secondID, String timeStamp, String addressIP,
                                String lifetime, String key) {
-        addTicket(
-                new Ticket(nameOfTicket, firstID, secondID, addressIP, lifetime, timeStamp, key)
-        );
+        Ticket ticket = newTicket();
+        ticket.setIdTicket(nameOfTicket);
+        ticket.setFirstId(firstID);
+        ticket.setSecondId(secondID);
+        ticket.setAddressIP(addressIP);
+        ticket.setLifetime(lifetime);
+        ticket.setTimeStamp(timeStamp);
+        ticket.setKey(key);
+        addTicket(ticket);
     }
 
     /**
@@ -126,8 +224,8 @@ public class UTicket implements Serializable {
      * @param serviceID identifier of the target service/server
      */
     public void request4TGS(String serviceID) {
-        Ticket request = new Ticket();
-        request.setIdTicket("request4TGS");
+        Ticket request = newTicket();
+        request.setIdTicket(TicketKind.REQUEST_4_TGS.getId());
         request.setFirstId(serviceID);
         addTicket(request);
     }
@@ -147,8 +245,8 @@ public class UTicket implements Serializable {
      * @param timeStamp creation time of the authenticator
      */
     public void addAuthenticator(String firstID, String addressIP, String timeStamp) {
-        Ticket auth = new Ticket();
-        auth.setIdTicket("auth");
+        Ticket auth = newTicket();
+        auth.setIdTicket(TicketKind.AUTH.getId());
         auth.setFirstId(firstID);
         auth.setAddressIP(addressIP);
         auth.setTimeStamp(timeStamp);
@@ -156,45 +254,88 @@ public class UTicket implements Serializable {
     }
 
 
-    public boolean[] getFilled(Ticket ticket) {
-        boolean[] existingFields = new boolean[6];
-        existingFields[0] = ticket.isFilledFirstId();
-        existingFields[1] = ticket.isFilledSecondId();
-        existingFields[2] = ticket.isFilledAddressIP();
-        existingFields[3] = ticket.isFilledLifetime();
-        existingFields[4] = ticket.isFilledTimeStamp();
-        existingFields[5] = ticket.isFilledKey();
-        return existingFields;
-    }
-
     /**
-     * Encrypts all populated fields of the ticket identified by {@code id}
-     * using the provided symmetric key.
+     * Encrypts the ticket identified by {@code id} with an unversioned key
+     * (a session key, for instance); its layer is recorded with kvno {@code 0}.
      *
      * @param key symmetric key to use (typically DES)
      * @param id  ticket id (e.g. {@code "TGT"}, {@code "auth"})
      * @return {@code true} if encryption succeeds, {@code false} otherwise
+     * @see #encryptTicket(SecretKey, int, String)
      */
     public boolean encryptTicket(SecretKey key, String id) {
-        try {
-            Ticket toEncrypt = searchTicket(id);
+        return encryptTicket(key, 0, id);
+    }
+
+    /**
+     * Encrypts the ticket identified by {@code id} with the given version of a long-term key.
+     *
+     * @param key versioned key to use, usually the current one of the {@link Security.Model.KeyTable}
+     * @param id  ticket id
+     * @return {@code true} if encryption succeeds, {@code false} otherwise
+     * @see #encryptTicket(SecretKey, int, String)
+     */
+    public boolean encryptTicket(VersionedKey key, String id) {
+        return encryptTicket(key.getKey(), key.getKvno(), id);
+    }
+
+    /**
+     * Same as {@link #encryptTicket(SecretKey, String)}, for a ticket of a known kind.
+     *
+     * @param key  symmetric key to use
+     * @param kind ticket kind
+     * @return {@code true} if encryption succeeds, {@code false} otherwise
+     */
+    public boolean encryptTicket(SecretKey key, TicketKind kind) {
+        return encrypt(key, 0, getTicket(kind));
+    }
 
+    /**
+     * Same as {@link #encryptTicket(VersionedKey, String)}, for a ticket of a known kind.
+     *
+     * @param key  versioned key to use
+     * @param kind ticket kind
+     * @return {@code true} if encryption succeeds, {@code false} otherwise
+     */
+    public boolean encryptTicket(VersionedKey key, TicketKind kind) {
+        return encrypt(key.getKey(), key.getKvno(), getTicket(kind));
+    }
+
+    /**
+     * Encrypts all populated fields of the ticket identified by {@code id}
+     * using the provided symmetric key, and seals the result with a keyed MAC.
+     * <p>
+     * A MAC left by a previous encryption layer is encrypted like any other
+     * field, so nested layers (e.g. the TGT encrypted with AS-TGS and then
+     * with AS-Client) each keep their own MAC and are verified one at a time.
+     * The key version number of the layer is prepended, in clear, to the
+     * ticket's {@code kvno} list so the receiver can find the right key
+     * (see {@link #peekKvno(String)}).
+     *
+     * @param key  symmetric key to use (typically DES)
+     * @param kvno version number of {@code key}, or {@code 0} if it is not versioned
+     * @param id   ticket id (e.g. {@code "TGT"}, {@code "auth"})
+     * @return {@code true} if encryption succeeds, {@code false} otherwise
+     */
+    public boolean encryptTicket(SecretKey key, int kvno, String id) {
+        return encrypt(key, kvno, searchTicket(id));
+    }
+
+    private boolean encrypt(SecretKey key, int kvno, Ticket toEncrypt) {
+        try {
             if (toEncrypt == null)
                 return false;
 
-            boolean[] existingFields = getFilled(toEncrypt);
-            if (existingFields[0])
-                toEncrypt.setFirstId(Encryption.symmetricEncrypt(key, toEncrypt.getFirstId()));
-            if (existingFields[1])
-                toEncrypt.setSecondId(Encryption.symmetricEncrypt(key, toEncrypt.getSecondId()));
-            if (existingFields[2])
-                toEncrypt.setAddressIP(Encryption.symmetricEncrypt(key, toEncrypt.getAddressIP()));
-            if (existingFields[3])
-                toEncrypt.setLifetime(Encryption.symmetricEncrypt(key, toEncrypt.getLifetime()));
-            if (existingFields[4])
-                toEncrypt.setTimeStamp(Encryption.symmetricEncrypt(key, toEncrypt.getTimeStamp()));
-            if (existingFields[5])
-                toEncrypt.setKey(Encryption.symmetricEncrypt(key, toEncrypt.getKey()));
+            //  One cipher and one MAC for the whole layer, rather than one of each per field.
+            Cipher cipher = Encryption.symmetricCipher(Cipher.ENCRYPT_MODE, key);
+            toEncrypt.transformFields(Ticket.CONTENT_FIELDS, cipher, Encryption::encrypt);
+            //  The MAC of a previous layer travels encrypted behind ours: "<mac>.<encrypted inner mac>".
+            String innerMac = toEncrypt.isFilledMac() ? Encryption.encrypt(cipher, toEncrypt.getMac()) : null;
+            toEncrypt.setKvno(toEncrypt.getKvno() == null ? String.valueOf(kvno) : kvno + "." + toEncrypt.getKvno());
+            Mac mac = Encryption.symmetricMac(key);
+            updateMac(mac, toEncrypt, innerMac);
+            String sealedMac = Encryption.finishMac(mac);
+            toEncrypt.setMac(innerMac == null ? sealedMac : sealedMac + MAC_SEPARATOR + innerMac);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -202,39 +343,126 @@ public class UTicket implements Serializable {
         }
     }
 
+    /**
+     * Returns the key version number of the outermost encryption layer of the
+     * ticket identified by {@code id}, without decrypting anything.
+     *
+     * @param id ticket id
+     * @return the kvno of the outer layer, or {@code 0} if the ticket is missing or unversioned
+     */
+    public int peekKvno(String id) {
+        return peekKvno(searchTicket(id));
+    }
+
+    /**
+     * Same as {@link #peekKvno(String)}, for a ticket of a known kind.
+     *
+     * @param kind ticket kind
+     * @return the kvno of the outer layer, or {@code 0} if the ticket is missing or unversioned
+     */
+    public int peekKvno(TicketKind kind) {
+        return peekKvno(getTicket(kind));
+    }
+
+    private static int peekKvno(Ticket ticket) {
+        if (ticket == null || ticket.getKvno() == null)
+            return 0;
+        String kvno = ticket.getKvno();
+        int separator = kvno.indexOf('.');
+        try {
+            return Integer.parseInt(separator < 0 ? kvno : kvno.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Checks the keyed MAC of the ticket identified by {@code id} without
+     * decrypting any of its fields.
+     * <p>
+     * This is a single HMAC pass over the ciphertext, so tampered or corrupted
+     * tickets can be rejected before paying for one DES decryption per field.
+     *
+     * @param key symmetric key the ticket is expected to be encrypted with
+     * @param id  ticket id
+     * @return {@code true} if the ticket exists and its MAC is valid, {@code false} otherwise
+     */
+    public boolean verifyTicket(SecretKey key, String id) {
+        return verify(key, searchTicket(id));
+    }
+
+    private boolean verify(SecretKey key, Ticket toVerify) {
+        try {
+            if (toVerify == null || !toVerify.isFilledMac())
+                return false;
+
+            String sealedMac = toVerify.getMac();
+            int separator = sealedMac.indexOf(MAC_SEPARATOR);
+            String mac = separator < 0 ? sealedMac : sealedMac.substring(0, separator);
+            String innerMac = separator < 0 ? null : sealedMac.substring(separator + 1);
+            Mac computed = Encryption.symmetricMac(key);
+            updateMac(computed, toVerify, innerMac);
+            return Encryption.verifyMac(computed, mac);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * Decrypts all populated fields of the ticket identified by {@code id}
      * using the provided symmetric key.
+     * <p>
+     * The ticket's MAC is checked first through {@link #verifyTicket(SecretKey, String)};
+     * if it does not match, no field is decrypted and the ticket is left untouched.
      *
      * @param key symmetric key to use
      * @param id  ticket id
-     * @return {@code true} if decryption succeeds, {@code false} otherwise
+     * @return {@code true} if the MAC is valid and decryption succeeds, {@code false} otherwise
      */
     public boolean decryptTicket(SecretKey key, String id) {
-        try {
-            Ticket toDecrypt = searchTicket(id);
+        return decrypt(key, searchTicket(id));
+    }
 
-            if (toDecrypt == null)
-                return false;
+    /**
+     * Same as {@link #decryptTicket(SecretKey, String)}, for a ticket of a known kind.
+     *
+     * @param key  symmetric key to use
+     * @param kind ticket kind
+     * @return {@code true} if the MAC is valid and decryption succeeds, {@code false} otherwise
+     */
+    public boolean decryptTicket(SecretKey key, TicketKind kind) {
+        return decrypt(key, getTicket(kind));
+    }
 
-            boolean[] existingFields = getFilled(toDecrypt);
-            if (existingFields[0]) {
-                toDecrypt.setFirstId(Encryption.symmetricDecrypt(key, toDecrypt.getFirstId()));
-            }
-            if (existingFields[1]) {
-                toDecrypt.setSecondId(Encryption.symmetricDecrypt(key, toDecrypt.getSecondId()));
-            }
-            if (existingFields[2]) {
-                toDecrypt.setAddressIP(Encryption.symmetricDecrypt(key, toDecrypt.getAddressIP()));
-            }
-            if (existingFields[3]) {
-                toDecrypt.setLifetime(Encryption.symmetricDecrypt(key, toDecrypt.getLifetime()));
-            }
-            if (existingFields[4]) {
-                toDecrypt.setTimeStamp(Encryption.symmetricDecrypt(key, toDecrypt.getTimeStamp()));
-            }
-            if (existingFields[5]) {
-                toDecrypt.setKey(Encryption.symmetricDecrypt(key, toDecrypt.getKey()));
+    /**
+     * Checks the MAC of the ticket of the given kind and returns a view that
+     * decrypts its fields only when they are read (see {@link TicketView}).
+     * Unlike {@link #decryptTicket(SecretKey, TicketKind)}, the ticket itself
+     * stays encrypted.
+     *
+     * @param key  symmetric key of the ticket's outer (and only remaining) layer
+     * @param kind ticket kind
+     * @return the view, or {@code null} if the ticket is missing or its MAC is not valid
+     */
+    public TicketView openTicket(SecretKey key, TicketKind kind) {
+        Ticket ticket = getTicket(kind);
+        return verify(key, ticket) ? new TicketView(ticket, key) : null;
+    }
+
+    private boolean decrypt(SecretKey key, Ticket toDecrypt) {
+        if (!verify(key, toDecrypt))
+            return false;
+        try {
+            Cipher cipher = Encryption.symmetricCipher(Cipher.DECRYPT_MODE, key);
+            toDecrypt.transformFields(Ticket.CONTENT_FIELDS, cipher, Encryption::decrypt);
+            int separator = toDecrypt.getMac().indexOf(MAC_SEPARATOR);
+            if (separator < 0)
+                toDecrypt.setMac(null);
+            else
+                toDecrypt.setMac(Encryption.decrypt(cipher, toDecrypt.getMac().substring(separator + 1)));
+            if (toDecrypt.getKvno() != null) {
+                int kvnoSeparator = toDecrypt.getKvno().indexOf('.');
+                toDecrypt.setKvno(kvnoSeparator < 0 ? null : toDecrypt.getKvno().substring(kvnoSeparator + 1));
             }
             return true;
         } catch (Exception e) {
@@ -243,35 +471,54 @@ public class UTicket implements Serializable {
         }
     }
 
+    /**
+     * Adds to {@code mac}, in a fixed order, every value covered by a ticket's MAC: the ticket id,
+     * the six (encrypted) fields, the kvno list and the encrypted MAC of the inner layer, if any.
+     */
+    private static void updateMac(Mac mac, Ticket ticket, String innerMac) {
+        Encryption.updateMac(mac, ticket.getIdTicket());
+        Encryption.updateMac(mac, ticket.getFirstId());
+        Encryption.updateMac(mac, ticket.getSecondId());
+        Encryption.updateMac(mac, ticket.getAddressIP());
+        Encryption.updateMac(mac, ticket.getLifetime());
+        Encryption.updateMac(mac, ticket.getTimeStamp());
+        Encryption.updateMac(mac, ticket.getKey());
+        Encryption.updateMac(mac, ticket.getKvno());
+        Encryption.updateMac(mac, innerMac);
+    }
+
+    /**
+     * Describes every ticket of this envelope, one field per line, in the same
+     * layout as {@link #printTicket(UTicket)}. The text includes session keys,
+     * so it is only meant for debug logs (see {@link Log}).
+     *
+     * @return the description
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        for (Ticket ticket : tickets) {
+            text.append("idTicket: ").append(ticket.getIdTicket()).append('\n');
+            ticket.forEachField(Ticket.CONTENT_FIELDS,
+                    (field, value) -> text.append(Ticket.fieldName(field)).append(": ").append(value).append('\n'));
+        }
+        return text.toString();
+    }
+
     public void printTicket(UTicket uTicket) {
         for (Ticket i : uTicket.getTickets()) {
-            printTicket(uTicket, i.getIdTicket());
+            printTicket(i);
         }
     }
 
     public void printTicket(UTicket uTicket, String ticketId) {
-        Ticket ticket = uTicket.searchTicket(ticketId);
+        printTicket(uTicket.searchTicket(ticketId));
+    }
+
+    private void printTicket(Ticket ticket) {
         if (ticket != null) {
-            boolean[] filled = uTicket.getFilled(ticket);
             System.out.println("idTicket: " + ticket.getIdTicket());
-            if (filled[0]) {
-                System.out.println("firstId: " + ticket.getFirstId());
-            }
-            if (filled[1]) {
-                System.out.println("secondId: " + ticket.getSecondId());
-            }
-            if (filled[2]) {
-                System.out.println("addressIP: " + ticket.getAddressIP());
-            }
-            if (filled[3]) {
-                System.out.println("lifetime: " + ticket.getLifetime());
-            }
-            if (filled[4]) {
-                System.out.println("timeStamp: " + ticket.getTimeStamp());
-            }
-            if (filled[5]) {
-                System.out.println("key: " + ticket.getKey());
-            }
+            ticket.forEachField(Ticket.CONTENT_FIELDS,
+                    (field, value) -> System.out.println(Ticket.fieldName(field) + ": " + value));
         }
     }
 
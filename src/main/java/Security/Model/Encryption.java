@@ -1,9 +1,11 @@
 package Security.Model;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Base64;
@@ -16,12 +18,20 @@ import java.util.Base64;
  *   <li>Encrypt/decrypt arbitrary strings using a preconfigured {@link Cipher}.</li>
  *   <li>Encrypt a string with an RSA public key and decrypt it with an RSA private key.</li>
  *   <li>Encrypt/decrypt a string with a symmetric DES key.</li>
+ *   <li>Compute and verify a keyed MAC over a set of (already encrypted) strings.</li>
  * </ul>
+ * Code that transforms several values with the same key (every field of a
+ * ticket, for instance) gets one cipher from {@link #symmetricCipher(int, SecretKey)}
+ * and one MAC from {@link #symmetricMac(SecretKey)}, and passes them to
+ * {@link #encrypt(Cipher, String)}, {@link #decrypt(Cipher, String)} and
+ * {@link #updateMac(Mac, String)} for each value, instead of calling the
+ * one-shot methods that look up and initialize a new instance every time.
  * <p>
  * Algorithms:
  * <ul>
  *   <li>Asymmetric: {@code RSA} via {@code Cipher.getInstance("RSA")}.</li>
  *   <li>Symmetric: {@code DES} via {@code Cipher.getInstance("DES")}.</li>
+ *   <li>Integrity: {@code HmacSHA256} keyed with the encoded bytes of the symmetric key.</li>
  * </ul>
  * The chosen algorithms are intentionally simple and intended for educational
  * purposes; they are not meant for production-grade security.
@@ -39,8 +49,7 @@ public class Encryption {
     public static String encrypt(Cipher encryptCipher, String toEncrypt) throws Exception {
         byte[] bytesToEncrypt = toEncrypt.getBytes(StandardCharsets.UTF_8);
         byte[] bytesEncrypted = encryptCipher.doFinal(bytesToEncrypt);
-        bytesEncrypted = Base64.getEncoder().encode(bytesEncrypted);
-        return new String(bytesEncrypted);
+        return Base64.getEncoder().encodeToString(bytesEncrypted);
     }
 
     /**
@@ -52,10 +61,9 @@ public class Encryption {
      * @throws Exception if the decryption operation fails
      */
     public static String decrypt(Cipher decryptCypher, String toDecrypt) throws Exception {
-        byte[] bytesToDecrypt = Base64.getDecoder().decode(toDecrypt.getBytes());
-//        byte[] bytesToDecrypt = toDecrypt.getBytes();
+        byte[] bytesToDecrypt = Base64.getDecoder().decode(toDecrypt);
         byte[] bytesDecrypted = decryptCypher.doFinal(bytesToDecrypt);
-        return new String(bytesDecrypted);
+        return new String(bytesDecrypted, StandardCharsets.UTF_8);
     }
 
     /**
@@ -95,6 +103,22 @@ public class Encryption {
         return decrypt(decryptCypher, toDecrypt);
     }
 
+    /**
+     * Returns a new {@code "DES"} cipher initialized with a symmetric key, to
+     * encrypt or decrypt several values through {@link #encrypt(Cipher, String)}
+     * or {@link #decrypt(Cipher, String)}.
+     *
+     * @param mode      {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @param secretKey symmetric DES key
+     * @return the initialized cipher
+     * @throws Exception if the cipher cannot be created or initialized
+     */
+    public static Cipher symmetricCipher(int mode, SecretKey secretKey) throws Exception {
+        Cipher cipher = Cipher.getInstance("DES");
+        cipher.init(mode, secretKey);
+        return cipher;
+    }
+
     /**
      * Encrypts a string using a symmetric DES key.
      * <p>
@@ -108,9 +132,7 @@ public class Encryption {
      * @throws Exception if the encryption operation fails
      */
     public static String symmetricEncrypt(SecretKey secretKey, String toEncrypt) throws Exception {
-        Cipher encryptCypher = Cipher.getInstance("DES");
-        encryptCypher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return encrypt(encryptCypher, toEncrypt);
+        return encrypt(symmetricCipher(Cipher.ENCRYPT_MODE, secretKey), toEncrypt);
     }
 
     /**
@@ -126,8 +148,69 @@ public class Encryption {
      * @throws Exception if the decryption operation fails
      */
     public static String symmetricDecrypt(SecretKey secretKey, String toDecrypt) throws Exception {
-        Cipher decryptCypher = Cipher.getInstance("DES");
-        decryptCypher.init(Cipher.DECRYPT_MODE, secretKey);
-        return decrypt(decryptCypher, toDecrypt);
+        return decrypt(symmetricCipher(Cipher.DECRYPT_MODE, secretKey), toDecrypt);
+    }
+
+    /**
+     * Returns a new {@code HmacSHA256} MAC keyed with the encoded bytes of a
+     * symmetric key. Values are added with {@link #updateMac(Mac, String)} and
+     * the result read with {@link #finishMac(Mac)} or checked with
+     * {@link #verifyMac(Mac, String)}.
+     *
+     * @param secretKey symmetric key whose encoded bytes key the MAC
+     * @return the initialized MAC
+     * @throws Exception if the MAC cannot be created or initialized
+     */
+    public static Mac symmetricMac(SecretKey secretKey) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256"));
+        return mac;
+    }
+
+    /**
+     * Adds one value to a MAC, framed with a presence marker and its length, so
+     * a {@code null} value, an empty value and a shifted boundary between two
+     * values all produce different MACs.
+     *
+     * @param mac   a MAC from {@link #symmetricMac(SecretKey)}
+     * @param value value to authenticate; {@code null} means "absent"
+     */
+    public static void updateMac(Mac mac, String value) {
+        if (value == null) {
+            mac.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mac.update((byte) 1);
+        mac.update((byte) (bytes.length >>> 24));
+        mac.update((byte) (bytes.length >>> 16));
+        mac.update((byte) (bytes.length >>> 8));
+        mac.update((byte) bytes.length);
+        mac.update(bytes);
+    }
+
+    /**
+     * @param mac a MAC from {@link #symmetricMac(SecretKey)} with every value added
+     * @return Base64-encoded MAC; the MAC is reset and can be used again
+     */
+    public static String finishMac(Mac mac) {
+        return Base64.getEncoder().encodeToString(mac.doFinal());
+    }
+
+    /**
+     * Compares, in constant time, the MAC of the values added to {@code mac}
+     * with one received with them.
+     *
+     * @param mac         a MAC from {@link #symmetricMac(SecretKey)} with every value added
+     * @param expectedMac Base64-encoded MAC received with the values
+     * @return {@code true} if the MAC matches, {@code false} otherwise
+     */
+    public static boolean verifyMac(Mac mac, String expectedMac) {
+        if (expectedMac == null)
+            return false;
+        return MessageDigest.isEqual(
+                finishMac(mac).getBytes(StandardCharsets.UTF_8),
+                expectedMac.getBytes(StandardCharsets.UTF_8)
+        );
     }
 }
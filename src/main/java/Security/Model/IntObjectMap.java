@@ -0,0 +1,187 @@
+package Security.Model;
+
+import java.util.Arrays;
+
+/**
+ * Compact hash map from {@code int} keys to objects, used for tables keyed by
+ * {@link PrincipalRegistry} ids.
+ * <p>
+ * Keys and values live in two parallel arrays with linear probing, so an entry
+ * costs one {@code int} and one reference: no boxed key and no entry object as
+ * in a {@link java.util.HashMap}. A {@code null} value marks an empty slot, so
+ * {@code null} values cannot be stored.
+ * <p>
+ * The map is not thread-safe. {@link KeyTable} publishes it copy-on-write,
+ * never modifying a copy once other threads can see it.
+ * <p>
+ * The slots can be walked without allocating, with {@link #capacity()},
+ * {@link #keyAt(int)} and {@link #valueAt(int)}:
+ * <pre>
+ *   for (int i = 0; i &lt; map.capacity(); i++)
+ *       if (map.valueAt(i) != null) use(map.keyAt(i), map.valueAt(i));
+ * </pre>
+ *
+ * @param <V> type of the values
+ */
+public final class IntObjectMap<V> {
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of entries to hold without resizing
+     */
+    public IntObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    private IntObjectMap(IntObjectMap<V> other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    /**
+     * @param key key to look up
+     * @return the value stored under {@code key}, or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return (V) values[i];
+        }
+        return null;
+    }
+
+    /**
+     * @param key   key to store under
+     * @param value value to store, never {@code null}
+     * @return the value previously stored under {@code key}, or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null)
+            throw new NullPointerException("IntObjectMap no admite valores nulos.");
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * @param key key to remove
+     * @return the value that was stored under {@code key}, or {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                break;
+        }
+        if (values[i] == null)
+            return null;
+        V removed = (V) values[i];
+        //  Shift back the entries of the same probe run, so lookups never stop at the hole.
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every entry, keeping the capacity.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return an independent copy of the map
+     */
+    public IntObjectMap<V> copy() {
+        return new IntObjectMap<>(this);
+    }
+
+    /**
+     * @return number of slots, for walking them with {@link #keyAt(int)} and {@link #valueAt(int)}
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param slot slot index, below {@link #capacity()}
+     * @return the key in that slot; meaningless if {@link #valueAt(int)} is {@code null}
+     */
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @param slot slot index, below {@link #capacity()}
+     * @return the value in that slot, or {@code null} if it is empty
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+            int j = slot(oldKeys[i], mask);
+            while (values[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
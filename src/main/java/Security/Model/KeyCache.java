@@ -0,0 +1,358 @@
+package Security.Model;
+
+import Model.Log;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Read-through, in-memory cache for the symmetric keys stored in the SecretVault.
+ * <p>
+ * The Kerberos services ask for the same long-term keys (AS–Client, AS–TGS,
+ * TGS–AS, TGS–Server, Server–TGS) on every request. Instead of opening the
+ * corresponding {@code .key} file each time, this class:
+ * <ul>
+ *   <li>Loads each {@link SecretKey} from disk through {@link KeyMethods} the first
+ *       time it is requested and installs it in the {@link KeyTable} under the
+ *       version number stored with it.</li>
+ *   <li>Serves every later request for the same file from the key table.</li>
+ *   <li>Registers the key's directory with a {@link WatchService}; a background
+ *       daemon thread reloads the file as soon as it is created or modified and
+ *       installs its key if it carries a newer version. The former version stays
+ *       available for tickets issued before the rotation.</li>
+ * </ul>
+ * Versions are never counted here: the kvno is the one the key was saved with
+ * (see {@link KeyMethods#saveSecret(SecretKey, String, String, String, int)}),
+ * so every role and every restart agrees on it. A file that cannot be read in
+ * full is ignored until its next change.
+ * Keys are named after the absolute path of their file, so the same cache
+ * can serve several SecretVault directories.
+ * <p>
+ * When a directory contains a packed {@link KeyVault} ({@link KeyVault#FILE_NAME}),
+ * keys are looked up in the vault unless their {@code .key} file was modified
+ * after the vault was written: a key redistributed or rotated since the last
+ * {@link KeyVault#pack(String, String)} is read from its own file instead of
+ * being shadowed by the stale vault entry. Keys the vault does not hold are
+ * always read from their file. Replacing the vault file reloads every key
+ * cached from that directory.
+ * <p>
+ * RSA keys ({@code public<X>.key}, {@code private<X>.key}) are cached as well,
+ * already decoded through {@link java.security.KeyFactory}; a change to their
+ * file simply drops the entry. {@link #preload(String...)} warms the whole
+ * cache in parallel at startup, so the first request does not pay for it.
+ */
+public class KeyCache {
+
+    private static final Map<Path, String[]> sources = new ConcurrentHashMap<>();
+    private static final Map<Path, Key> asymmetric = new ConcurrentHashMap<>();
+    private static final Map<Path, KeyVault> vaults = new ConcurrentHashMap<>();
+    private static final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private static WatchService watchService;
+    private static volatile boolean ready;
+
+    /**
+     * Returns the current symmetric key shared between {@code whoAreYou} and {@code withWho},
+     * reading {@code <path>/Symmetric-<whoAreYou>-<withWho>.key} only on a cache miss.
+     *
+     * @param path      directory containing the symmetric key files (ending with a path separator)
+     * @param whoAreYou logical name of the actor reading the key
+     * @param withWho   logical name of the other actor sharing the key
+     * @return the cached or freshly loaded {@link SecretKey}
+     * @throws Exception if the key file cannot be read
+     */
+    public static SecretKey recoverSecret(String path, String whoAreYou, String withWho) throws Exception {
+        return recoverVersioned(path, whoAreYou, withWho).getKey();
+    }
+
+    /**
+     * Returns the version {@code kvno} of the symmetric key shared between
+     * {@code whoAreYou} and {@code withWho}, as resolved by {@link KeyTable#lookup(String, int)}.
+     *
+     * @param path      directory containing the symmetric key files (ending with a path separator)
+     * @param whoAreYou logical name of the actor reading the key
+     * @param withWho   logical name of the other actor sharing the key
+     * @param kvno      key version number carried by the ticket to decrypt
+     * @return the matching {@link SecretKey}
+     * @throws Exception if the key file cannot be read
+     */
+    public static SecretKey recoverSecret(String path, String whoAreYou, String withWho, int kvno) throws Exception {
+        recoverVersioned(path, whoAreYou, withWho);
+        return KeyTable.lookup(keyName(path, whoAreYou, withWho), kvno);
+    }
+
+    /**
+     * Returns the current version of the symmetric key shared between
+     * {@code whoAreYou} and {@code withWho}, to encrypt a new ticket with.
+     *
+     * @param path      directory containing the symmetric key files (ending with a path separator)
+     * @param whoAreYou logical name of the actor reading the key
+     * @param withWho   logical name of the other actor sharing the key
+     * @return the current key and its version number
+     * @throws Exception if the key file cannot be read
+     */
+    public static VersionedKey recoverVersioned(String path, String whoAreYou, String withWho) throws Exception {
+        Path file = keyFile(path + "Symmetric-" + whoAreYou + "-" + withWho + ".key");
+        VersionedKey cached = KeyTable.current(file.toString());
+        if (cached != null && sources.containsKey(file))
+            return cached;
+
+        //  We start watching before reading, so a change made while we read is still picked up.
+        watch(file.getParent());
+        sources.put(file, new String[]{path, whoAreYou, withWho});
+        //  Versions recovered from the write-ahead log are kept; the file only adds a newer one.
+        return install(file, load(file, path, whoAreYou, withWho));
+    }
+
+    /**
+     * Returns the RSA public key of {@code whosKey}, reading and decoding
+     * {@code <path>/public<whosKey>.key} only on a cache miss.
+     *
+     * @param path    directory containing the key files (ending with a path separator)
+     * @param whosKey logical identifier of the key owner
+     * @return the cached or freshly decoded {@link PublicKey}
+     * @throws Exception if the key file cannot be read or decoded
+     */
+    public static PublicKey recoverPublic(String path, String whosKey) throws Exception {
+        Path file = keyFile(path + "public" + whosKey + ".key");
+        Key cached = asymmetric.get(file);
+        if (cached != null)
+            return (PublicKey) cached;
+
+        watch(file.getParent());
+        KeyVault vault = vaultFor(file);
+        PublicKey loaded = vault == null ? null : vault.recoverPublic(whosKey);
+        if (loaded == null)
+            loaded = KeyMethods.recoverPublic(path, whosKey);
+        asymmetric.put(file, loaded);
+        return loaded;
+    }
+
+    /**
+     * Returns the RSA private key of {@code whosKey}, reading and decoding
+     * {@code <path>/private<whosKey>.key} only on a cache miss.
+     *
+     * @param path    directory containing the key files (ending with a path separator)
+     * @param whosKey logical identifier of the key owner
+     * @return the cached or freshly decoded {@link PrivateKey}
+     * @throws Exception if the key file cannot be read or decoded
+     */
+    public static PrivateKey recoverPrivate(String path, String whosKey) throws Exception {
+        Path file = keyFile(path + "private" + whosKey + ".key");
+        Key cached = asymmetric.get(file);
+        if (cached != null)
+            return (PrivateKey) cached;
+
+        watch(file.getParent());
+        KeyVault vault = vaultFor(file);
+        PrivateKey loaded = vault == null ? null : vault.recoverPrivate(whosKey);
+        if (loaded == null)
+            loaded = KeyMethods.recoverPrivate(path, whosKey);
+        asymmetric.put(file, loaded);
+        return loaded;
+    }
+
+    /**
+     * Loads every key of the given directories before the first request arrives.
+     * <p>
+     * Each {@code .key} file following the SecretVault naming conventions is read
+     * and decoded as its own task on a pool with one thread per processor, so the
+     * file reads and the RSA {@code KeyFactory} decoding overlap instead of running
+     * one after the other. Keys come from the directory's {@link KeyVault} when
+     * there is one, exactly as they would on a later request. The method returns
+     * once every key is cached; only then does {@link #isReady()} report {@code true}.
+     *
+     * @param directories directories to scan (each ending with a path separator)
+     * @return number of keys loaded
+     * @throws Exception the first error found while loading a key
+     */
+    public static int preload(String... directories) throws Exception {
+        List<Callable<Key>> tasks = new ArrayList<>();
+        for (String directory : directories) {
+            File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(".key"));
+            if (files == null)
+                continue;
+            for (File file : files) {
+                KeyVault.Record record = KeyVault.Record.fromFileName(file.getName());
+                if (record == null)
+                    continue;
+                if (record.kind == KeyVault.SECRET)
+                    tasks.add(() -> recoverSecret(directory, record.owner, record.peer));
+                else if (record.kind == KeyVault.PUBLIC)
+                    tasks.add(() -> recoverPublic(directory, record.owner));
+                else
+                    tasks.add(() -> recoverPrivate(directory, record.owner));
+            }
+        }
+        if (tasks.isEmpty()) {
+            ready = true;
+            return 0;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            for (Future<Key> loaded : pool.invokeAll(tasks)) {
+                try {
+                    loaded.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        ready = true;
+        return tasks.size();
+    }
+
+    /**
+     * @return {@code true} once {@link #preload(String...)} has loaded every key it found
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Reloads the key of the given file, if it was already loaded, and rotates
+     * it in the {@link KeyTable} when its content changed.
+     *
+     * @param fileAddress path of the key file
+     */
+    public static void refresh(String fileAddress) {
+        refresh(keyFile(fileAddress));
+    }
+
+    /**
+     * Forgets every cached key and vault; the next request reloads them from disk.
+     */
+    public static void invalidateAll() {
+        sources.clear();
+        asymmetric.clear();
+        vaults.clear();
+        KeyTable.clear();
+    }
+
+    private static void refresh(Path file) {
+        asymmetric.remove(file);
+        String[] source = sources.get(file);
+        if (source == null)
+            return;
+        try {
+            install(file, load(file, source[0], source[1], source[2]));
+        } catch (Exception e) {
+            //  Most likely the file is still being written; its next event brings us back here.
+            Log.warn("No se ha podido recargar la llave; se conserva la versi\u00F3n actual.", "archivo", file.getFileName(),
+                    "motivo", e.getMessage());
+        }
+    }
+
+    private static void refreshDirectory(Path directory) {
+        vaults.remove(directory);
+        asymmetric.keySet().removeIf(file -> file.getParent().equals(directory));
+        for (Path file : sources.keySet()) {
+            if (file.getParent().equals(directory))
+                refresh(file);
+        }
+    }
+
+    private static VersionedKey install(Path file, VersionedKey loaded) {
+        VersionedKey current = KeyTable.observe(file.toString(), loaded.getKvno(), loaded.getKey());
+        if (current.getKvno() == loaded.getKvno() && current.getKey() != loaded.getKey()
+                && !Arrays.equals(current.getKey().getEncoded(), loaded.getKey().getEncoded()))
+            Log.warn("La llave ha cambiado sin cambiar de versi\u00F3n; se conserva la anterior.", "archivo", file.getFileName(),
+                    "kvno", loaded.getKvno());
+        return current;
+    }
+
+    private static VersionedKey load(Path file, String path, String whoAreYou, String withWho) throws Exception {
+        KeyVault vault = vaultFor(file);
+        VersionedKey loaded = vault == null ? null : vault.recoverVersioned(whoAreYou, withWho);
+        return loaded != null ? loaded : KeyMethods.recoverVersionedSecret(path, whoAreYou, withWho);
+    }
+
+    /**
+     * Returns the vault to read {@code file}'s key from, or {@code null} when the
+     * directory has no vault or the file was modified after the vault was written.
+     */
+    private static KeyVault vaultFor(Path file) throws IOException {
+        Path vaultFile = file.getParent().resolve(KeyVault.FILE_NAME);
+        try {
+            if (Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(vaultFile)) > 0)
+                return null;
+        } catch (IOException e) {
+            //  One of them does not exist: the vault, if any, is all we have.
+        }
+        return vaultOf(file.getParent());
+    }
+
+    private static KeyVault vaultOf(Path directory) throws IOException {
+        KeyVault vault = vaults.get(directory);
+        if (vault == null) {
+            Path vaultFile = directory.resolve(KeyVault.FILE_NAME);
+            if (!Files.exists(vaultFile))
+                return null;
+            vault = KeyVault.open(vaultFile.toString());
+            vaults.put(directory, vault);
+        }
+        return vault;
+    }
+
+    private static String keyName(String path, String whoAreYou, String withWho) {
+        return keyFile(path + "Symmetric-" + whoAreYou + "-" + withWho + ".key").toString();
+    }
+
+    private static Path keyFile(String fileAddress) {
+        return Paths.get(fileAddress).toAbsolutePath().normalize();
+    }
+
+    private static synchronized void watch(Path directory) throws IOException {
+        if (watchedDirectories.contains(directory))
+            return;
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(KeyCache::processEvents, "KeyCache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirectories.add(directory);
+    }
+
+    private static void processEvents() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) watchKey.watchable();
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    //  Some events were lost: we cannot tell which files changed, so we reload the whole directory.
+                    refreshDirectory(directory);
+                } else if (event.context().toString().equals(KeyVault.FILE_NAME)) {
+                    //  A new vault may hold any key of the directory.
+                    refreshDirectory(directory);
+                } else {
+                    refresh(directory.resolve((Path) event.context()));
+                }
+            }
+            if (!watchKey.reset())
+                watchedDirectories.remove(directory);
+        }
+    }
+}
@@ -2,9 +2,16 @@ package Security.Model;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
 import java.security.spec.KeySpec;
 import java.security.spec.PKCS8EncodedKeySpec;
@@ -23,10 +30,25 @@ import java.util.Base64;
  * </ul>
  * The keys are stored as raw encoded bytes in {@code .key} files under the
  * {@code Security/SecretVault/Generated} and {@code Security/SecretVault/Connection}
- * directories.
+ * directories. A symmetric key file also stores the key version number
+ * ({@code kvno}) after the key: 8 key bytes followed by a big-endian
+ * {@code int}. Files holding only the 8 key bytes, written before versions
+ * were stored, are read as version {@link KeyVault#DEFAULT_KVNO}. Every file
+ * is written to a temporary file first and then moved into place, so readers
+ * never see a partially written key.
  */
 public class KeyMethods {
 
+    /**
+     * PBKDF2 iterations used by {@link #deriveSecretKey(String, String)}.
+     */
+    public static final int PBKDF2_ITERATIONS = 4096;
+
+    /**
+     * Length of a DES key, and of a symmetric key file that stores no version.
+     */
+    public static final int SECRET_KEY_LENGTH = 8;
+
     /**
      * Generates an RSA key pair for the given actor and stores it under the
      * specified directory.
@@ -86,16 +108,35 @@ public class KeyMethods {
         return KeyGenerator.getInstance("DES").generateKey();
     }
 
-    public static void saveKey(Key key, String fileAddress) throws Exception{
+    /**
+     * Derives a symmetric DES key from a password with PBKDF2 (HMAC-SHA256).
+     * <p>
+     * The salt should be unique per principal (its name, for instance), so two
+     * users with the same password still end up with different keys.
+     *
+     * @param password password of the principal
+     * @param salt     salt for the derivation
+     * @return the derived DES {@link SecretKey}
+     * @throws Exception if PBKDF2 is not available
+     */
+    public static SecretKey deriveSecretKey(String password, String salt) throws Exception {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt.getBytes(StandardCharsets.UTF_8),
+                PBKDF2_ITERATIONS, 64);
+        try {
+            return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "DES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
 
-        byte[] keyBytes = key.getEncoded();
-        FileOutputStream stream = new FileOutputStream(fileAddress);
-        stream.write(keyBytes);
-        stream.close();
+    public static void saveKey(Key key, String fileAddress) throws Exception{
+        writeKeyFile(key.getEncoded(), fileAddress);
     }
 
     /**
-     * Persists a symmetric secret key to disk.
+     * Persists a symmetric secret key to disk as the next version of the key
+     * already stored for the pair, or as {@link KeyVault#DEFAULT_KVNO} if there is none.
      * <p>
      * The resulting filename is:
      * {@code <path>/Symmetric-<owner>-<withWho>.key}.
@@ -107,8 +148,46 @@ public class KeyMethods {
      * @throws Exception if file operations fail
      */
     public static void saveSecret(SecretKey key, String path, String owner,String withWho) throws Exception {
-        String fileAddress = path + "Symmetric-" + owner + "-" + withWho + ".key";
-        saveKey(key, fileAddress);
+        saveSecret(key, path, owner, withWho, nextKvno(path, owner, withWho));
+    }
+
+    /**
+     * Persists a symmetric secret key to disk together with its version number.
+     * <p>
+     * Both actors sharing a key must save it with the same {@code kvno}, so the
+     * version a ticket carries means the same key on both sides.
+     *
+     * @param key      symmetric key to save
+     * @param path     directory path (ending with a path separator)
+     * @param owner    logical name of the actor storing the key (e.g. {@code "AS"})
+     * @param withWho  logical name of the other actor sharing the key (e.g. {@code "Client"})
+     * @param kvno     version number of {@code key}
+     * @throws Exception if file operations fail
+     */
+    public static void saveSecret(SecretKey key, String path, String owner, String withWho, int kvno)
+            throws Exception {
+        byte[] keyBytes = key.getEncoded();
+        ByteBuffer file = ByteBuffer.allocate(keyBytes.length + 4);
+        file.put(keyBytes).putInt(kvno);
+        writeKeyFile(file.array(), path + "Symmetric-" + owner + "-" + withWho + ".key");
+    }
+
+    /**
+     * Returns the version number a new symmetric key for the pair should be saved with:
+     * one past the version stored in its current file, or {@link KeyVault#DEFAULT_KVNO}
+     * if there is no readable file yet.
+     *
+     * @param path      directory containing the symmetric key files (ending with a path separator)
+     * @param whoAreYou logical name of the actor storing the key
+     * @param withWho   logical name of the other actor sharing the key
+     * @return the next key version number
+     */
+    public static int nextKvno(String path, String whoAreYou, String withWho) {
+        try {
+            return recoverVersionedSecret(path, whoAreYou, withWho).getKvno() + 1;
+        } catch (Exception e) {
+            return KeyVault.DEFAULT_KVNO;
+        }
     }
 
     /**
@@ -154,9 +233,39 @@ public class KeyMethods {
      * @throws Exception if file operations fail
      */
     public static SecretKey recoverSecret(String path, String whoAreYou,String withWho) throws Exception {
+        return recoverVersionedSecret(path, whoAreYou, withWho).getKey();
+    }
+
+    /**
+     * Recovers a symmetric DES key from disk together with its version number.
+     *
+     * @param path      directory containing the symmetric key files (ending with a path separator)
+     * @param whoAreYou logical name of the actor reading the key
+     * @param withWho   logical name of the other actor sharing the key
+     * @return the recovered key and its version number
+     * @throws Exception if the file cannot be read or is not a symmetric key file
+     */
+    public static VersionedKey recoverVersionedSecret(String path, String whoAreYou, String withWho)
+            throws Exception {
         String fileAddress = path + "Symmetric-" + whoAreYou + "-" + withWho + ".key";
-        byte[] bytes = readFromSomething(fileAddress);
-        return new SecretKeySpec(bytes, "DES");
+        return decodeSecret(readFromSomething(fileAddress), fileAddress);
+    }
+
+    /**
+     * Decodes the content of a symmetric key file.
+     *
+     * @param bytes       content of the file
+     * @param fileAddress path of the file, for the error message
+     * @return the key and its version number
+     * @throws IOException if the content has neither of the two symmetric key file lengths
+     */
+    static VersionedKey decodeSecret(byte[] bytes, String fileAddress) throws IOException {
+        if (bytes.length == SECRET_KEY_LENGTH)
+            return new VersionedKey(KeyVault.DEFAULT_KVNO, new SecretKeySpec(bytes, "DES"));
+        if (bytes.length != SECRET_KEY_LENGTH + 4)
+            throw new IOException("El archivo " + fileAddress + " no contiene una llave sim\u00E9trica completa.");
+        ByteBuffer file = ByteBuffer.wrap(bytes);
+        return new VersionedKey(file.getInt(SECRET_KEY_LENGTH), new SecretKeySpec(bytes, 0, SECRET_KEY_LENGTH, "DES"));
     }
 
     public static PrivateKey recoverPrivate(String path, String whosKey) throws Exception{
@@ -211,16 +320,23 @@ public class KeyMethods {
 
     /**
      * Utility method to read all bytes from a file.
+     * <p>
+     * The whole file is read, regardless of how many bytes the underlying
+     * stream reports as available.
      *
      * @param address file path
      * @return byte array with the file contents
      * @throws Exception if file operations fail
      */
     public static byte[] readFromSomething(String address) throws Exception{
-        FileInputStream stream = new FileInputStream(address);
-        byte[] bytes = new byte[stream.available()];
-        stream.read(bytes);
-        stream.close();
-        return bytes;
+        return Files.readAllBytes(Paths.get(address));
+    }
+
+    private static void writeKeyFile(byte[] content, String fileAddress) throws Exception {
+        Path target = Paths.get(fileAddress);
+        Path temporary = Paths.get(fileAddress + ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        KeyCache.refresh(fileAddress);
     }
 }
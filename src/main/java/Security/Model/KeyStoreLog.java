@@ -0,0 +1,271 @@
+package Security.Model;
+
+import Model.Log;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record types of the key store's {@link WriteAheadLog}, and recovery on startup.
+ * <p>
+ * Every change to the key store of a Kerberos role goes through one log:
+ * <ul>
+ *   <li>{@link #PRINCIPAL_PUT} / {@link #PRINCIPAL_REMOVE}: changes to the
+ *       {@link PrincipalDatabase}, logged by {@code put}, {@code putAll} and {@code remove}.</li>
+ *   <li>{@link #KEY_VERSION}: a new version installed in the {@link KeyTable}
+ *       (a first load or a rotation).</li>
+ * </ul>
+ * {@link #recover(String, PrincipalDatabase)} replays the log into those
+ * stores and only then attaches it to them, so the replay itself is not logged again.
+ * <p>
+ * So that the log does not grow forever, {@link #snapshot()} writes a
+ * {@link KeyStoreSnapshot} of the stores next to it and drops the records the
+ * image already covers; {@link #scheduleSnapshots(long)} does so periodically.
+ * A restart then loads the snapshot and replays only the tail of the log.
+ * <p>
+ * Note that the log holds key material in clear, like the {@code .key} files
+ * next to it, and must be protected the same way.
+ */
+public class KeyStoreLog {
+
+    /**
+     * Default name of the log inside the {@code Generated} directory, prefixed by the role.
+     */
+    public static final String FILE_NAME = "KeyStore.wal";
+
+    public static final byte PRINCIPAL_PUT = 1;
+    public static final byte PRINCIPAL_REMOVE = 2;
+    public static final byte KEY_VERSION = 3;
+
+    private static WriteAheadLog log;
+    private static PrincipalDatabase principals;
+    private static String snapshotAddress;
+    private static long snapshotSeq;
+    private static ScheduledExecutorService snapshotter;
+
+    /**
+     * Loads the latest snapshot, opens the log, replays the records after the
+     * snapshot and attaches the log to the principal database and the
+     * {@link KeyTable}.
+     * <p>
+     * The snapshot is looked for next to the log, with the {@code .snapshot}
+     * extension instead of {@code .wal}.
+     * <p>
+     * A principal is only restored if the log holds a version at least as new as
+     * the one in the database, so a database updated by another tool while the
+     * role was down is never rolled back.
+     *
+     * @param logAddress path of the log file
+     * @param principals principal database of the role, or {@code null} if it has none
+     * @return the opened log
+     * @throws IOException if the snapshot or the log cannot be read or a record cannot be applied
+     */
+    public static synchronized WriteAheadLog recover(String logAddress, PrincipalDatabase principals) throws IOException {
+        long start = System.currentTimeMillis();
+        //  Nothing restored or replayed may be logged again.
+        KeyTable.attachLog(null);
+
+        String imageAddress = snapshotAddress(logAddress);
+        KeyStoreSnapshot image = KeyStoreSnapshot.load(imageAddress);
+        long baseSeq = 0;
+        if (image != null) {
+            baseSeq = image.getSeq();
+            Log.info("Llaves cargadas de la instant\u00E1nea.", "llaves", image.getKeyCount(), "secuencia", baseSeq);
+        }
+
+        WriteAheadLog opened = WriteAheadLog.open(logAddress, baseSeq);
+        long replayed = opened.replay(baseSeq, record -> apply(record, principals));
+        Log.info("Cambios recuperados del registro.", "registro", opened.getPath().getFileName(),
+                "cambios", replayed, "ms", System.currentTimeMillis() - start);
+
+        if (principals != null)
+            principals.attachLog(opened);
+        KeyTable.attachLog(opened);
+
+        log = opened;
+        KeyStoreLog.principals = principals;
+        snapshotAddress = imageAddress;
+        snapshotSeq = baseSeq;
+        return opened;
+    }
+
+    /**
+     * Writes a snapshot of the stores attached by {@link #recover} and compacts
+     * the log up to it.
+     * <p>
+     * The principal database is forced to disk first, since the snapshot does
+     * not copy it. Nothing is written if no change was logged since the last
+     * snapshot.
+     *
+     * @return the sequence number covered by the snapshot
+     * @throws IOException if the snapshot cannot be written or the log cannot be compacted
+     */
+    public static synchronized long snapshot() throws IOException {
+        if (log == null)
+            throw new IllegalStateException("No se ha recuperado ning\u00FAn registro.");
+        long seq = principals != null ? principals.appliedSeq(log) : log.getLastSeq();
+        if (seq == snapshotSeq)
+            return seq;
+
+        if (principals != null)
+            principals.force();
+        KeyStoreSnapshot.write(snapshotAddress, seq);
+        WriteAheadLog.await(log.compact(seq));
+        snapshotSeq = seq;
+        return seq;
+    }
+
+    /**
+     * Writes a snapshot every {@code intervalMillis} on a background thread.
+     * Calling it again replaces the previous schedule.
+     *
+     * @param intervalMillis time between the end of a snapshot and the start of the next one
+     */
+    public static synchronized void scheduleSnapshots(long intervalMillis) {
+        if (snapshotter != null)
+            snapshotter.shutdownNow();
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "KeyStoreLog-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (Exception e) {
+                Log.error("No se ha podido escribir la instant\u00E1nea del almac\u00E9n de llaves.", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the log attached by {@link #recover}, or {@code null} before recovery
+     */
+    static synchronized WriteAheadLog log() {
+        return log;
+    }
+
+    /**
+     * @return the principal database given to {@link #recover}
+     */
+    static synchronized PrincipalDatabase principals() {
+        return principals;
+    }
+
+    /**
+     * @return path of the snapshot written by {@link #snapshot()}
+     */
+    static synchronized String snapshotAddress() {
+        return snapshotAddress;
+    }
+
+    /**
+     * @return sequence number of the latest snapshot; older records may be gone from the log
+     */
+    static synchronized long snapshotSeq() {
+        return snapshotSeq;
+    }
+
+    /**
+     * @param logAddress path of a log file
+     * @return path of the snapshot kept next to it
+     */
+    static String snapshotAddress(String logAddress) {
+        return logAddress.endsWith(".wal")
+                ? logAddress.substring(0, logAddress.length() - ".wal".length()) + ".snapshot"
+                : logAddress + ".snapshot";
+    }
+
+    /**
+     * Applies one logged change to the stores of this process.
+     *
+     * @param record     record read back from the log
+     * @param principals principal database, or {@code null} to skip principal records
+     * @throws IOException if the record is malformed or the database is full
+     */
+    static void apply(WriteAheadLog.Record record, PrincipalDatabase principals) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.getPayload()));
+        switch (record.getType()) {
+            case PRINCIPAL_PUT: {
+                Principal principal = new Principal(in.readUTF(), in.readByte(), in.readInt(), readBytes(in),
+                        in.readLong(), in.readInt());
+                Principal current = principals == null ? null : principals.lookup(principal.getName());
+                if (principals != null && (current == null || current.getKvno() <= principal.getKvno()))
+                    principals.put(principal);
+                break;
+            }
+            case PRINCIPAL_REMOVE: {
+                String name = in.readUTF();
+                int kvno = in.readInt();
+                Principal current = principals == null ? null : principals.lookup(name);
+                if (current != null && current.getKvno() <= kvno)
+                    principals.remove(name);
+                break;
+            }
+            case KEY_VERSION:
+                KeyTable.observe(in.readUTF(), in.readInt(), new SecretKeySpec(readBytes(in), "DES"));
+                break;
+            default:
+                Log.warn("Registro de tipo desconocido ignorado.", "tipo", record.getType(), "secuencia", record.getSeq());
+        }
+    }
+
+    static byte[] principalPut(Principal principal) {
+        return encode(out -> {
+            out.writeUTF(principal.getName());
+            out.writeByte(principal.getEnctype());
+            out.writeInt(principal.getKvno());
+            writeBytes(out, principal.getKey());
+            out.writeLong(principal.getMaxLifetime());
+            out.writeInt(principal.getFlags());
+        });
+    }
+
+    static byte[] principalRemove(String name, int kvno) {
+        return encode(out -> {
+            out.writeUTF(name);
+            out.writeInt(kvno);
+        });
+    }
+
+    static byte[] keyVersion(String name, VersionedKey key) {
+        return encode(out -> {
+            out.writeUTF(name);
+            out.writeInt(key.getKvno());
+            writeBytes(out, key.getKey().getEncoded());
+        });
+    }
+
+    private static byte[] encode(Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            //  A ByteArrayOutputStream never fails.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,618 @@
+package Security.Model;
+
+import Model.Log;
+import Model.Messenger;
+import Model.ReplicationObject;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Primary–replica replication of the key store over {@link Messenger} sockets.
+ * <p>
+ * The primary is an AS or TGS that owns the key store: it has recovered its
+ * {@link WriteAheadLog} through {@link KeyStoreLog#recover} and calls
+ * {@link #startPrimary(int, SecretKey)}. A replica calls
+ * {@link #startReplica(String, int, PrincipalDatabase, SecretKey)} and then
+ * serves AS-REQ/TGS-REQ from its own copy of the stores. Each replica
+ * connection goes through three steps:
+ * <ol>
+ *   <li>Handshake. The replica sends a {@link ReplicationObject#HELLO} with the
+ *       last sequence number it has applied ({@code 0} after a restart) and a
+ *       random nonce; the primary answers with a {@link ReplicationObject#CHALLENGE}
+ *       carrying its own nonce, and the replica proves that it holds the
+ *       replication key (see {@link #replicationKey}) with an HMAC over both
+ *       nonces and its sequence number in a {@link ReplicationObject#AUTH}.
+ *       A connection that fails the proof is closed before anything is sent.</li>
+ *   <li>Catch-up. If the replica has just started, or the records after that
+ *       number are no longer in the primary's log (a snapshot compacted them),
+ *       the primary first sends its latest {@link KeyStoreSnapshot}, every
+ *       principal of its database and a {@link ReplicationObject#SNAPSHOT_END};
+ *       the replica then removes the principals of its own database the
+ *       primary did not send, whose removal may have been compacted away with
+ *       the rest of the log. The primary then sends the records of the log
+ *       after the snapshot, or after the replica's number, followed by
+ *       {@link ReplicationObject#CAUGHT_UP}.</li>
+ *   <li>Tail. Every record the log commits from then on is forwarded as soon
+ *       as it is durable (see {@link WriteAheadLog#follow}), and a
+ *       {@link ReplicationObject#HEARTBEAT} is sent every
+ *       {@value #HEARTBEAT_MILLIS} ms when nothing changes.</li>
+ * </ol>
+ * After the handshake every message from the primary travels as a
+ * {@link ReplicationObject#SEALED}: AES/GCM under a key derived from the
+ * replication key and both nonces, with a message counter as IV, so the
+ * snapshot, the principals' keys and the session keys never cross the network
+ * in clear, and a replica only applies what the primary holding the same
+ * replication key sent, in order. Only the handshake objects are deserialized
+ * from an unauthenticated peer, and the streams accept no class other than
+ * {@link ReplicationObject}.
+ * <p>
+ * The primary starts following the log before it reads the catch-up records,
+ * and every record carries its sequence number, so nothing committed during
+ * catch-up is lost or applied twice. At most {@value #TAIL_CAPACITY} records
+ * wait for one replica; a replica that falls further behind is disconnected
+ * rather than let its queue grow on the primary. A replica that loses the
+ * connection retries every {@value #RETRY_MILLIS} ms and asks only for what it
+ * is missing.
+ * <p>
+ * Replicas are read-only: they attach no log of their own, so changes to
+ * principals or keys must be made on the primary.
+ */
+public class KeyStoreReplication {
+
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * Peer name of the replication key file, {@code Symmetric-<Role>-Replica.key}.
+     */
+    public static final String KEY_PEER = "Replica";
+
+    private static final int NONCE_LENGTH = 16;
+    private static final int STREAM_KEY_LENGTH = 16;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Objects written between two {@link ObjectOutputStream#reset()}, so the
+     * stream does not keep every message it has sent.
+     */
+    private static final int RESET_EVERY = 1024;
+
+    /**
+     * Records the primary queues for one replica before disconnecting it.
+     */
+    static final int TAIL_CAPACITY = 65536;
+
+    private static final CountDownLatch caughtUp = new CountDownLatch(1);
+    private static volatile long appliedSeq;
+    private static volatile long primarySeq;
+
+    //  Only used by the replica's follower thread, between a SNAPSHOT and its SNAPSHOT_END.
+    private static long snapshotSeq;
+    private static Set<String> snapshotPrincipals;
+
+    /**
+     * Returns the key the primary of {@code role} and its replicas share, stored
+     * in {@code <path>Symmetric-<role>-Replica.key}. The primary creates it on
+     * its first start; the file must then be copied to every replica's
+     * {@code Connection} directory, like the other pairwise keys.
+     *
+     * @param path   directory containing the symmetric key files (ending with a path separator)
+     * @param role   {@code "AS"} or {@code "TGS"}
+     * @param create whether to generate the key when there is no file yet, as the primary does
+     * @return the replication key
+     * @throws Exception if the key file cannot be read or written
+     */
+    public static SecretKey replicationKey(String path, String role, boolean create) throws Exception {
+        if (create && !Files.exists(Paths.get(path + "Symmetric-" + role + "-" + KEY_PEER + ".key")))
+            KeyMethods.saveSecret(KeyMethods.generateSecretKey(), path, role, KEY_PEER);
+        return KeyMethods.recoverSecret(path, role, KEY_PEER);
+    }
+
+    /**
+     * Starts serving the key store's change feed to replicas on {@code port}.
+     * Each replica is fed by its own daemon thread, once it has proved that it
+     * holds {@code replicationKey}.
+     *
+     * @param port           TCP port replicas connect to
+     * @param replicationKey key shared with the replicas (see {@link #replicationKey})
+     * @return the listening socket; closing it stops accepting replicas
+     * @throws IOException if the port cannot be opened
+     */
+    public static ServerSocket startPrimary(int port, SecretKey replicationKey) throws IOException {
+        if (KeyStoreLog.log() == null)
+            throw new IllegalStateException("El primario necesita un registro recuperado por KeyStoreLog.recover.");
+        ServerSocket serverSocket = Messenger.serverSocketInitializer(port);
+        if (serverSocket == null)
+            throw new IOException("No se ha podido abrir el puerto de replicaci\u00F3n " + port + ".");
+
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                Socket socket = Messenger.requestAccepter(serverSocket);
+                if (socket == null)
+                    continue;
+                Thread feeder = new Thread(() -> feed(socket, replicationKey),
+                        "KeyStoreReplication-" + socket.getRemoteSocketAddress());
+                feeder.setDaemon(true);
+                feeder.start();
+            }
+        }, "KeyStoreReplication-primary");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("Replicaci\u00F3n del almac\u00E9n de llaves en marcha.", "puerto", port);
+        return serverSocket;
+    }
+
+    /**
+     * Starts following the primary at {@code primaryHost:primaryPort} on a
+     * daemon thread, applying its changes to the {@link KeyTable} and
+     * {@code principals}.
+     *
+     * @param primaryHost    host of the primary
+     * @param primaryPort    replication port of the primary
+     * @param principals     local principal database, or {@code null} to ignore principals
+     * @param replicationKey key shared with the primary (see {@link #replicationKey})
+     */
+    public static void startReplica(String primaryHost, int primaryPort, PrincipalDatabase principals,
+                                    SecretKey replicationKey) {
+        Thread follower = new Thread(() -> {
+            while (true) {
+                try (Socket socket = Messenger.socketInitializer(primaryHost, primaryPort)) {
+                    //  A primary that stops sending heartbeats is treated as gone.
+                    socket.setSoTimeout((int) (HEARTBEAT_MILLIS * 10));
+                    ObjectOutputStream out = Messenger.objectSenderInitializer(socket);
+                    if (out == null)
+                        throw new IOException("Sin flujo de salida.");
+                    long from = appliedSeq;
+                    byte[] replicaNonce = nonce();
+                    out.writeObject(new ReplicationObject(ReplicationObject.HELLO, from, (byte) 0, replicaNonce));
+                    out.flush();
+                    ObjectInputStream in = input(socket);
+
+                    ReplicationObject challenge = (ReplicationObject) in.readObject();
+                    if (challenge.getKind() != ReplicationObject.CHALLENGE || !isNonce(challenge.getPayload()))
+                        throw new IOException("El primario no ha enviado un reto de replicaci\u00F3n.");
+                    byte[] primaryNonce = challenge.getPayload();
+                    out.writeObject(new ReplicationObject(ReplicationObject.AUTH, from, (byte) 0,
+                            proof(replicationKey, replicaNonce, primaryNonce, from)));
+                    out.flush();
+
+                    Seal opener = new Seal(streamKey(replicationKey, replicaNonce, primaryNonce), Cipher.DECRYPT_MODE);
+                    while (true) {
+                        ReplicationObject sealed = (ReplicationObject) in.readObject();
+                        if (sealed.getKind() != ReplicationObject.SEALED)
+                            throw new IOException("Mensaje de replicaci\u00F3n sin cifrar.");
+                        receive(decode(opener.apply(sealed.getPayload())), principals);
+                    }
+                } catch (Exception e) {
+                    Log.warn("Sin conexi\u00F3n con el primario; se reintentar\u00E1.", "primario", primaryHost + ":" + primaryPort,
+                            "motivo", e.getMessage());
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "KeyStoreReplication-replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Waits until the replica has caught up with the primary once.
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return {@code true} if the replica caught up within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static boolean awaitCaughtUp(long timeoutMillis) throws InterruptedException {
+        return caughtUp.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return last sequence number of the primary's log applied by this replica
+     */
+    public static long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    /**
+     * @return number of records the primary had sent when it last reported, minus those applied here
+     */
+    public static long getLag() {
+        return Math.max(0, primarySeq - appliedSeq);
+    }
+
+    /**
+     * Applies one message from the primary; runs on the replica's follower thread.
+     */
+    private static void receive(ReplicationObject message, PrincipalDatabase principals) throws IOException {
+        switch (message.getKind()) {
+            case ReplicationObject.SNAPSHOT:
+                if (message.getPayload() != null)
+                    KeyStoreSnapshot.restore(ByteBuffer.wrap(message.getPayload()), "del primario");
+                //  appliedSeq only moves at SNAPSHOT_END, so a replica cut off before it asks for the snapshot again.
+                snapshotSeq = message.getSeq();
+                snapshotPrincipals = principals == null ? null : new HashSet<>();
+                break;
+            case ReplicationObject.PRINCIPAL:
+                KeyStoreLog.apply(new WriteAheadLog.Record(message.getSeq(), KeyStoreLog.PRINCIPAL_PUT,
+                        message.getPayload()), principals);
+                if (snapshotPrincipals != null)
+                    snapshotPrincipals.add(principalName(message.getPayload()));
+                break;
+            case ReplicationObject.SNAPSHOT_END:
+                if (snapshotPrincipals != null)
+                    sweep(principals, snapshotPrincipals);
+                snapshotPrincipals = null;
+                appliedSeq = snapshotSeq;
+                break;
+            case ReplicationObject.RECORD:
+                if (message.getSeq() > appliedSeq) {
+                    KeyStoreLog.apply(new WriteAheadLog.Record(message.getSeq(), message.getType(),
+                            message.getPayload()), principals);
+                    appliedSeq = message.getSeq();
+                }
+                break;
+            case ReplicationObject.CAUGHT_UP:
+                primarySeq = message.getSeq();
+                Log.info("R\u00E9plica al d\u00EDa con el primario.", "secuencia", appliedSeq);
+                caughtUp.countDown();
+                break;
+            case ReplicationObject.HEARTBEAT:
+                primarySeq = message.getSeq();
+                break;
+            default:
+                Log.warn("Mensaje de replicaci\u00F3n desconocido ignorado.", "tipo", message.getKind());
+        }
+    }
+
+    /**
+     * Removes from the replica's database every principal the primary did not
+     * send with its snapshot. A principal the primary's scan missed because it
+     * was being written is not lost: that write is in the log after the
+     * snapshot, and is sent right after this.
+     */
+    private static void sweep(PrincipalDatabase principals, Set<String> sent) throws IOException {
+        List<String> removed = new ArrayList<>();
+        principals.forEach(principal -> {
+            if (!sent.contains(principal.getName()))
+                removed.add(principal.getName());
+        });
+        for (String name : removed)
+            principals.remove(name);
+        if (!removed.isEmpty())
+            Log.info("Principales borrados en el primario eliminados de la r\u00E9plica.", "principales", removed.size());
+    }
+
+    private static String principalName(byte[] principalPut) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(principalPut)).readUTF();
+    }
+
+    /**
+     * Feeds one replica until its connection fails; runs on the primary.
+     */
+    private static void feed(Socket socket, SecretKey replicationKey) {
+        WriteAheadLog log = KeyStoreLog.log();
+        BlockingQueue<WriteAheadLog.Record> tail = new ArrayBlockingQueue<>(TAIL_CAPACITY);
+        AtomicBoolean behind = new AtomicBoolean();
+        //  A full queue drops the follower (the log stops calling it), and the feeder then disconnects.
+        WriteAheadLog.Handler follower = record -> {
+            if (!tail.offer(record)) {
+                behind.set(true);
+                throw new IOException("Cola de la r\u00E9plica llena.");
+            }
+        };
+        try (Socket connection = socket) {
+            //  An unauthenticated peer gets as long as a replica waits for a heartbeat to finish the handshake.
+            connection.setSoTimeout((int) (HEARTBEAT_MILLIS * 10));
+            ObjectOutputStream out = Messenger.objectSenderInitializer(connection);
+            if (out == null)
+                return;
+            out.flush();
+            ObjectInputStream in = input(connection);
+
+            ReplicationObject hello = (ReplicationObject) in.readObject();
+            if (hello.getKind() != ReplicationObject.HELLO || !isNonce(hello.getPayload()))
+                throw new IOException("Saludo de replicaci\u00F3n no v\u00E1lido.");
+            long from = hello.getSeq();
+            byte[] replicaNonce = hello.getPayload();
+            byte[] primaryNonce = nonce();
+            out.writeObject(new ReplicationObject(ReplicationObject.CHALLENGE, 0, (byte) 0, primaryNonce));
+            out.flush();
+            ReplicationObject auth = (ReplicationObject) in.readObject();
+            if (auth.getKind() != ReplicationObject.AUTH || auth.getSeq() != from
+                    || !MessageDigest.isEqual(auth.getPayload(), proof(replicationKey, replicaNonce, primaryNonce, from))) {
+                Log.warn("R\u00E9plica rechazada: no conoce la llave de replicaci\u00F3n.", "origen",
+                        connection.getRemoteSocketAddress());
+                return;
+            }
+            connection.setSoTimeout(0);
+            Log.info("R\u00E9plica conectada.", "origen", connection.getRemoteSocketAddress(), "secuencia", from);
+
+            //  We follow the log before reading it, so every record is either read or queued.
+            log.follow(follower);
+            Stream stream = new Stream(out, new Seal(streamKey(replicationKey, replicaNonce, primaryNonce),
+                    Cipher.ENCRYPT_MODE));
+            long sent = catchUp(log, from, stream);
+            stream.send(ReplicationObject.CAUGHT_UP, sent, (byte) 0, null);
+            stream.flush();
+
+            while (true) {
+                //  Everything queued before the overflow has been sent; the replica resumes from there.
+                if (behind.get() && tail.isEmpty())
+                    throw new IOException("La r\u00E9plica se ha quedado atr\u00E1s m\u00E1s de " + TAIL_CAPACITY + " registros.");
+                WriteAheadLog.Record record = tail.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    stream.send(ReplicationObject.HEARTBEAT, sent, (byte) 0, null);
+                } else {
+                    do {
+                        if (record.getSeq() <= sent)
+                            continue;
+                        if (record.getSeq() != sent + 1)
+                            throw new IOException("Falta el registro " + (sent + 1) + " en el flujo de cambios.");
+                        stream.send(ReplicationObject.RECORD, record.getSeq(), record.getType(), record.getPayload());
+                        sent = record.getSeq();
+                    } while ((record = tail.poll()) != null);
+                }
+                stream.flush();
+            }
+        } catch (Exception e) {
+            Log.info("R\u00E9plica desconectada.", "motivo", e.getMessage());
+        } finally {
+            log.unfollow(follower);
+        }
+    }
+
+    /**
+     * Sends what the replica is missing from the log, preceded by a snapshot if
+     * the log no longer holds it.
+     *
+     * @return last sequence number sent
+     */
+    private static long catchUp(WriteAheadLog log, long from, Stream stream) throws IOException {
+        //  A replica that has just started (from 0) gets the principals too, whatever its database kept.
+        boolean needsSnapshot = from == 0 || from < KeyStoreLog.snapshotSeq() || from > log.getLastSeq();
+        while (true) {
+            long start = needsSnapshot ? sendSnapshot(stream) : from;
+            long[] sent = {start};
+            try {
+                log.replay(start, record -> {
+                    //  Only the first record can be out of place, if a compaction ran since we chose the start.
+                    if (record.getSeq() != sent[0] + 1)
+                        throw new Gap();
+                    stream.send(ReplicationObject.RECORD, record.getSeq(), record.getType(), record.getPayload());
+                    sent[0] = record.getSeq();
+                });
+                return sent[0];
+            } catch (Gap gap) {
+                needsSnapshot = true;
+            }
+        }
+    }
+
+    /**
+     * Sends the latest snapshot and every principal of the primary's database,
+     * followed by {@link ReplicationObject#SNAPSHOT_END}. Without a snapshot the log was never compacted, so an empty image at
+     * sequence {@code 0} is sent and the whole log follows.
+     *
+     * @return sequence number covered by the snapshot sent
+     */
+    private static long sendSnapshot(Stream stream) throws IOException {
+        Path path = Paths.get(KeyStoreLog.snapshotAddress());
+        byte[] image = Files.exists(path) ? Files.readAllBytes(path) : null;
+        long seq = image == null ? 0 : KeyStoreSnapshot.seqOf(image);
+        stream.send(ReplicationObject.SNAPSHOT, seq, (byte) 0, image);
+
+        PrincipalDatabase principals = KeyStoreLog.principals();
+        if (principals != null) {
+            try {
+                principals.forEach(principal -> {
+                    try {
+                        stream.send(ReplicationObject.PRINCIPAL, seq, KeyStoreLog.PRINCIPAL_PUT,
+                                KeyStoreLog.principalPut(principal));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        stream.send(ReplicationObject.SNAPSHOT_END, seq, (byte) 0, null);
+        return seq;
+    }
+
+    private static byte[] nonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static boolean isNonce(byte[] payload) {
+        return payload != null && payload.length == NONCE_LENGTH;
+    }
+
+    /**
+     * The replica's answer to the primary's challenge: an HMAC, under the
+     * replication key, of both nonces and the sequence number it asked for.
+     */
+    private static byte[] proof(SecretKey replicationKey, byte[] replicaNonce, byte[] primaryNonce, long from)
+            throws GeneralSecurityException {
+        Mac mac = mac(replicationKey, "replica");
+        mac.update(replicaNonce);
+        mac.update(primaryNonce);
+        mac.update(ByteBuffer.allocate(8).putLong(0, from).array());
+        return mac.doFinal();
+    }
+
+    /**
+     * The AES key of one connection, derived from the replication key and both
+     * nonces, so no two connections seal with the same key.
+     */
+    private static SecretKey streamKey(SecretKey replicationKey, byte[] replicaNonce, byte[] primaryNonce)
+            throws GeneralSecurityException {
+        Mac mac = mac(replicationKey, "stream");
+        mac.update(replicaNonce);
+        mac.update(primaryNonce);
+        return new SecretKeySpec(mac.doFinal(), 0, STREAM_KEY_LENGTH, "AES");
+    }
+
+    private static Mac mac(SecretKey replicationKey, String label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(replicationKey.getEncoded(), "HmacSHA256"));
+        mac.update(label.getBytes(StandardCharsets.UTF_8));
+        return mac;
+    }
+
+    /**
+     * An object stream from a replication peer that only accepts
+     * {@link ReplicationObject}s, so an unauthenticated peer cannot make us
+     * build any other class.
+     */
+    private static ObjectInputStream input(Socket socket) throws IOException {
+        return new ObjectInputStream(socket.getInputStream()) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass descriptor) throws IOException, ClassNotFoundException {
+                String name = descriptor.getName();
+                if (!name.equals(ReplicationObject.class.getName()) && !name.equals("[B"))
+                    throw new InvalidClassException(name, "Clase no permitida en la replicaci\u00F3n.");
+                return super.resolveClass(descriptor);
+            }
+        };
+    }
+
+    /**
+     * Encodes a message as the plaintext of a {@link ReplicationObject#SEALED}:
+     * {@code kind | seq | type | payloadLength | payload} ({@code -1} = no payload).
+     */
+    private static byte[] encode(byte kind, long seq, byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(14 + (payload == null ? 0 : payload.length));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeLong(seq);
+            out.writeByte(type);
+            out.writeInt(payload == null ? -1 : payload.length);
+            if (payload != null)
+                out.write(payload);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ReplicationObject decode(byte[] message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        try {
+            byte kind = buffer.get();
+            long seq = buffer.getLong();
+            byte type = buffer.get();
+            int length = buffer.getInt();
+            byte[] payload = null;
+            if (length >= 0) {
+                payload = new byte[length];
+                buffer.get(payload);
+            }
+            return new ReplicationObject(kind, seq, type, payload);
+        } catch (RuntimeException e) {
+            throw new IOException("Mensaje de replicaci\u00F3n incompleto.", e);
+        }
+    }
+
+    /**
+     * One direction of an authenticated connection: AES/GCM under the stream
+     * key, with the number of messages already sealed as IV. A message that was
+     * altered, replayed, reordered or sealed under another key does not open.
+     */
+    private static final class Seal {
+        private final SecretKey key;
+        private final int mode;
+        private final Cipher cipher;
+        private long counter;
+
+        Seal(SecretKey key, int mode) throws GeneralSecurityException {
+            this.key = key;
+            this.mode = mode;
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        byte[] apply(byte[] input) throws IOException {
+            byte[] iv = ByteBuffer.allocate(12).putLong(4, counter++).array();
+            try {
+                cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+                return cipher.doFinal(input);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Mensaje de replicaci\u00F3n no aut\u00E9ntico.", e);
+            }
+        }
+    }
+
+    /**
+     * The sealed object stream to one replica.
+     */
+    private static final class Stream {
+        private final ObjectOutputStream out;
+        private final Seal sealer;
+        private int written;
+
+        Stream(ObjectOutputStream out, Seal sealer) {
+            this.out = out;
+            this.sealer = sealer;
+        }
+
+        void send(byte kind, long seq, byte type, byte[] payload) throws IOException {
+            out.writeObject(new ReplicationObject(ReplicationObject.SEALED, 0, (byte) 0,
+                    sealer.apply(encode(kind, seq, type, payload))));
+            if (++written % RESET_EVERY == 0)
+                out.reset();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Raised during catch-up when the log no longer starts where expected.
+     */
+    private static final class Gap extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Gap() {
+            super("El registro fue compactado durante la puesta al d\u00EDa.");
+        }
+    }
+}
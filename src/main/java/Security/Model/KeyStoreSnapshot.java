@@ -0,0 +1,212 @@
+package Security.Model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Compacted binary image of a role's in-memory key store, used together with
+ * its {@link WriteAheadLog} to restart quickly.
+ * <p>
+ * The image holds the {@link KeyTable} (current and previous version of every
+ * key) as of one sequence number of the log:
+ * <pre>
+ *   magic | version | seq | createdAt | keyCount | crc32 (of the body)
+ *   keys: name | previousKvno | previousKey | currentKvno | currentKey   (previousKvno 0 = none)
+ * </pre>
+ * Strings and keys are stored as a length (short) followed by their bytes.
+ * <p>
+ * The principal database needs no copy here: it already is a memory-mapped
+ * image, and {@link KeyStoreLog#snapshot()} forces it to disk before writing
+ * the snapshot. On restart the role maps the database and reads this image, then
+ * replays only the log records after {@link #getSeq()}; neither step depends
+ * on the number of principals.
+ * <p>
+ * A snapshot is written to a temporary file and moved over the previous one
+ * atomically, so there is always one complete image on disk. It is read back
+ * into a heap buffer rather than mapped: a mapping would stay open until it is
+ * garbage collected, and Windows refuses to replace a mapped file, so the next
+ * snapshot's move would fail.
+ */
+public class KeyStoreSnapshot {
+
+    private static final int MAGIC = 0x4B535331; // "KSS1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+    private final long seq;
+    private final long createdAt;
+    private final int keyCount;
+
+    private KeyStoreSnapshot(long seq, long createdAt, int keyCount) {
+        this.seq = seq;
+        this.createdAt = createdAt;
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * Writes the current key table as the image of {@code seq}.
+     * <p>
+     * Every change up to {@code seq} must already be applied in memory, which
+     * holds for the sequence number {@link KeyStoreLog#snapshot()} reads: the key
+     * table applies a change before it logs it, and the
+     * principal database, which logs first, is asked for it at a point where it
+     * has no change in flight. Changes applied after that may end up in the
+     * image too; replaying them again is harmless.
+     *
+     * @param address path of the snapshot file
+     * @param seq     last log sequence number covered by the image
+     * @return the written snapshot
+     * @throws IOException if the image cannot be written
+     */
+    static KeyStoreSnapshot write(String address, long seq) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int keys = 0;
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            IntObjectMap<KeyTable.Versions> table = KeyTable.versions();
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                KeyTable.Versions versions = table.valueAt(slot);
+                if (versions == null)
+                    continue;
+                VersionedKey previous = versions.previous;
+                VersionedKey current = versions.current;
+                writeBytes(out, PrincipalRegistry.nameOf(table.keyAt(slot)).getBytes(StandardCharsets.UTF_8));
+                out.writeInt(previous == null ? 0 : previous.getKvno());
+                writeBytes(out, previous == null ? new byte[0] : previous.getKey().getEncoded());
+                out.writeInt(current.getKvno());
+                writeBytes(out, current.getKey().getEncoded());
+                keys++;
+            }
+        }
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        long createdAt = System.currentTimeMillis();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC).putInt(VERSION).putLong(seq).putLong(createdAt)
+                .putInt(keys).putInt((int) crc.getValue());
+        header.flip();
+
+        Path target = Paths.get(address);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bodyBuffer = ByteBuffer.wrap(bodyBytes);
+            while (header.hasRemaining()) channel.write(header);
+            while (bodyBuffer.hasRemaining()) channel.write(bodyBuffer);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new KeyStoreSnapshot(seq, createdAt, keys);
+    }
+
+    /**
+     * Reads the snapshot at {@code address} and restores its keys into the
+     * {@link KeyTable}.
+     *
+     * @param address path of the snapshot file
+     * @return the loaded snapshot, or {@code null} if there is no such file
+     * @throws IOException if the file is not a valid snapshot
+     */
+    static KeyStoreSnapshot load(String address) throws IOException {
+        Path path = Paths.get(address);
+        if (!Files.exists(path))
+            return null;
+
+        return restore(ByteBuffer.wrap(Files.readAllBytes(path)), path.getFileName().toString());
+    }
+
+    /**
+     * Restores a snapshot image received as bytes, as a replica does during
+     * catch-up (see {@link KeyStoreReplication}).
+     *
+     * @param buffer the snapshot file's content
+     * @param source name of the image for error messages
+     * @return the restored snapshot
+     * @throws IOException if the bytes are not a valid snapshot
+     */
+    static KeyStoreSnapshot restore(ByteBuffer buffer, String source) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            throw new IOException(source + " no es una instant\u00E1nea del almac\u00E9n de llaves.");
+        long seq = buffer.getLong();
+        long createdAt = buffer.getLong();
+        int keys = buffer.getInt();
+        int expectedCrc = buffer.getInt();
+
+        ByteBuffer body = buffer.slice();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != expectedCrc)
+            throw new IOException("La instant\u00E1nea " + source + " est\u00E1 da\u00F1ada.");
+
+        for (int i = 0; i < keys; i++) {
+            String name = readString(body);
+            int previousKvno = body.getInt();
+            byte[] previousKey = readBytes(body);
+            int currentKvno = body.getInt();
+            byte[] currentKey = readBytes(body);
+            if (previousKvno != 0)
+                KeyTable.observe(name, previousKvno, new SecretKeySpec(previousKey, "DES"));
+            KeyTable.observe(name, currentKvno, new SecretKeySpec(currentKey, "DES"));
+        }
+        return new KeyStoreSnapshot(seq, createdAt, keys);
+    }
+
+    /**
+     * Reads the sequence number of a snapshot image without restoring it.
+     *
+     * @param image the snapshot file's content
+     * @return last log sequence number covered by the image
+     * @throws IOException if the bytes are not a snapshot
+     */
+    static long seqOf(byte[] image) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(image);
+        if (image.length < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("La instant\u00E1nea recibida no es v\u00E1lida.");
+        return buffer.getLong(8);
+    }
+
+    /**
+     * @return last log sequence number covered by this snapshot
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return when the snapshot was written (epoch millis)
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        return new String(readBytes(buffer), StandardCharsets.UTF_8);
+    }
+}
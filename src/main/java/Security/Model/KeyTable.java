@@ -0,0 +1,197 @@
+package Security.Model;
+
+import Model.Log;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Versioned table of the long-term keys used by the Kerberos services.
+ * <p>
+ * Every named key (a key file of the SecretVault, or a principal of the
+ * {@link PrincipalDatabase} whose former key must stay usable, such as the
+ * TGS's own) keeps two versions:
+ * <ul>
+ *   <li>The <em>current</em> one, used to encrypt new tickets.</li>
+ *   <li>The <em>previous</em> one, kept so tickets issued right before a
+ *       rotation can still be decrypted until they expire.</li>
+ * </ul>
+ * Keys are indexed by the {@link PrincipalRegistry} id of their name, in an
+ * {@link IntObjectMap}. The whole table is an immutable map published through an
+ * {@link AtomicReference}. Readers take the current snapshot with a single
+ * volatile read and never lock; a rotation copies the map, swaps in the new
+ * version and publishes the copy with a compare-and-set, retrying if another
+ * rotation won the race. Rotations are rare, so the copy is cheap compared to
+ * the lookups it keeps lock-free. Principals whose tickets are only ever
+ * encrypted with their current key (clients, services) are not held here at
+ * all: their key is taken from the database as is, so the table stays small
+ * and is not copied for every new principal.
+ * <p>
+ * Version numbers are never assigned here: each version comes with the kvno
+ * it was stored with (in its key file, the vault or the principal database),
+ * so every role holding the same key agrees on its number.
+ * <p>
+ * With a {@link WriteAheadLog} attached, every version read from a key file is
+ * logged and made durable before {@link #observe(String, int, SecretKey)}
+ * returns, so a restarted role recovers its previous versions too. Principal
+ * keys, observed on the request path, are not logged: the database already
+ * logs every change to them.
+ */
+public class KeyTable {
+
+    private static final AtomicReference<IntObjectMap<Versions>> snapshot =
+            new AtomicReference<>(new IntObjectMap<Versions>());
+    private static volatile WriteAheadLog log;
+
+    /**
+     * Logs every version installed from now on in {@code writeAheadLog}.
+     *
+     * @param writeAheadLog write-ahead log of the role, usually set up by {@link KeyStoreLog#recover}
+     */
+    public static void attachLog(WriteAheadLog writeAheadLog) {
+        log = writeAheadLog;
+    }
+
+    /**
+     * @param name key name
+     * @return the current version of the key, or {@code null} if the table does not hold it
+     */
+    public static VersionedKey current(String name) {
+        return current(PrincipalRegistry.idOf(name));
+    }
+
+    /**
+     * @param id {@link PrincipalRegistry} id of the key name
+     * @return the current version of the key, or {@code null} if the table does not hold it
+     */
+    public static VersionedKey current(int id) {
+        Versions versions = snapshot.get().get(id);
+        return versions == null ? null : versions.current;
+    }
+
+    /**
+     * Returns the version of a key a ticket was encrypted with.
+     * <p>
+     * A {@code kvno} of {@code 0} (unversioned ticket) or one the table no longer
+     * holds resolves to the current version; if that guess is wrong, the ticket's
+     * MAC rejects it before any field is decrypted.
+     *
+     * @param name key name
+     * @param kvno key version number carried by the ticket
+     * @return the matching key, or {@code null} if the table does not hold the name
+     */
+    public static SecretKey lookup(String name, int kvno) {
+        return lookup(PrincipalRegistry.idOf(name), kvno);
+    }
+
+    /**
+     * Same as {@link #lookup(String, int)}, for a name already interned.
+     *
+     * @param id   {@link PrincipalRegistry} id of the key name
+     * @param kvno key version number carried by the ticket
+     * @return the matching key, or {@code null} if the table does not hold the name
+     */
+    public static SecretKey lookup(int id, int kvno) {
+        Versions versions = snapshot.get().get(id);
+        if (versions == null)
+            return null;
+        if (versions.previous != null && versions.previous.getKvno() == kvno)
+            return versions.previous.getKey();
+        return versions.current.getKey();
+    }
+
+    /**
+     * Records a version of a key read from an external source (a key file, the
+     * vault or the principal database). Versions older than or equal to the
+     * current one are ignored; a newer one becomes current and the former
+     * current version is kept as previous.
+     *
+     * @param name key name
+     * @param kvno version number of {@code key}
+     * @param key  key material
+     * @return the current version after the call
+     */
+    public static VersionedKey observe(String name, int kvno, SecretKey key) {
+        return install(name, kvno, key, true);
+    }
+
+    /**
+     * Records the key of a principal of the {@link PrincipalDatabase}, which only
+     * stores its newest version, so the previous one survives here after a rotation.
+     * Once the principal's current version is held, this is a single map read;
+     * nothing is logged.
+     *
+     * @param principal principal read from the database
+     * @return the current version of the principal's key after the call
+     * @see #observe(String, int, SecretKey)
+     */
+    public static VersionedKey observe(Principal principal) {
+        int id = PrincipalRegistry.idOf(principal.getName());
+        Versions versions = id == PrincipalRegistry.UNKNOWN ? null : snapshot.get().get(id);
+        if (versions != null && versions.current.getKvno() >= principal.getKvno())
+            return versions.current;
+        return install(principal.getName(), principal.getKvno(), principal.getSecretKey(), false);
+    }
+
+    private static VersionedKey install(String name, int kvno, SecretKey key, boolean log) {
+        int id = PrincipalRegistry.intern(name);
+        while (true) {
+            IntObjectMap<Versions> table = snapshot.get();
+            Versions versions = table.get(id);
+            if (versions != null && versions.current.getKvno() >= kvno)
+                return versions.current;
+            VersionedKey installed = new VersionedKey(kvno, key);
+            if (snapshot.compareAndSet(table, with(table, id, installed, versions)))
+                return log ? logged(name, installed) : installed;
+        }
+    }
+
+    /**
+     * @return the current table, keyed by {@link PrincipalRegistry} id, for {@link KeyStoreSnapshot};
+     *         it must not be modified
+     */
+    static IntObjectMap<Versions> versions() {
+        return snapshot.get();
+    }
+
+    /**
+     * Drops every version of every key.
+     */
+    public static void clear() {
+        snapshot.set(new IntObjectMap<Versions>());
+    }
+
+    private static VersionedKey logged(String name, VersionedKey installed) {
+        WriteAheadLog currentLog = log;
+        if (currentLog != null) {
+            try {
+                currentLog.append(KeyStoreLog.KEY_VERSION, KeyStoreLog.keyVersion(name, installed));
+            } catch (IOException e) {
+                //  The new version is already in use; only its recovery after a restart is lost.
+                Log.error("No se ha podido registrar la versi\u00F3n " + installed.getKvno() + " de " + name + ".", e);
+            }
+        }
+        return installed;
+    }
+
+    private static IntObjectMap<Versions> with(IntObjectMap<Versions> table, int id,
+                                               VersionedKey current, Versions former) {
+        IntObjectMap<Versions> copy = table.copy();
+        copy.put(id, new Versions(current, former == null ? null : former.current));
+        return copy;
+    }
+
+    /**
+     * The current and previous versions of one key.
+     */
+    static final class Versions {
+        final VersionedKey current;
+        final VersionedKey previous;
+
+        Versions(VersionedKey current, VersionedKey previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+}
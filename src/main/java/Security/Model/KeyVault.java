@@ -0,0 +1,359 @@
+package Security.Model;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file, indexed keystore that packs every {@code .key} file of a
+ * SecretVault directory into one indexed image.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ *   header   magic (int) | version (int) | slotCount (int) | recordCount (int)
+ *   index    slotCount x long   absolute offset of a record, 0 for an empty slot
+ *   records  hash (int) | kind (byte) | kvno (int) |
+ *            ownerLength (short) | owner | peerLength (short) | peer |
+ *            keyLength (short) | key bytes | crc32 (int)
+ * </pre>
+ * The index is an open-addressing hash table (linear probing) over
+ * {@code (kind, owner, peer)}, so every version of a key shares one probe
+ * sequence. Each record carries a CRC32 that is checked before its key bytes
+ * are handed out.
+ * <p>
+ * The vault is memory-mapped read-only, so a lookup is just a few reads from
+ * the mapping: no file is opened and no system call is made, and every KDC
+ * process on the machine shares the same pages of the page cache instead of
+ * holding its own copy. {@link #pack(String, String)} moves a new vault over
+ * the old one, which leaves existing mappings on the old file. Windows refuses
+ * to replace a mapped file, though, and a mapping stays open until its buffer
+ * is garbage collected; there the vault is read into the heap instead, so
+ * every later {@code pack} of the same vault still succeeds.
+ * <p>
+ * Record kinds follow the naming conventions of {@link KeyMethods}:
+ * <ul>
+ *   <li>{@link #SECRET}: {@code Symmetric-<owner>-<peer>.key}</li>
+ *   <li>{@link #PUBLIC}: {@code public<owner>.key} (empty peer)</li>
+ *   <li>{@link #PRIVATE}: {@code private<owner>.key} (empty peer)</li>
+ * </ul>
+ * A symmetric record keeps the version number stored in its {@code .key}
+ * file (see {@link KeyMethods}); RSA records are always version
+ * {@link #DEFAULT_KVNO}. Vaults are written with {@link #pack(String, String)}
+ * and read with {@link #open(String)}; a vault is immutable once written.
+ */
+public class KeyVault {
+
+    /**
+     * Name of the vault file inside a SecretVault directory.
+     */
+    public static final String FILE_NAME = "SecretVault.vault";
+
+    public static final byte SECRET = 0;
+    public static final byte PUBLIC = 1;
+    public static final byte PRIVATE = 2;
+
+    /**
+     * Key version of RSA keys, and of symmetric {@code .key} files written before versions were stored.
+     */
+    public static final int DEFAULT_KVNO = 1;
+
+    private static final int MAGIC = 0x4B564C54; // "KVLT"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int ANY_KVNO = -1;
+    private static final boolean MAP = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private final ByteBuffer buffer;
+    private final int slotCount;
+
+    private KeyVault(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("El archivo no es una b\u00F3veda de llaves v\u00E1lida.");
+        this.slotCount = buffer.getInt(8);
+    }
+
+    /**
+     * Maps an existing vault file read-only, or reads it into memory on Windows.
+     *
+     * @param vaultAddress path of the vault file
+     * @return the vault
+     * @throws IOException if the file cannot be read or is not a vault
+     */
+    public static KeyVault open(String vaultAddress) throws IOException {
+        Path path = Paths.get(vaultAddress);
+        if (!MAP)
+            return new KeyVault(ByteBuffer.wrap(Files.readAllBytes(path)));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new KeyVault(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Packs every {@code .key} file found in {@code directoryPath} into a single
+     * vault file (usually {@code <directoryPath>/SecretVault.vault}, see {@link #FILE_NAME}).
+     * <p>
+     * The vault is written to a temporary file first and then moved into place,
+     * so readers never open a half-written vault.
+     *
+     * @param directoryPath SecretVault directory to pack (ending with a path separator)
+     * @param vaultAddress  path of the vault file to write
+     * @return number of keys packed
+     * @throws Exception if a key file cannot be read or the vault cannot be written
+     */
+    public static int pack(String directoryPath, String vaultAddress) throws Exception {
+        List<Record> records = new ArrayList<>();
+        File[] files = new File(directoryPath).listFiles((dir, name) -> name.endsWith(".key"));
+        if (files != null) {
+            for (File file : files) {
+                Record record = Record.fromFileName(file.getName());
+                if (record == null)
+                    continue;
+                byte[] content = KeyMethods.readFromSomething(file.getPath());
+                if (record.kind == SECRET) {
+                    VersionedKey secret = KeyMethods.decodeSecret(content, file.getPath());
+                    record.kvno = secret.getKvno();
+                    record.key = secret.getKey().getEncoded();
+                } else {
+                    record.key = content;
+                }
+                records.add(record);
+            }
+        }
+        write(records, vaultAddress);
+        return records.size();
+    }
+
+    /**
+     * Looks up the raw bytes of a key.
+     *
+     * @param kind  {@link #SECRET}, {@link #PUBLIC} or {@link #PRIVATE}
+     * @param owner owner of the key
+     * @param peer  other actor sharing the key, or an empty string for RSA keys
+     * @param kvno  key version number
+     * @return the key bytes, or {@code null} if the vault holds no such key
+     * @throws IOException if the record is found but fails its checksum
+     */
+    public byte[] lookup(byte kind, String owner, String peer, int kvno) throws IOException {
+        int offset = find(kind, owner, peer, kvno);
+        return offset == 0 ? null : keyOf(offset, owner, peer);
+    }
+
+    /**
+     * Recovers the newest version of the symmetric key shared between
+     * {@code whoAreYou} and {@code withWho}, with its version number.
+     *
+     * @return the key, or {@code null} if the vault does not hold it
+     * @throws IOException if the record fails its checksum
+     */
+    public VersionedKey recoverVersioned(String whoAreYou, String withWho) throws IOException {
+        int offset = find(SECRET, whoAreYou, withWho, ANY_KVNO);
+        if (offset == 0)
+            return null;
+        return new VersionedKey(buffer.getInt(offset + 5),
+                new SecretKeySpec(keyOf(offset, whoAreYou, withWho), "DES"));
+    }
+
+    /**
+     * Recovers the newest version of the symmetric key shared between {@code whoAreYou} and {@code withWho}.
+     *
+     * @return the key, or {@code null} if the vault does not hold it
+     * @throws IOException if the record fails its checksum
+     */
+    public SecretKey recoverSecret(String whoAreYou, String withWho) throws IOException {
+        VersionedKey secret = recoverVersioned(whoAreYou, withWho);
+        return secret == null ? null : secret.getKey();
+    }
+
+    /**
+     * Recovers an RSA public key.
+     *
+     * @return the key, or {@code null} if the vault does not hold it
+     * @throws Exception if the record fails its checksum or cannot be decoded
+     */
+    public PublicKey recoverPublic(String whosKey) throws Exception {
+        byte[] bytes = lookup(PUBLIC, whosKey, "", DEFAULT_KVNO);
+        return bytes == null ? null : KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bytes));
+    }
+
+    /**
+     * Recovers an RSA private key.
+     *
+     * @return the key, or {@code null} if the vault does not hold it
+     * @throws Exception if the record fails its checksum or cannot be decoded
+     */
+    public PrivateKey recoverPrivate(String whosKey) throws Exception {
+        byte[] bytes = lookup(PRIVATE, whosKey, "", DEFAULT_KVNO);
+        return bytes == null ? null : KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(bytes));
+    }
+
+    /**
+     * @return offset of the record of version {@code kvno} (the newest one for
+     *         {@link #ANY_KVNO}) of the given key, or {@code 0} if there is none
+     */
+    private int find(byte kind, String owner, String peer, int kvno) {
+        byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+        byte[] peerBytes = peer.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(kind, ownerBytes, peerBytes);
+
+        int found = 0;
+        for (int probe = 0; probe < slotCount; probe++) {
+            int slot = (hash + probe) & (slotCount - 1);
+            int offset = (int) buffer.getLong(HEADER_SIZE + slot * 8);
+            if (offset == 0)
+                break;
+            if (buffer.getInt(offset) != hash || buffer.get(offset + 4) != kind)
+                continue;
+            int recordKvno = buffer.getInt(offset + 5);
+            if (kvno == ANY_KVNO ? found != 0 && recordKvno <= buffer.getInt(found + 5) : recordKvno != kvno)
+                continue;
+            int position = offset + 9;
+            if (!matches(position, ownerBytes) || !matches(position + 2 + ownerBytes.length, peerBytes))
+                continue;
+            found = offset;
+            if (kvno != ANY_KVNO)
+                break;
+        }
+        return found;
+    }
+
+    private byte[] keyOf(int offset, String owner, String peer) throws IOException {
+        int position = offset + 9;
+        position += 2 + buffer.getShort(position);
+        position += 2 + buffer.getShort(position);
+
+        int keyLength = buffer.getShort(position);
+        int end = position + 2 + keyLength;
+        if (!checksumMatches(offset, end))
+            throw new IOException("La llave " + owner + "-" + peer + " no supera la suma de verificaci\u00F3n.");
+        byte[] key = new byte[keyLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 2);
+        view.get(key);
+        return key;
+    }
+
+    private boolean matches(int position, byte[] expected) {
+        if (buffer.getShort(position) != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(position + 2 + i) != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean checksumMatches(int start, int end) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        return (int) crc.getValue() == buffer.getInt(end);
+    }
+
+    private static int hash(byte kind, byte[] owner, byte[] peer) {
+        int hash = 0x811C9DC5;
+        hash = (hash ^ kind) * 0x01000193;
+        for (byte b : owner) hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        hash = (hash ^ 0xFF) * 0x01000193;
+        for (byte b : peer) hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        //  A zero closes the peer, as in every vault written so far.
+        hash *= 0x01000193;
+        return hash & 0x7FFFFFFF;
+    }
+
+    private static void write(List<Record> records, String vaultAddress) throws IOException {
+        int slotCount = 16;
+        while (slotCount < records.size() * 2) slotCount <<= 1;
+
+        int size = HEADER_SIZE + slotCount * 8;
+        for (Record record : records) size += record.size();
+
+        ByteBuffer image = ByteBuffer.allocate(size);
+        image.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(records.size());
+        image.position(HEADER_SIZE + slotCount * 8);
+
+        for (Record record : records) {
+            int offset = image.position();
+            byte[] owner = record.owner.getBytes(StandardCharsets.UTF_8);
+            byte[] peer = record.peer.getBytes(StandardCharsets.UTF_8);
+            int hash = hash(record.kind, owner, peer);
+            image.putInt(hash).put(record.kind).putInt(record.kvno);
+            image.putShort((short) owner.length).put(owner);
+            image.putShort((short) peer.length).put(peer);
+            image.putShort((short) record.key.length).put(record.key);
+            CRC32 crc = new CRC32();
+            crc.update(image.array(), offset, image.position() - offset);
+            image.putInt((int) crc.getValue());
+
+            int slot = hash & (slotCount - 1);
+            while (image.getLong(HEADER_SIZE + slot * 8) != 0) slot = (slot + 1) & (slotCount - 1);
+            image.putLong(HEADER_SIZE + slot * 8, offset);
+        }
+
+        Path target = Paths.get(vaultAddress);
+        Path temporary = Paths.get(vaultAddress + ".tmp");
+        Files.write(temporary, image.array());
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A key waiting to be written into a vault.
+     */
+    static class Record {
+        byte kind;
+        String owner;
+        String peer;
+        private int kvno = DEFAULT_KVNO;
+        private byte[] key;
+
+        /**
+         * @return the record a {@code .key} file would be packed as, or {@code null}
+         *         if its name follows none of the SecretVault conventions
+         */
+        static Record fromFileName(String fileName) {
+            String name = fileName.substring(0, fileName.length() - ".key".length());
+            Record record = new Record();
+            if (name.startsWith("Symmetric-")) {
+                String[] pair = name.substring("Symmetric-".length()).split("-", 2);
+                if (pair.length != 2)
+                    return null;
+                record.kind = SECRET;
+                record.owner = pair[0];
+                record.peer = pair[1];
+            } else if (name.startsWith("public")) {
+                record.kind = PUBLIC;
+                record.owner = name.substring("public".length());
+                record.peer = "";
+            } else if (name.startsWith("private")) {
+                record.kind = PRIVATE;
+                record.owner = name.substring("private".length());
+                record.peer = "";
+            } else {
+                return null;
+            }
+            return record;
+        }
+
+        private int size() {
+            return 4 + 1 + 4
+                    + 2 + owner.getBytes(StandardCharsets.UTF_8).length
+                    + 2 + peer.getBytes(StandardCharsets.UTF_8).length
+                    + 2 + key.length + 4;
+        }
+    }
+}
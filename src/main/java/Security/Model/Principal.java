@@ -0,0 +1,99 @@
+package Security.Model;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Immutable entry of the {@link PrincipalDatabase}.
+ * <p>
+ * A principal is any named actor of the realm (a user, the TGS, an
+ * application server) together with:
+ * <ul>
+ *   <li>Its long-term key material and the encryption type of that key.</li>
+ *   <li>The key version number ({@code kvno}) of that key.</li>
+ *   <li>Its policy: the maximum ticket lifetime it may be granted and a set of flags.</li>
+ * </ul>
+ */
+public class Principal {
+
+    /**
+     * Encryption type of DES keys, the only symmetric algorithm used by {@link Encryption}.
+     */
+    public static final byte ENCTYPE_DES = 1;
+
+    /**
+     * Name of the ticket-granting service principal of the realm.
+     */
+    public static final String TGS_NAME = "TGS - Victor";
+
+    /**
+     * Policy flag: the principal may not obtain tickets.
+     */
+    public static final int FLAG_DISABLED = 1;
+
+    private final String name;
+    private final byte enctype;
+    private final int kvno;
+    private final byte[] key;
+    private final long maxLifetime;
+    private final int flags;
+
+    /**
+     * @param name        principal name (at most {@link PrincipalDatabase#MAX_NAME_LENGTH} bytes in UTF-8)
+     * @param enctype     encryption type of {@code key}, e.g. {@link #ENCTYPE_DES}
+     * @param kvno        key version number
+     * @param key         raw key bytes (at most {@link PrincipalDatabase#MAX_KEY_LENGTH} bytes)
+     * @param maxLifetime maximum ticket lifetime in milliseconds, or {@code 0} for the realm default
+     * @param flags       policy flags, e.g. {@link #FLAG_DISABLED}
+     */
+    public Principal(String name, byte enctype, int kvno, byte[] key, long maxLifetime, int flags) {
+        this.name = name;
+        this.enctype = enctype;
+        this.kvno = kvno;
+        this.key = key.clone();
+        this.maxLifetime = maxLifetime;
+        this.flags = flags;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte getEnctype() {
+        return enctype;
+    }
+
+    public int getKvno() {
+        return kvno;
+    }
+
+    public byte[] getKey() {
+        return key.clone();
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isDisabled() {
+        return (flags & FLAG_DISABLED) != 0;
+    }
+
+    /**
+     * @return the key material as a {@link SecretKey} usable by {@link Encryption}
+     */
+    public SecretKey getSecretKey() {
+        return new SecretKeySpec(key, "DES");
+    }
+
+    /**
+     * @return the key material with its version number, to encrypt a ticket with
+     */
+    public VersionedKey getVersionedKey() {
+        return new VersionedKey(kvno, getSecretKey());
+    }
+}
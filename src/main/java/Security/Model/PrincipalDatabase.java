@@ -0,0 +1,561 @@
+package Security.Model;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Memory-mapped principal database for the AS and the TGS.
+ * <p>
+ * The database is a single file holding an open-addressing hash table
+ * (linear probing) of fixed-size slots. Each slot stores one
+ * {@link Principal} inline:
+ * <pre>
+ *   offset  0  state (byte)      EMPTY, USED or DELETED
+ *   offset  1  enctype (byte)
+ *   offset  2  nameLength (short)
+ *   offset  4  nameHash (int)
+ *   offset  8  kvno (int)
+ *   offset 12  flags (int)
+ *   offset 16  maxLifetime (long)
+ *   offset 24  keyLength (short)
+ *   offset 32  key (MAX_KEY_LENGTH bytes)
+ *   offset 64  name (MAX_NAME_LENGTH bytes, UTF-8)
+ * </pre>
+ * preceded by a small header ({@code magic | version | capacity | count | tombstones}).
+ * <p>
+ * Since the table lives in the mapping and not on the Java heap, millions of
+ * principals add no objects for the garbage collector to trace, and a lookup is
+ * a hash plus a few probes over the mapping. Readers never block: they use an
+ * optimistic {@link StampedLock} read and only retry under a read lock if a
+ * writer modified the table meanwhile.
+ * <p>
+ * The capacity is fixed when the database is created (see {@link #create(String, int)});
+ * size it for the expected population. {@link #put(Principal)} fails once the
+ * table is {@value #MAX_LOAD_PERCENT}% full.
+ * <p>
+ * {@link #remove(String)} leaves a tombstone in the slot so that the probe
+ * sequences running through it stay intact. Tombstones are purged in place,
+ * by shifting later entries of their cluster back (Knuth's Algorithm R), once
+ * they pass {@value #MAX_TOMBSTONE_PERCENT}% of the slots or whenever they alone
+ * would make an insertion fail; every step leaves a valid table, so neither
+ * readers nor a crash during the purge can lose a principal.
+ * <p>
+ * Once a {@link WriteAheadLog} is attached ({@link #attachLog(WriteAheadLog)}),
+ * every change is logged ahead of being applied: the record is submitted and
+ * made durable first, and only then written to the mapping, so a crash can
+ * never leave a change on disk that the log does not know about. Writers are
+ * serialized by a separate monitor, held across the log wait, so the log order
+ * matches the order the changes are applied in; the write lock that readers
+ * validate against is only taken for the in-memory update, so lookups are not
+ * held back while the log reaches the disk.
+ */
+public class PrincipalDatabase {
+
+    /**
+     * Name of the principal database inside {@code Security/SecretVault}.
+     */
+    public static final String FILE_NAME = "Principals.db";
+
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int MAX_KEY_LENGTH = 32;
+
+    private static final int MAGIC = 0x50444231; // "PDB1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 128;
+    private static final int MAX_CAPACITY = 1 << 23;
+    private static final int MAX_LOAD_PERCENT = 90;
+    private static final int MAX_TOMBSTONE_PERCENT = 25;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    private static final int STATE = 0;
+    private static final int ENCTYPE = 1;
+    private static final int NAME_LENGTH = 2;
+    private static final int NAME_HASH = 4;
+    private static final int KVNO = 8;
+    private static final int FLAGS = 12;
+    private static final int MAX_LIFETIME = 16;
+    private static final int KEY_LENGTH = 24;
+    private static final int KEY = 32;
+    private static final int NAME = 64;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final StampedLock lock = new StampedLock();
+    private final Object writers = new Object();
+    private volatile WriteAheadLog log;
+
+    private PrincipalDatabase(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("El archivo no es una base de datos de principales v\u00E1lida.");
+        this.capacity = buffer.getInt(8);
+    }
+
+    /**
+     * Creates a new, empty database sized for {@code expectedPrincipals} entries.
+     * An existing file at {@code address} is overwritten.
+     *
+     * @param address            path of the database file
+     * @param expectedPrincipals number of principals the database should hold
+     * @return the opened database
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static PrincipalDatabase create(String address, int expectedPrincipals) throws IOException {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && (long) capacity * 70 < (long) expectedPrincipals * 100) capacity <<= 1;
+
+        try (RandomAccessFile file = new RandomAccessFile(address, "rw")) {
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, 0);
+            buffer.putInt(16, 0);
+            return new PrincipalDatabase(buffer);
+        }
+    }
+
+    /**
+     * Maps an existing database.
+     *
+     * @param address path of the database file
+     * @return the opened database
+     * @throws IOException if the file cannot be mapped or is not a principal database
+     */
+    public static PrincipalDatabase open(String address) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(address, "rw")) {
+            return new PrincipalDatabase(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length()));
+        }
+    }
+
+    /**
+     * Maps the database at {@code address} if it exists.
+     *
+     * @param address path of the database file
+     * @return the opened database, or {@code null} if there is no such file
+     * @throws IOException if the file exists but cannot be mapped
+     */
+    public static PrincipalDatabase openIfExists(String address) throws IOException {
+        return Files.exists(Paths.get(address)) ? open(address) : null;
+    }
+
+    /**
+     * Logs every later change to this database in {@code log}.
+     *
+     * @param log write-ahead log of the role, usually set up by {@link KeyStoreLog#recover}
+     */
+    public void attachLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Looks a principal up by name.
+     *
+     * @param name principal name
+     * @return the principal, or {@code null} if it is not in the database
+     */
+    public Principal lookup(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(nameBytes);
+
+        long stamp = lock.tryOptimisticRead();
+        Principal principal = null;
+        try {
+            principal = read(nameBytes, hash, name);
+        } catch (RuntimeException e) {
+            //  A concurrent writer left the slot half-written; the validation below makes us retry.
+        }
+        if (lock.validate(stamp))
+            return principal;
+
+        stamp = lock.readLock();
+        try {
+            return read(nameBytes, hash, name);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Inserts a principal, or replaces the entry with the same name.
+     *
+     * @param principal principal to store
+     * @throws IOException if the name or key is too long, the database is full or the change cannot be logged
+     */
+    public void put(Principal principal) throws IOException {
+        List<Principal> single = new ArrayList<>(1);
+        single.add(principal);
+        putAll(single, false);
+    }
+
+    /**
+     * Inserts or replaces a batch of principals under a single acquisition of
+     * the write lock, and with a single wait for the log, which is what bulk
+     * imports should use instead of {@link #put(Principal)} in a loop.
+     * <p>
+     * Every principal is checked against the slot size, and the batch against
+     * the free slots, before anything is logged or written: a batch that does
+     * not fit is rejected whole.
+     *
+     * @param batch principals to store
+     * @throws IOException if a name or key is too long, the database is full or the batch cannot be logged
+     */
+    public void putAll(List<Principal> batch) throws IOException {
+        putAll(batch, false);
+    }
+
+    /**
+     * Same as {@link #putAll(List)}, but each principal is stored as the next
+     * version of the one already held under its name: its kvno is replaced by
+     * one past the stored kvno, or by {@link KeyVault#DEFAULT_KVNO} for a new
+     * name. The kvno is resolved as the batch is stored, with every other
+     * writer held off, so concurrent writers and a name repeated within the
+     * batch each get a version of their own.
+     *
+     * @param batch principals to store; their kvno is ignored
+     * @throws IOException if a name or key is too long, the database is full or the batch cannot be logged
+     */
+    public void rotateAll(List<Principal> batch) throws IOException {
+        putAll(batch, true);
+    }
+
+    private void putAll(List<Principal> batch, boolean nextVersion) throws IOException {
+        for (Principal principal : batch) checkSize(principal);
+        //  Only writers change the mapping, so holding the writers' monitor is enough to read it consistently.
+        synchronized (writers) {
+            checkRoom(batch);
+            if (nextVersion)
+                batch = nextVersionsOf(batch);
+
+            WriteAheadLog currentLog = log;
+            if (currentLog != null) {
+                List<CompletableFuture<Long>> logged = new ArrayList<>(batch.size());
+                for (Principal principal : batch)
+                    logged.add(currentLog.submit(KeyStoreLog.PRINCIPAL_PUT, KeyStoreLog.principalPut(principal)));
+                for (CompletableFuture<Long> record : logged) WriteAheadLog.await(record);
+            }
+
+            long stamp = lock.writeLock();
+            try {
+                for (Principal principal : batch) write(principal);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * @return the batch with each principal numbered one version past the one
+     *         stored (or stored earlier in the batch) under its name; the caller
+     *         holds the writers' monitor
+     */
+    private List<Principal> nextVersionsOf(List<Principal> batch) {
+        Map<String, Integer> assigned = new HashMap<>();
+        List<Principal> numbered = new ArrayList<>(batch.size());
+        for (Principal principal : batch) {
+            Integer previous = assigned.get(principal.getName());
+            if (previous == null) {
+                byte[] nameBytes = principal.getName().getBytes(StandardCharsets.UTF_8);
+                int slot = find(nameBytes, hash(nameBytes));
+                previous = slot < 0 ? KeyVault.DEFAULT_KVNO - 1 : buffer.getInt(offset(slot) + KVNO);
+            }
+            int kvno = previous + 1;
+            assigned.put(principal.getName(), kvno);
+            numbered.add(new Principal(principal.getName(), principal.getEnctype(), kvno, principal.getKey(),
+                    principal.getMaxLifetime(), principal.getFlags()));
+        }
+        return numbered;
+    }
+
+    /**
+     * Fails if the names of {@code batch} not yet stored would take the table
+     * past its maximum load, after purging the tombstones if they are what
+     * stands in the way; the caller holds the writers' monitor.
+     */
+    private void checkRoom(List<Principal> batch) throws IOException {
+        Set<String> added = new HashSet<>();
+        for (Principal principal : batch) {
+            byte[] nameBytes = principal.getName().getBytes(StandardCharsets.UTF_8);
+            if (find(nameBytes, hash(nameBytes)) < 0)
+                added.add(principal.getName());
+        }
+        long maxLoad = (long) capacity * MAX_LOAD_PERCENT;
+        if ((long) (buffer.getInt(12) + buffer.getInt(16) + added.size()) * 100 > maxLoad)
+            purgeTombstones();
+        if ((long) (buffer.getInt(12) + buffer.getInt(16) + added.size()) * 100 > maxLoad)
+            throw new IOException("La base de datos de principales est\u00E1 llena.");
+    }
+
+    private static void checkSize(Principal principal) throws IOException {
+        if (principal.getName().getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH
+                || principal.getKey().length > MAX_KEY_LENGTH)
+            throw new IOException("El principal " + principal.getName() + " excede el tama\u00F1o de ranura.");
+    }
+
+    /**
+     * Writes one principal; the caller holds the write lock and has checked
+     * with {@link #checkRoom(List)} that it fits.
+     */
+    private void write(Principal principal) {
+        byte[] nameBytes = principal.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] key = principal.getKey();
+        int hash = hash(nameBytes);
+
+        int slot = find(nameBytes, hash);
+        if (slot < 0) {
+            int count = buffer.getInt(12);
+            int tombstones = buffer.getInt(16);
+            slot = freeSlot(hash);
+            if (buffer.get(offset(slot) + STATE) == DELETED)
+                buffer.putInt(16, tombstones - 1);
+            buffer.putInt(12, count + 1);
+        }
+        int offset = offset(slot);
+        buffer.put(offset + ENCTYPE, principal.getEnctype());
+        buffer.putShort(offset + NAME_LENGTH, (short) nameBytes.length);
+        buffer.putInt(offset + NAME_HASH, hash);
+        buffer.putInt(offset + KVNO, principal.getKvno());
+        buffer.putInt(offset + FLAGS, principal.getFlags());
+        buffer.putLong(offset + MAX_LIFETIME, principal.getMaxLifetime());
+        buffer.putShort(offset + KEY_LENGTH, (short) key.length);
+        for (int i = 0; i < key.length; i++) buffer.put(offset + KEY + i, key[i]);
+        for (int i = 0; i < nameBytes.length; i++) buffer.put(offset + NAME + i, nameBytes[i]);
+        buffer.put(offset + STATE, USED);
+    }
+
+    /**
+     * Removes a principal.
+     *
+     * @param name principal name
+     * @return {@code true} if the principal existed
+     * @throws IOException if the removal cannot be logged
+     */
+    public boolean remove(String name) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(nameBytes);
+
+        synchronized (writers) {
+            int slot = find(nameBytes, hash);
+            if (slot < 0)
+                return false;
+            int offset = offset(slot);
+            WriteAheadLog currentLog = log;
+            if (currentLog != null)
+                WriteAheadLog.await(currentLog.submit(KeyStoreLog.PRINCIPAL_REMOVE,
+                        KeyStoreLog.principalRemove(name, buffer.getInt(offset + KVNO))));
+
+            long stamp = lock.writeLock();
+            try {
+                buffer.put(offset + STATE, DELETED);
+                for (int i = 0; i < MAX_KEY_LENGTH; i++) buffer.put(offset + KEY + i, (byte) 0);
+                buffer.putInt(12, buffer.getInt(12) - 1);
+                buffer.putInt(16, buffer.getInt(16) + 1);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            if ((long) buffer.getInt(16) * 100 > (long) capacity * MAX_TOMBSTONE_PERCENT)
+                purgeTombstones();
+        }
+        return true;
+    }
+
+    /**
+     * Turns every tombstone back into an empty slot; the caller holds the
+     * writers' monitor.
+     * <p>
+     * For each tombstone, the entries after it in its cluster are shifted back
+     * into the hole whenever the hole lies on their probe sequence, and the
+     * hole left at the end of the cluster is emptied. Other tombstones met on
+     * the way are stepped over and purged when the scan reaches them. Each
+     * tombstone is purged under its own short write lock, so lookups keep
+     * going between them.
+     */
+    private void purgeTombstones() {
+        int mask = capacity - 1;
+        for (int slot = 0; slot < capacity && buffer.getInt(16) > 0; slot++) {
+            if (buffer.get(offset(slot) + STATE) != DELETED)
+                continue;
+            long stamp = lock.writeLock();
+            try {
+                int hole = slot;
+                //  The load limit leaves empty slots, so every cluster ends.
+                for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+                    byte state = buffer.get(offset(next) + STATE);
+                    if (state == EMPTY)
+                        break;
+                    if (state == DELETED)
+                        continue;
+                    int home = buffer.getInt(offset(next) + NAME_HASH) & mask;
+                    //  The entry may move back only if its home is not between the hole and itself.
+                    if (((next - home) & mask) >= ((next - hole) & mask)) {
+                        move(next, hole);
+                        hole = next;
+                    }
+                }
+                buffer.put(offset(hole) + STATE, EMPTY);
+                buffer.putInt(16, buffer.getInt(16) - 1);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Copies the entry of slot {@code from} into the tombstone at {@code to}
+     * and leaves a tombstone behind, so the table is valid before and after.
+     */
+    private void move(int from, int to) {
+        int source = offset(from);
+        int target = offset(to);
+        for (int i = STATE + 1; i < SLOT_SIZE; i++) buffer.put(target + i, buffer.get(source + i));
+        buffer.put(target + STATE, USED);
+        buffer.put(source + STATE, DELETED);
+        for (int i = 0; i < MAX_KEY_LENGTH; i++) buffer.put(source + KEY + i, (byte) 0);
+    }
+
+    /**
+     * Reads the last sequence number of {@code log} at a point where every
+     * change this database logged up to it has also been applied to the
+     * mapping. Changes are logged before they are applied, so the log alone may
+     * be ahead of the mapping; {@link KeyStoreLog#snapshot()} must not compact
+     * such a change away before it reaches the file.
+     *
+     * @param log the log attached to this database
+     * @return the sequence number
+     */
+    long appliedSeq(WriteAheadLog log) {
+        synchronized (writers) {
+            return log.getLastSeq();
+        }
+    }
+
+    /**
+     * Passes every principal to {@code action}, one slot at a time.
+     * <p>
+     * Each slot is read under its own short read lock, so writers are never held
+     * back for the whole scan; in exchange, a principal changed during the scan
+     * may be seen in either version, and one moved by a concurrent write may be
+     * missed or seen twice.
+     *
+     * @param action receives each principal
+     */
+    public void forEach(Consumer<Principal> action) {
+        for (int slot = 0; slot < capacity; slot++) {
+            Principal principal;
+            long stamp = lock.readLock();
+            try {
+                principal = buffer.get(offset(slot) + STATE) == USED ? read(offset(slot)) : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (principal != null)
+                action.accept(principal);
+        }
+    }
+
+    /**
+     * @return number of principals stored
+     */
+    public int size() {
+        return buffer.getInt(12);
+    }
+
+    /**
+     * @return number of slots of the table
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Flushes the modified pages of the mapping to disk.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    private Principal read(byte[] nameBytes, int hash, String name) {
+        int slot = find(nameBytes, hash);
+        if (slot < 0)
+            return null;
+        return read(offset(slot), name);
+    }
+
+    private Principal read(int offset) {
+        byte[] nameBytes = new byte[buffer.getShort(offset + NAME_LENGTH)];
+        for (int i = 0; i < nameBytes.length; i++) nameBytes[i] = buffer.get(offset + NAME + i);
+        return read(offset, new String(nameBytes, StandardCharsets.UTF_8));
+    }
+
+    private Principal read(int offset, String name) {
+        byte[] key = new byte[buffer.getShort(offset + KEY_LENGTH)];
+        for (int i = 0; i < key.length; i++) key[i] = buffer.get(offset + KEY + i);
+        return new Principal(name, buffer.get(offset + ENCTYPE), buffer.getInt(offset + KVNO), key,
+                buffer.getLong(offset + MAX_LIFETIME), buffer.getInt(offset + FLAGS));
+    }
+
+    /**
+     * @return the slot holding {@code nameBytes}, or {@code -1} if it is not in the table
+     */
+    private int find(byte[] nameBytes, int hash) {
+        for (int probe = 0; probe < capacity; probe++) {
+            int slot = (hash + probe) & (capacity - 1);
+            int offset = offset(slot);
+            byte state = buffer.get(offset + STATE);
+            if (state == EMPTY)
+                return -1;
+            if (state == USED && buffer.getInt(offset + NAME_HASH) == hash && nameMatches(offset, nameBytes))
+                return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first empty or deleted slot on the probe sequence of {@code hash}
+     */
+    private int freeSlot(int hash) {
+        int slot = hash & (capacity - 1);
+        while (buffer.get(offset(slot) + STATE) == USED) slot = (slot + 1) & (capacity - 1);
+        return slot;
+    }
+
+    private boolean nameMatches(int offset, byte[] nameBytes) {
+        if (buffer.getShort(offset + NAME_LENGTH) != nameBytes.length)
+            return false;
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (buffer.get(offset + NAME + i) != nameBytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(byte[] bytes) {
+        int hash = 0x811C9DC5;
+        for (byte b : bytes) hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        return hash ^ (hash >>> 16);
+    }
+}
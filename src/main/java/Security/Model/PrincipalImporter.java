@@ -0,0 +1,349 @@
+package Security.Model;
+
+import Model.Log;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams a directory of principals from a text file into a {@link PrincipalDatabase}.
+ * <p>
+ * Two input formats are accepted, one principal per line:
+ * <ul>
+ *   <li>CSV ({@code .csv} or any other extension): {@code name,password,<password>}
+ *       or {@code name,key,<DES key in Base64>}. Everything after the second comma
+ *       is the value, so passwords may contain commas. Blank lines, lines starting
+ *       with {@code #} and a header on the first line ({@code name,} followed by
+ *       anything but {@code password} or {@code key}, e.g. {@code name,type,value})
+ *       are skipped.</li>
+ *   <li>JSON Lines ({@code .jsonl}): one flat object per line with {@code "name"},
+ *       either {@code "password"} or {@code "key"}, and optionally
+ *       {@code "maxLifetime"} (milliseconds) and {@code "disabled"}.</li>
+ * </ul>
+ * Passwords are turned into DES keys with {@link KeyMethods#deriveSecretKey(String, String)},
+ * salted with the principal name. A principal already in the database is
+ * re-imported with the next kvno, i.e. as a key rotation; the kvno is resolved
+ * by {@link PrincipalDatabase#rotateAll(List)} when the principal is stored, so
+ * a name repeated in the file is rotated once per occurrence.
+ * <p>
+ * The import is a three-stage pipeline connected by bounded queues, so memory
+ * stays flat however large the file is:
+ * <ol>
+ *   <li>The calling thread reads the file and cuts it into chunks of
+ *       {@link #CHUNK_SIZE} lines.</li>
+ *   <li>A pool of workers parses the chunks and derives the keys in parallel;
+ *       PBKDF2 is by far the most expensive step.</li>
+ *   <li>A single writer stores each parsed chunk with
+ *       {@link PrincipalDatabase#rotateAll(List)}, one write lock per chunk, and
+ *       reports progress every few seconds.</li>
+ * </ol>
+ * Malformed lines are reported and skipped; they do not stop the import.
+ */
+public class PrincipalImporter {
+
+    /**
+     * Lines handed to a worker at once, and principals stored per write batch.
+     */
+    public static final int CHUNK_SIZE = 1024;
+
+    private static final long PROGRESS_INTERVAL = 5000L;
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    private static final Chunk END_OF_INPUT = new Chunk(0, new ArrayList<>());
+    private static final List<Principal> END_OF_BATCHES = new ArrayList<>();
+
+    private final PrincipalDatabase principals;
+    private final int workers;
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /**
+     * @param principals database to import into
+     * @param workers    number of parsing/derivation threads, usually one per processor
+     */
+    public PrincipalImporter(PrincipalDatabase principals, int workers) {
+        this.principals = principals;
+        this.workers = workers;
+    }
+
+    /**
+     * Imports every principal of the given file.
+     *
+     * @param address path of the CSV or JSON Lines file
+     * @return number of principals imported
+     * @throws Exception if the file cannot be read or the database fills up
+     */
+    public long importFile(String address) throws Exception {
+        boolean jsonLines = address.endsWith(".jsonl");
+        BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(workers * 2);
+        BlockingQueue<List<Principal>> batches = new ArrayBlockingQueue<>(workers * 2);
+        long start = System.currentTimeMillis();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; i++)
+            threads.add(new Thread(() -> parse(chunks, batches, jsonLines), "PrincipalImporter-worker-" + i));
+        Thread writer = new Thread(() -> write(batches, start), "PrincipalImporter-writer");
+        threads.add(writer);
+        for (Thread thread : threads) thread.start();
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(address), StandardCharsets.UTF_8)) {
+            long lineNumber = 0;
+            List<String> lines = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            while (failure.get() == null && (line = reader.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() == CHUNK_SIZE) {
+                    chunks.put(new Chunk(lineNumber + 1, lines));
+                    lineNumber += lines.size();
+                    lines = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!lines.isEmpty())
+                chunks.put(new Chunk(lineNumber + 1, lines));
+        } finally {
+            for (int i = 0; i < workers; i++) chunks.put(END_OF_INPUT);
+            for (Thread thread : threads) thread.join();
+        }
+
+        principals.force();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Log.info("Importaci\u00F3n terminada.", "importados", imported.get(), "rechazados", rejected.get(),
+                "segundos", elapsed / 1000.0, "porSegundo", imported.get() * 1000 / elapsed);
+        if (failure.get() != null)
+            throw failure.get();
+        return imported.get();
+    }
+
+    /**
+     * @return number of principals stored so far
+     */
+    public long getImported() {
+        return imported.get();
+    }
+
+    /**
+     * @return number of lines rejected so far
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void parse(BlockingQueue<Chunk> chunks, BlockingQueue<List<Principal>> batches, boolean jsonLines) {
+        try {
+            while (true) {
+                Chunk chunk = chunks.take();
+                if (chunk == END_OF_INPUT)
+                    break;
+                List<Principal> batch = new ArrayList<>(chunk.lines.size());
+                for (int i = 0; i < chunk.lines.size(); i++) {
+                    String line = chunk.lines.get(i).trim();
+                    if (line.isEmpty() || line.startsWith("#")
+                            || (!jsonLines && chunk.firstLine + i == 1 && isHeader(line)))
+                        continue;
+                    try {
+                        batch.add(jsonLines ? fromJsonLine(line) : fromCsvLine(line));
+                    } catch (Exception e) {
+                        if (rejected.incrementAndGet() <= MAX_REPORTED_ERRORS)
+                            Log.warn("L\u00EDnea rechazada.", "fila", chunk.firstLine + i, "motivo", e.getMessage());
+                    }
+                }
+                if (!batch.isEmpty())
+                    batches.put(batch);
+            }
+            batches.put(END_OF_BATCHES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(BlockingQueue<List<Principal>> batches, long start) {
+        int finishedWorkers = 0;
+        long nextReport = start + PROGRESS_INTERVAL;
+        try {
+            while (finishedWorkers < workers) {
+                List<Principal> batch = batches.take();
+                if (batch == END_OF_BATCHES) {
+                    finishedWorkers++;
+                    continue;
+                }
+                //  After a failure we keep draining the queue so the workers never block on it.
+                if (failure.get() != null)
+                    continue;
+                try {
+                    principals.rotateAll(batch);
+                    imported.addAndGet(batch.size());
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextReport) {
+                    nextReport = now + PROGRESS_INTERVAL;
+                    Log.info("Importando principales.", "importados", imported.get(),
+                            "porSegundo", imported.get() * 1000 / (now - start));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Principal fromCsvLine(String line) throws Exception {
+        int first = line.indexOf(',');
+        int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+        if (second < 0)
+            throw new IllegalArgumentException("se esperaba name,password|key,valor");
+        String name = line.substring(0, first).trim();
+        String type = line.substring(first + 1, second).trim();
+        String value = line.substring(second + 1);
+        if (type.equals("password"))
+            return toPrincipal(name, value, null, 0, 0);
+        if (type.equals("key"))
+            return toPrincipal(name, null, value.trim(), 0, 0);
+        throw new IllegalArgumentException("tipo desconocido '" + type + "'");
+    }
+
+    private Principal fromJsonLine(String line) throws Exception {
+        Map<String, String> fields = parseFlatObject(line);
+        String maxLifetime = fields.get("maxLifetime");
+        return toPrincipal(fields.get("name"), fields.get("password"), fields.get("key"),
+                maxLifetime == null ? 0 : Long.parseLong(maxLifetime),
+                "true".equals(fields.get("disabled")) ? Principal.FLAG_DISABLED : 0);
+    }
+
+    private Principal toPrincipal(String name, String password, String key, long maxLifetime, int flags)
+            throws Exception {
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("falta el nombre del principal");
+        if (name.getBytes(StandardCharsets.UTF_8).length > PrincipalDatabase.MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("el nombre excede " + PrincipalDatabase.MAX_NAME_LENGTH + " bytes");
+
+        byte[] keyBytes;
+        if (password != null)
+            keyBytes = KeyMethods.deriveSecretKey(password, name).getEncoded();
+        else if (key != null)
+            keyBytes = Base64.getDecoder().decode(key);
+        else
+            throw new IllegalArgumentException("falta password o key");
+        if (keyBytes.length != 8)
+            throw new IllegalArgumentException("la llave no es una llave DES de 8 bytes");
+
+        //  The kvno is only known once the principal is stored, see PrincipalDatabase.rotateAll.
+        return new Principal(name, Principal.ENCTYPE_DES, KeyVault.DEFAULT_KVNO, keyBytes, maxLifetime, flags);
+    }
+
+    /**
+     * @return {@code true} if the CSV line is a header rather than a principal named {@code name}
+     */
+    private static boolean isHeader(String line) {
+        if (!line.startsWith("name,"))
+            return false;
+        int second = line.indexOf(',', "name,".length());
+        String type = (second < 0 ? line.substring("name,".length()) : line.substring("name,".length(), second)).trim();
+        return !type.equals("password") && !type.equals("key");
+    }
+
+    /**
+     * Parses a single-level JSON object whose values are strings, numbers or
+     * booleans; every value is returned as a string.
+     */
+    private static Map<String, String> parseFlatObject(String line) {
+        Map<String, String> fields = new HashMap<>();
+        int[] position = {skipSpaces(line, 0)};
+        expect(line, position, '{');
+        if (peek(line, position) == '}')
+            return fields;
+        while (true) {
+            String name = readString(line, position);
+            expect(line, position, ':');
+            String value = peek(line, position) == '"' ? readString(line, position) : readLiteral(line, position);
+            fields.put(name, value);
+            char next = peek(line, position);
+            position[0]++;
+            if (next == '}')
+                return fields;
+            if (next != ',')
+                throw new IllegalArgumentException("JSON mal formado en la posici\u00F3n " + position[0]);
+        }
+    }
+
+    private static String readString(String line, int[] position) {
+        expect(line, position, '"');
+        StringBuilder value = new StringBuilder();
+        int i = position[0];
+        while (i < line.length() && line.charAt(i) != '"') {
+            char c = line.charAt(i++);
+            if (c == '\\' && i < line.length()) {
+                char escaped = line.charAt(i++);
+                switch (escaped) {
+                    case 'n': value.append('\n'); break;
+                    case 't': value.append('\t'); break;
+                    case 'r': value.append('\r'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default: value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        if (i >= line.length())
+            throw new IllegalArgumentException("cadena JSON sin cerrar");
+        position[0] = i + 1;
+        return value.toString();
+    }
+
+    private static String readLiteral(String line, int[] position) {
+        int start = skipSpaces(line, position[0]);
+        int end = start;
+        while (end < line.length() && ",} \t".indexOf(line.charAt(end)) < 0) end++;
+        position[0] = end;
+        String literal = line.substring(start, end);
+        return literal.equals("null") ? null : literal;
+    }
+
+    private static void expect(String line, int[] position, char expected) {
+        if (peek(line, position) != expected)
+            throw new IllegalArgumentException("se esperaba '" + expected + "' en la posici\u00F3n " + position[0]);
+        position[0]++;
+    }
+
+    private static char peek(String line, int[] position) {
+        position[0] = skipSpaces(line, position[0]);
+        return position[0] < line.length() ? line.charAt(position[0]) : '\0';
+    }
+
+    private static int skipSpaces(String line, int position) {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) position++;
+        return position;
+    }
+
+    /**
+     * Consecutive lines of the input file, with the number of the first one for error reports.
+     */
+    private static final class Chunk {
+        final long firstLine;
+        final List<String> lines;
+
+        Chunk(long firstLine, List<String> lines) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+        }
+    }
+}
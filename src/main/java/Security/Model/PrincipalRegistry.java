@@ -0,0 +1,89 @@
+package Security.Model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns principal names into compact integer ids.
+ * <p>
+ * Names arrive as fresh strings in every decrypted ticket. The stores that
+ * keep something per principal, such as the {@link KeyTable}, key
+ * on the principal's id instead: one shared copy of each name, an
+ * {@code int} per entry, comparisons with {@code ==} and primitive-keyed maps
+ * ({@link IntObjectMap}) rather than a {@code String} hash per entry.
+ * <p>
+ * Ids are dense, start at {@code 0}, and stay the same for the life of the
+ * process; they are never written to disk or sent over the network, where
+ * the name is used. Ids are never released, so only names of principals
+ * that were authenticated or read from the key store are interned: the
+ * {@link KeyTable} interns the names it loads from key files, the principal
+ * database and the log. Code that handles names straight from a request, such
+ * as the {@link ReplayCache} or {@link KeyTable#current(String)}, hashes the
+ * name or looks it up with {@link #idOf(String)} instead.
+ * <p>
+ * Looking up an id or a name never locks; only registering a new name does.
+ */
+public class PrincipalRegistry {
+
+    /**
+     * Returned by {@link #idOf(String)} for a name that has not been interned.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    //  Grown under the class lock and republished; a name is stored before its id is visible in ids.
+    private static volatile String[] names = new String[64];
+    private static int count;
+
+    /**
+     * Returns the id of {@code name}, registering it if it is new.
+     *
+     * @param name principal name
+     * @return the principal's id
+     */
+    public static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        synchronized (PrincipalRegistry.class) {
+            id = ids.get(name);
+            if (id != null)
+                return id;
+            String[] current = names;
+            if (count == current.length)
+                current = Arrays.copyOf(current, count * 2);
+            current[count] = name;
+            names = current;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    /**
+     * Returns the id of {@code name} without registering it.
+     *
+     * @param name principal name
+     * @return the principal's id, or {@link #UNKNOWN} if it has not been interned
+     */
+    public static int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * @param id id returned by {@link #intern(String)}
+     * @return the shared copy of the principal's name, or {@code null} for an unknown id
+     */
+    public static String nameOf(int id) {
+        String[] current = names;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    /**
+     * @return number of names interned so far
+     */
+    public static int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,266 @@
+package Security.Model;
+
+import Model.TimeMethods;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the authenticators a service has accepted, so a captured
+ * {@code auth} ticket cannot be presented a second time.
+ * <p>
+ * An authenticator is only accepted if its time stamp is within the allowed
+ * clock skew of the service's clock; once accepted, it is remembered until
+ * that window has passed, after which it would be rejected as stale anyway.
+ * The cache therefore never holds more than one skew window's worth of
+ * authenticators on each side of the present.
+ * <p>
+ * Each authenticator is reduced to a 64-bit fingerprint of (client principal,
+ * time stamp, MAC of the encrypted authenticator). The MAC covers every
+ * encrypted field, so two different authenticators of the same client in the
+ * same millisecond still differ.
+ * <p>
+ * The fingerprints are spread over independent stripes, each with its own
+ * lock, so concurrent workers rarely wait for each other. Inside a stripe they
+ * are grouped in time buckets by authenticator time stamp, in a ring that
+ * covers the whole skew window: when a bucket's time has passed, it is
+ * emptied all at once the next time it is reused, instead of expiring entries
+ * one by one.
+ * <p>
+ * {@link #getHits()}, {@link #getMisses()}, {@link #getSkewed()} and
+ * {@link #size()} report how the cache is doing.
+ */
+public class ReplayCache {
+
+    /**
+     * Clock skew allowed between a client and the service, as in Kerberos.
+     */
+    public static final long DEFAULT_SKEW = TimeMethods.getMillis(5, 0);
+
+    private static final int BUCKETS_PER_SKEW = 5;
+
+    /**
+     * Outcome of {@link #check(String, long, String)}.
+     */
+    public enum Result {
+        /** Not seen before; now remembered. */
+        FRESH,
+        /** Already presented: a replay. */
+        REPLAY,
+        /** Time stamp outside the allowed skew. */
+        SKEWED
+    }
+
+    private final long skew;
+    private final long bucketWidth;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder skewed = new LongAdder();
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * Creates a cache with the {@link #DEFAULT_SKEW} and four stripes per processor.
+     */
+    public ReplayCache() {
+        this(DEFAULT_SKEW, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param skew    maximum difference, in milliseconds, between an authenticator's time stamp and the service's clock
+     * @param stripes number of independently locked stripes; rounded up to a power of two
+     */
+    public ReplayCache(long skew, int stripes) {
+        if (skew < BUCKETS_PER_SKEW)
+            throw new IllegalArgumentException("El margen de reloj es demasiado peque\u00F1o: " + skew + " ms.");
+        this.skew = skew;
+        this.bucketWidth = (skew + BUCKETS_PER_SKEW - 1) / BUCKETS_PER_SKEW;
+        //  Time stamps range over [now - skew, now + skew], plus one bucket of slack at each end.
+        int bucketCount = 2 * BUCKETS_PER_SKEW + 3;
+        int count = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) this.stripes[i] = new Stripe(bucketCount);
+        this.stripeMask = count - 1;
+    }
+
+    /**
+     * Checks an authenticator and remembers it if it is fresh.
+     * <p>
+     * Only call this once the authenticator has been decrypted and matched to
+     * its ticket, so that only genuine authenticators take room in the cache.
+     *
+     * @param client    client principal named in the authenticator
+     * @param timeStamp the authenticator's time stamp, in epoch milliseconds
+     * @param mac       MAC of the encrypted authenticator, as received ({@link Model.Ticket#getMac()})
+     * @return whether the authenticator is fresh, a replay or outside the allowed skew
+     */
+    public Result check(String client, long timeStamp, String mac) {
+        long now = TimeMethods.now();
+        if (timeStamp < now - skew || timeStamp > now + skew) {
+            skewed.increment();
+            return Result.SKEWED;
+        }
+        long fingerprint = fingerprint(client, timeStamp, mac);
+        Stripe stripe = stripes[(int) (fingerprint >>> 32) & stripeMask];
+        boolean added;
+        synchronized (stripe) {
+            added = stripe.add(Math.floorDiv(timeStamp, bucketWidth), fingerprint, size);
+        }
+        if (added) {
+            misses.increment();
+            size.increment();
+            return Result.FRESH;
+        }
+        hits.increment();
+        return Result.REPLAY;
+    }
+
+    /**
+     * @return number of replays detected
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of fresh authenticators accepted
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of authenticators rejected for being outside the allowed skew
+     */
+    public long getSkewed() {
+        return skewed.sum();
+    }
+
+    /**
+     * @return number of authenticators currently remembered, including ones in buckets about to be emptied
+     */
+    public long size() {
+        return size.sum();
+    }
+
+    /**
+     * @return the allowed clock skew, in milliseconds
+     */
+    public long getSkew() {
+        return skew;
+    }
+
+    /**
+     * @return number of stripes, after rounding up to a power of two
+     */
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * FNV-1a over the client name, the time stamp and the MAC, finished with the
+     * murmur mix, as in {@link ShardRing}. The name is hashed rather than
+     * interned in the {@link PrincipalRegistry}: the client of a ticket issued
+     * without a principal database can be any name, and interned names are
+     * never released.
+     */
+    private static long fingerprint(String client, long timeStamp, String mac) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ client.length()) * 0x100000001b3L;
+        for (int i = 0; i < client.length(); i++)
+            hash = (hash ^ client.charAt(i)) * 0x100000001b3L;
+        hash = (hash ^ timeStamp) * 0x100000001b3L;
+        for (int i = 0; i < mac.length(); i++)
+            hash = (hash ^ mac.charAt(i)) * 0x100000001b3L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        //  0 marks an empty slot.
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * One lock's worth of the cache: a ring of time buckets.
+     */
+    private static final class Stripe {
+        private final long[] epochs;
+        private final LongSet[] buckets;
+
+        Stripe(int bucketCount) {
+            epochs = new long[bucketCount];
+            buckets = new LongSet[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                epochs[i] = Long.MIN_VALUE;
+                buckets[i] = new LongSet();
+            }
+        }
+
+        /**
+         * @param epoch       time bucket of the authenticator
+         * @param fingerprint fingerprint of the authenticator
+         * @param size        cache size, lowered by whatever an emptied bucket held
+         * @return {@code true} if the fingerprint was not in its bucket yet
+         */
+        boolean add(long epoch, long fingerprint, LongAdder size) {
+            int index = (int) Math.floorMod(epoch, (long) epochs.length);
+            LongSet bucket = buckets[index];
+            if (epochs[index] != epoch) {
+                //  The ring is longer than the skew window, so a slot holding another
+                //  bucket holds one whose time has passed: drop it whole.
+                size.add(-bucket.size());
+                bucket.clear();
+                epochs[index] = epoch;
+            }
+            return bucket.add(fingerprint);
+        }
+    }
+
+    /**
+     * Open-addressing set of non-zero {@code long}s.
+     */
+    private static final class LongSet {
+        private long[] slots = new long[16];
+        private int size;
+
+        boolean add(long value) {
+            if ((size + 1) * 2 > slots.length)
+                grow();
+            int mask = slots.length - 1;
+            for (int i = (int) value & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == value)
+                    return false;
+                if (slots[i] == 0) {
+                    slots[i] = value;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(slots, 0L);
+            size = 0;
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            int mask = slots.length - 1;
+            for (long value : old) {
+                if (value == 0)
+                    continue;
+                int i = (int) value & mask;
+                while (slots[i] != 0) i = (i + 1) & mask;
+                slots[i] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package Security.Model;
+
+import Model.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Services the TGS issues tickets for, with the key and ticket policy of each.
+ * <p>
+ * A registry is immutable: the services are kept in a map that is never
+ * modified after construction. The TGS reads the installed registry through
+ * {@link #current()}, a single volatile read, so lookups take no lock however
+ * many workers run them; a change builds a whole new registry and swaps it in
+ * with {@link #install(ServiceRegistry)}. A request already holding the former
+ * registry finishes with it.
+ * <p>
+ * Services are read from {@code Security/SecretVault/Services.properties},
+ * one line per service:
+ * <pre>
+ *   name = keyPeer:maxLifetimeMinutes[:disabled]
+ * </pre>
+ * where {@code keyPeer} names the TGS's pairwise key file for the service,
+ * {@code Symmetric-TGS-<keyPeer>.key}. A service also present in the
+ * {@link PrincipalDatabase} takes its key from there instead. The file is
+ * watched by {@link #watch(String, long)} and reinstalled whenever it changes.
+ * Without a file at startup, the registry holds only the demo's {@code Server},
+ * as {@link #defaults()}; a file that is deleted or becomes invalid while
+ * watched leaves the installed registry in place.
+ */
+public class ServiceRegistry {
+
+    /**
+     * Name of the service list inside {@code Security/SecretVault}.
+     */
+    public static final String FILE_NAME = "Services.properties";
+
+    /**
+     * Lifetime of a service ticket when the registry does not say otherwise.
+     */
+    public static final long DEFAULT_LIFETIME = 5 * 60 * 1000L;
+
+    private static volatile ServiceRegistry current = defaults();
+    private static ScheduledExecutorService watcher;
+
+    private final Map<String, Service> services;
+
+    /**
+     * @param services services of the registry; names must be unique
+     */
+    public ServiceRegistry(List<Service> services) {
+        Map<String, Service> byName = new HashMap<>(services.size() * 2);
+        for (Service service : services) {
+            if (byName.put(service.getName(), service) != null)
+                throw new IllegalArgumentException("Servicio repetido: " + service.getName());
+        }
+        this.services = Collections.unmodifiableMap(byName);
+    }
+
+    /**
+     * @return a registry with only the demo's application server, {@code Server}
+     */
+    public static ServiceRegistry defaults() {
+        return new ServiceRegistry(Collections.singletonList(new Service("Server", "Server", DEFAULT_LIFETIME, false)));
+    }
+
+    /**
+     * Reads the service list at {@code address}.
+     *
+     * @param address path of a {@code Services.properties} file
+     * @return the registry of those services, or {@code null} if there is no such file
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static ServiceRegistry load(String address) throws IOException {
+        if (!Files.exists(Paths.get(address)))
+            return null;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(address))) {
+            properties.load(in);
+        }
+        List<Service> services = new ArrayList<>(properties.size());
+        for (String name : properties.stringPropertyNames()) {
+            String[] parts = properties.getProperty(name).trim().split(":");
+            if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty()
+                    || parts.length == 3 && !parts[2].trim().equals("disabled"))
+                throw new IOException("Servicio mal formado en " + address + ": " + name);
+            try {
+                long lifetime = Long.parseLong(parts[1].trim()) * 60 * 1000L;
+                services.add(new Service(name, parts[0].trim(), lifetime, parts.length == 3));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Tiempo de vida inv\u00E1lido del servicio " + name + " en " + address, e);
+            }
+        }
+        return new ServiceRegistry(services);
+    }
+
+    /**
+     * @return the registry installed in this process
+     */
+    public static ServiceRegistry current() {
+        return current;
+    }
+
+    /**
+     * Replaces the registry of this process; lookups started before keep the former one.
+     *
+     * @param registry the new registry, or {@code null} to go back to {@link #defaults()}
+     */
+    public static void install(ServiceRegistry registry) {
+        current = registry == null ? defaults() : registry;
+    }
+
+    /**
+     * Installs the registry at {@code address} now, and again every time the
+     * file changes, checking every {@code intervalMillis} on a background thread.
+     * A missing file, or one that fails to load, leaves the installed registry
+     * in place. Calling it again replaces the previous watch.
+     *
+     * @param address        path of the {@code Services.properties} file
+     * @param intervalMillis time between two checks of the file
+     * @throws IOException if the file exists but cannot be loaded now
+     */
+    public static synchronized void watch(String address, long intervalMillis) throws IOException {
+        ServiceRegistry initial = load(address);
+        if (initial != null)
+            install(initial);
+        if (watcher != null)
+            watcher.shutdownNow();
+        watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ServiceRegistry-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path path = Paths.get(address);
+        FileTime[] loaded = {modified(path)};
+        watcher.scheduleWithFixedDelay(() -> {
+            FileTime modified = modified(path);
+            if (modified == null ? loaded[0] == null : modified.equals(loaded[0]))
+                return;
+            loaded[0] = modified;
+            try {
+                ServiceRegistry registry = load(address);
+                if (registry == null) {
+                    Log.warn("El registro de servicios ya no existe; se mantiene el anterior.", "archivo", address);
+                    return;
+                }
+                install(registry);
+                Log.info("Registro de servicios recargado.", "servicios", registry.size());
+            } catch (IOException e) {
+                Log.error("No se ha podido recargar el registro de servicios; se mantiene el anterior.", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static FileTime modified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param name service principal name, as sent in {@code request4TGS}
+     * @return the service, or {@code null} if the registry does not have it
+     */
+    public Service lookup(String name) {
+        return services.get(name);
+    }
+
+    public int size() {
+        return services.size();
+    }
+
+    public Collection<Service> getServices() {
+        return services.values();
+    }
+
+    /**
+     * One service of the registry.
+     */
+    public static final class Service {
+        private final String name;
+        private final String keyPeer;
+        private final long maxLifetime;
+        private final boolean disabled;
+
+        /**
+         * @param name        service principal name
+         * @param keyPeer     peer name of the TGS's key file for the service, {@code Symmetric-TGS-<keyPeer>.key}
+         * @param maxLifetime lifetime of the service tickets issued, in milliseconds
+         * @param disabled    {@code true} to refuse tickets for the service
+         */
+        public Service(String name, String keyPeer, long maxLifetime, boolean disabled) {
+            if (maxLifetime <= 0)
+                throw new IllegalArgumentException("El tiempo de vida del servicio " + name + " debe ser positivo.");
+            this.name = name;
+            this.keyPeer = keyPeer;
+            this.maxLifetime = maxLifetime;
+            this.disabled = disabled;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKeyPeer() {
+            return keyPeer;
+        }
+
+        public long getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        public boolean isDisabled() {
+            return disabled;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + keyPeer + ", " + maxLifetime / 60000 + " min" + (disabled ? ", deshabilitado" : "") + ")";
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package Security.Model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring that splits the principals of a realm across KDC shards.
+ * <p>
+ * Each shard is an AS/TGS pair holding only its share of the principal
+ * database. A shard is placed on the ring at {@link #DEFAULT_VIRTUAL_NODES}
+ * points (virtual nodes), and a principal belongs to the shard of the first
+ * point at or after the hash of its name. Adding or removing a shard therefore
+ * only moves the principals between its points and their neighbours, about
+ * {@code 1/n} of the realm, and the virtual nodes keep the shares even.
+ * <p>
+ * The ring is immutable; the points are kept in a sorted {@code long[]} so a
+ * lookup is one hash and a binary search. Shards are read from
+ * {@code Security/SecretVault/Shards.properties}, one line per shard:
+ * <pre>
+ *   name = host:asPort:tgsPort
+ * </pre>
+ * The client routes each AS-REQ and TGS-REQ to the owner of its principal
+ * through {@link #owner(String)}. An AS or TGS started as a shard calls
+ * {@link #serve(ShardRing, String)}, and its {@code ProcessRequest} rejects
+ * principals that {@link #isLocal(String)} says belong elsewhere.
+ * <p>
+ * Principals every shard needs, such as the TGS and the application servers,
+ * must be present in every shard's database.
+ */
+public class ShardRing {
+
+    /**
+     * Name of the shard list inside {@code Security/SecretVault}.
+     */
+    public static final String FILE_NAME = "Shards.properties";
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private static volatile ShardRing localRing;
+    private static volatile String localShard;
+
+    private final Map<String, Shard> shards;
+    private final int virtualNodes;
+    private final long[] points;
+    private final Shard[] owners;
+
+    /**
+     * @param shards       shards of the ring; names must be unique
+     * @param virtualNodes points per shard
+     */
+    public ShardRing(List<Shard> shards, int virtualNodes) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("El anillo necesita al menos un shard.");
+        Map<String, Shard> byName = new LinkedHashMap<>();
+        for (Shard shard : shards) {
+            if (byName.put(shard.getName(), shard) != null)
+                throw new IllegalArgumentException("Shard repetido: " + shard.getName());
+        }
+        this.shards = Collections.unmodifiableMap(byName);
+        this.virtualNodes = virtualNodes;
+
+        List<Point> ring = new ArrayList<>(byName.size() * virtualNodes);
+        for (Shard shard : byName.values()) {
+            for (int i = 0; i < virtualNodes; i++) ring.add(new Point(hash(shard.getName() + "#" + i), shard));
+        }
+        Collections.sort(ring);
+        this.points = new long[ring.size()];
+        this.owners = new Shard[ring.size()];
+        for (int i = 0; i < ring.size(); i++) {
+            points[i] = ring.get(i).hash;
+            owners[i] = ring.get(i).shard;
+        }
+    }
+
+    /**
+     * Reads the shard list at {@code address}.
+     *
+     * @param address path of a {@code Shards.properties} file
+     * @return the ring of those shards, or {@code null} if there is no such file
+     * @throws IOException if the file cannot be read or a line is malformed
+     */
+    public static ShardRing load(String address) throws IOException {
+        if (!Files.exists(Paths.get(address)))
+            return null;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(address))) {
+            properties.load(in);
+        }
+        List<Shard> shards = new ArrayList<>();
+        for (String name : new TreeSet<>(properties.stringPropertyNames())) {
+            String[] parts = properties.getProperty(name).trim().split(":");
+            if (parts.length != 3)
+                throw new IOException("Shard mal formado en " + address + ": " + name);
+            try {
+                shards.add(new Shard(name, parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Puerto inv\u00E1lido del shard " + name + " en " + address, e);
+            }
+        }
+        return new ShardRing(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param principal principal name
+     * @return the shard that holds {@code principal}
+     */
+    public Shard owner(String principal) {
+        int index = Arrays.binarySearch(points, hash(principal));
+        if (index < 0)
+            index = -index - 1;
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * @param name shard name
+     * @return the shard, or {@code null} if the ring has no shard with that name
+     */
+    public Shard getShard(String name) {
+        return shards.get(name);
+    }
+
+    /**
+     * @return the shards of the ring, by name
+     */
+    public Map<String, Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param shard shard to add
+     * @return a ring with the shards of this one plus {@code shard}
+     */
+    public ShardRing with(Shard shard) {
+        List<Shard> next = new ArrayList<>(shards.values());
+        next.add(shard);
+        return new ShardRing(next, virtualNodes);
+    }
+
+    /**
+     * @param name name of the shard to remove
+     * @return a ring with the shards of this one except {@code name}
+     */
+    public ShardRing without(String name) {
+        List<Shard> next = new ArrayList<>(shards.values());
+        next.remove(shards.get(name));
+        return new ShardRing(next, virtualNodes);
+    }
+
+    /**
+     * Makes this process serve {@code shard} of {@code ring}; from then on
+     * {@link #isLocal(String)} only accepts the principals of that shard.
+     *
+     * @param ring  the realm's ring, or {@code null} to serve every principal
+     * @param shard name of the shard this process is
+     */
+    public static void serve(ShardRing ring, String shard) {
+        if (ring != null && ring.getShard(shard) == null)
+            throw new IllegalArgumentException("El shard " + shard + " no est\u00E1 en el anillo.");
+        localShard = shard;
+        localRing = ring;
+    }
+
+    /**
+     * @param principal principal name
+     * @return {@code true} if this process serves {@code principal}, which is
+     *         always the case when it was not started as a shard
+     */
+    public static boolean isLocal(String principal) {
+        ShardRing ring = localRing;
+        return ring == null || ring.owner(principal).getName().equals(localShard);
+    }
+
+    /**
+     * @return the ring this process serves, or {@code null} if it is not a shard
+     */
+    public static ShardRing local() {
+        return localRing;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, so that names that
+     * differ only in their last characters (as virtual nodes do) still land
+     * far apart on the ring.
+     */
+    static long hash(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * A virtual node. Points are ordered by hash and, on a collision, by shard
+     * name, so every process builds the same ring from the same shard list.
+     */
+    private static final class Point implements Comparable<Point> {
+        final long hash;
+        final Shard shard;
+
+        Point(long hash, Shard shard) {
+            this.hash = hash;
+            this.shard = shard;
+        }
+
+        @Override
+        public int compareTo(Point other) {
+            int byHash = Long.compare(hash, other.hash);
+            return byHash != 0 ? byHash : shard.getName().compareTo(other.shard.getName());
+        }
+    }
+
+    /**
+     * One KDC shard: the AS and TGS that hold a share of the principals.
+     */
+    public static final class Shard {
+        private final String name;
+        private final String host;
+        private final int asPort;
+        private final int tgsPort;
+
+        public Shard(String name, String host, int asPort, int tgsPort) {
+            this.name = name;
+            this.host = host;
+            this.asPort = asPort;
+            this.tgsPort = tgsPort;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getAsPort() {
+            return asPort;
+        }
+
+        public int getTgsPort() {
+            return tgsPort;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + host + ":" + asPort + ":" + tgsPort + ")";
+        }
+    }
+}
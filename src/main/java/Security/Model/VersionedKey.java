@@ -0,0 +1,29 @@
+package Security.Model;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A long-term symmetric key together with its key version number ({@code kvno}).
+ * <p>
+ * The kvno travels in clear with every ticket encrypted under the key (see
+ * {@link Model.Ticket#getKvno()}), so the receiver can pick the matching
+ * version out of the {@link KeyTable} while a rotation is in progress.
+ */
+public final class VersionedKey {
+
+    private final int kvno;
+    private final SecretKey key;
+
+    public VersionedKey(int kvno, SecretKey key) {
+        this.kvno = kvno;
+        this.key = key;
+    }
+
+    public int getKvno() {
+        return kvno;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+}
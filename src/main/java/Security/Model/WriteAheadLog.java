@@ -0,0 +1,453 @@
+package Security.Model;
+
+import Model.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log with group commit.
+ * <p>
+ * Each record is written as
+ * <pre>
+ *   length (int) | crc32 (int) | seq (long) | type (byte) | payload (length bytes)
+ * </pre>
+ * where the CRC32 covers {@code seq}, {@code type} and the payload, and
+ * {@code seq} grows by one per record. The log does not interpret the payload;
+ * {@link KeyStoreLog} defines the record types of the key store.
+ * <p>
+ * Writers never touch the file. {@link #submit(byte, byte[])} only enqueues the
+ * record; a single daemon thread drains everything queued so far, writes it
+ * with one call and makes it durable with one {@link FileChannel#force(boolean)},
+ * then completes the futures of the whole batch. The more writers arrive at
+ * once, the more records share each {@code force()}.
+ * <p>
+ * Opening a log scans it once: the scan stops at the first record that is
+ * incomplete or fails its checksum (a write torn by a crash) and cuts the file
+ * there, so appends always continue after the last valid record.
+ * <p>
+ * Once the state up to some sequence number is saved elsewhere (see
+ * {@link KeyStoreSnapshot}), {@link #compact(long)} drops those records so the
+ * log, and the replay on the next start, only hold the tail.
+ * <p>
+ * Followers registered with {@link #follow(Handler)} receive every record right
+ * after its batch is durable, in sequence order, which is the change feed
+ * {@link KeyStoreReplication} streams to the replicas.
+ */
+public class WriteAheadLog {
+
+    static final int MAX_BATCH = 4096;
+
+    static final int MAX_PAYLOAD = 1 << 16;
+
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 1;
+
+    private final Path path;
+    private FileChannel channel;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final List<Handler> followers = new CopyOnWriteArrayList<>();
+    private volatile long lastSeq;
+
+    private WriteAheadLog(Path path, FileChannel channel, long lastSeq) {
+        this.path = path;
+        this.channel = channel;
+        this.lastSeq = lastSeq;
+        Thread committer = new Thread(this::commit, "WriteAheadLog-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Opens the log at {@code address}, creating it if needed, and drops a torn tail.
+     *
+     * @param address path of the log file
+     * @return the opened log
+     * @throws IOException if the file cannot be opened or scanned
+     */
+    public static WriteAheadLog open(String address) throws IOException {
+        return open(address, 0);
+    }
+
+    /**
+     * Opens the log at {@code address} after a snapshot: numbering continues from
+     * {@code baseSeq} even if compaction left the log empty.
+     *
+     * @param address path of the log file
+     * @param baseSeq sequence number of the last record covered by the snapshot
+     * @return the opened log
+     * @throws IOException if the file cannot be opened or scanned
+     */
+    public static WriteAheadLog open(String address, long baseSeq) throws IOException {
+        Path path = Paths.get(address);
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long[] lastSeq = {baseSeq};
+        long validEnd = scan(path, record -> lastSeq[0] = Math.max(lastSeq[0], record.getSeq()));
+        if (validEnd < channel.size()) {
+            Log.warn("Se descartan bytes incompletos al final del registro.", "registro", path.getFileName(),
+                    "bytes", channel.size() - validEnd);
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        return new WriteAheadLog(path, channel, lastSeq[0]);
+    }
+
+    /**
+     * Passes every record with a sequence number greater than {@code afterSeq}
+     * to {@code handler}, in log order.
+     *
+     * @param afterSeq last sequence number already applied, or {@code 0} for the whole log
+     * @param handler  receives each record
+     * @return number of records passed to the handler
+     * @throws IOException if the log cannot be read or the handler fails
+     */
+    public long replay(long afterSeq, Handler handler) throws IOException {
+        long[] replayed = {0};
+        scan(path, record -> {
+            if (record.getSeq() > afterSeq) {
+                handler.apply(record);
+                replayed[0]++;
+            }
+        });
+        return replayed[0];
+    }
+
+    /**
+     * Queues a record for the next group commit.
+     *
+     * @param type    record type
+     * @param payload record content
+     * @return a future completed with the record's sequence number once it is on
+     *         disk, or exceptionally if it could not be written
+     */
+    public CompletableFuture<Long> submit(byte type, byte[] payload) {
+        if (payload.length > MAX_PAYLOAD)
+            throw new IllegalArgumentException("Registro demasiado grande: " + payload.length + " bytes.");
+        Pending record = new Pending(type, payload);
+        pending.add(record);
+        return record.durable;
+    }
+
+    /**
+     * Appends a record and waits until it is on disk.
+     *
+     * @param type    record type
+     * @param payload record content
+     * @return the record's sequence number
+     * @throws IOException if the record could not be written
+     */
+    public long append(byte type, byte[] payload) throws IOException {
+        return await(submit(type, payload));
+    }
+
+    /**
+     * Waits for a record returned by {@link #submit(byte, byte[])} to be on disk.
+     *
+     * @param durable future returned by {@code submit}
+     * @return the record's sequence number
+     * @throws IOException if the record could not be written
+     */
+    public static long await(CompletableFuture<Long> durable) throws IOException {
+        try {
+            return durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrumpido mientras se esperaba el registro.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops every record with a sequence number up to {@code upToSeq}. The log
+     * is rewritten by the committer thread between two batches, so writers are
+     * never blocked for longer than a batch.
+     *
+     * @param upToSeq last sequence number saved by a snapshot
+     * @return a future completed once the log has been rewritten
+     */
+    public CompletableFuture<Long> compact(long upToSeq) {
+        Pending request = new Pending(upToSeq);
+        pending.add(request);
+        return request.durable;
+    }
+
+    /**
+     * Passes every record written from now on to {@code follower}, on the
+     * committer thread and once the record is durable. The follower must not
+     * block (it usually only queues the record); if it throws, it is dropped.
+     *
+     * @param follower receives each new record
+     */
+    public void follow(Handler follower) {
+        followers.add(follower);
+    }
+
+    /**
+     * Stops passing new records to {@code follower}.
+     *
+     * @param follower a handler given to {@link #follow(Handler)}
+     */
+    public void unfollow(Handler follower) {
+        followers.remove(follower);
+    }
+
+    /**
+     * @return sequence number of the last record written
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return path of the log file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    private void commit() {
+        List<Pending> batch = new ArrayList<>();
+        List<Pending> records = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+
+            for (Pending entry : batch) {
+                if (entry.compactUpTo < 0) {
+                    records.add(entry);
+                } else {
+                    write(records);
+                    records.clear();
+                    rewrite(entry);
+                }
+            }
+            write(records);
+            records.clear();
+            batch.clear();
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        if (batch.isEmpty())
+            return;
+        int size = 0;
+        for (Pending record : batch) size += RECORD_HEADER + record.payload.length;
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        long seq = lastSeq;
+        for (Pending record : batch) {
+            record.seq = ++seq;
+            encode(bytes, record.seq, record.type, record.payload);
+        }
+        bytes.flip();
+
+        long batchStart = -1;
+        try {
+            batchStart = channel.position();
+            while (bytes.hasRemaining()) channel.write(bytes);
+            channel.force(false);
+            lastSeq = seq;
+            for (Pending record : batch) record.durable.complete(record.seq);
+            notifyFollowers(batch);
+        } catch (IOException e) {
+            Log.error("No se ha podido escribir el registro " + path.getFileName() + ".", e);
+            //  A half-written batch would hide every later record from the next scan.
+            try {
+                if (batchStart >= 0) {
+                    channel.truncate(batchStart);
+                    channel.position(batchStart);
+                }
+            } catch (IOException ignored) {
+                //  The scan on the next start will cut the torn batch instead.
+            }
+            for (Pending record : batch) record.durable.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Rewrites the log without the records up to {@code request.compactUpTo}.
+     * The new file is built next to the log and moved over it atomically, so a
+     * crash leaves either the old or the new log, never a mix.
+     */
+    private void rewrite(Pending request) {
+        Path temp = path.resolveSibling(path.getFileName() + ".compact");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                scan(path, record -> {
+                    if (record.getSeq() > request.compactUpTo) {
+                        ByteBuffer bytes = ByteBuffer.allocate(RECORD_HEADER + record.payload.length);
+                        encode(bytes, record.seq, record.type, record.payload);
+                        bytes.flip();
+                        while (bytes.hasRemaining()) out.write(bytes);
+                    }
+                });
+                out.force(true);
+            }
+            channel.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            reopen();
+            request.durable.complete(request.compactUpTo);
+        } catch (IOException e) {
+            Log.error("No se ha podido compactar el registro " + path.getFileName() + ".", e);
+            try {
+                if (!channel.isOpen())
+                    reopen();
+            } catch (IOException ignored) {
+                //  Later batches will fail and report it to their writers.
+            }
+            request.durable.completeExceptionally(e);
+        }
+    }
+
+    private void notifyFollowers(List<Pending> batch) {
+        if (followers.isEmpty())
+            return;
+        List<Record> records = new ArrayList<>(batch.size());
+        for (Pending record : batch) records.add(new Record(record.seq, record.type, record.payload));
+        for (Handler follower : followers) {
+            try {
+                for (Record record : records) follower.apply(record);
+            } catch (IOException | RuntimeException e) {
+                followers.remove(follower);
+            }
+        }
+    }
+
+    private void reopen() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    private static void encode(ByteBuffer bytes, long seq, byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(9).putLong(seq).put(type).array());
+        crc.update(payload);
+        bytes.putInt(payload.length).putInt((int) crc.getValue()).putLong(seq).put(type).put(payload);
+    }
+
+    /**
+     * Reads the records of the log from the start, passing the valid ones to
+     * {@code handler}, and returns the offset right after the last valid record.
+     */
+    private static long scan(Path path, Handler handler) throws IOException {
+        if (!Files.exists(path))
+            return 0;
+        long validEnd = 0;
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    if (length < 0 || length > MAX_PAYLOAD)
+                        break;
+                    int crc = in.readInt();
+                    long seq = in.readLong();
+                    byte type = in.readByte();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+
+                    CRC32 expected = new CRC32();
+                    expected.update(ByteBuffer.allocate(9).putLong(seq).put(type).array());
+                    expected.update(payload);
+                    if ((int) expected.getValue() != crc)
+                        break;
+                    handler.apply(new Record(seq, type, payload));
+                    validEnd += RECORD_HEADER + length;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return validEnd;
+    }
+
+    /**
+     * Receives the records of the log during {@link #replay(long, Handler)}, or
+     * as they are written when given to {@link #follow(Handler)}.
+     */
+    public interface Handler {
+        void apply(Record record) throws IOException;
+    }
+
+    /**
+     * A record read back from the log.
+     */
+    public static final class Record {
+        private final long seq;
+        private final byte type;
+        private final byte[] payload;
+
+        Record(long seq, byte type, byte[] payload) {
+            this.seq = seq;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * A record waiting for the next group commit, or a compaction request.
+     */
+    private static final class Pending {
+        final byte type;
+        final byte[] payload;
+        final long compactUpTo;
+        final CompletableFuture<Long> durable = new CompletableFuture<>();
+        long seq;
+
+        Pending(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+            this.compactUpTo = -1;
+        }
+
+        /**
+         * A compaction request rather than a record.
+         */
+        Pending(long compactUpTo) {
+            this.type = 0;
+            this.payload = new byte[0];
+            this.compactUpTo = compactUpTo;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import Security.Model.Principal;
+import Security.Model.PrincipalDatabase;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link PrincipalDatabase} under insert and delete churn: far more
+ * names go through the table than it has slots, so it only keeps working if
+ * the tombstones left by {@code remove} are purged, and every principal must
+ * still be found afterwards, also after reopening the file.
+ */
+public class PrincipalDatabaseTest {
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("principals-test");
+        String address = directory.resolve(PrincipalDatabase.FILE_NAME).toString();
+        PrincipalDatabase database = PrincipalDatabase.create(address, 100);
+        int capacity = database.capacity();
+
+        Map<String, Integer> expected = new HashMap<>();
+        List<String> live = new ArrayList<>();
+        Random random = new Random(42);
+        for (int round = 0; round < 50 * capacity; round++) {
+            if (live.size() < 150 && (live.isEmpty() || random.nextInt(3) > 0)) {
+                String name = "p" + round;
+                database.put(principal(name, 1 + round % 7));
+                expected.put(name, 1 + round % 7);
+                live.add(name);
+            } else {
+                String name = live.remove(random.nextInt(live.size()));
+                if (!database.remove(name))
+                    throw new AssertionError("No se encuentra " + name + " para borrarlo");
+                expected.remove(name);
+            }
+        }
+        System.out.println("OK: " + 50 * capacity + " cambios en una tabla de " + capacity + " ranuras");
+
+        verify(database, expected, "Tras la rotación");
+        int tombstones = tombstones(database, address);
+        check(tombstones * 4 <= capacity, "Las lápidas no pasan de un cuarto de la tabla: " + tombstones);
+
+        //  Drain the table: every removal must still find its principal.
+        for (String name : new ArrayList<>(expected.keySet())) {
+            if (!database.remove(name))
+                throw new AssertionError("No se encuentra " + name + " para borrarlo");
+            expected.remove(name);
+        }
+        check(database.size() == 0 && database.lookup("p0") == null, "La tabla queda vacía");
+        for (int i = 0; i < 200; i++) {
+            database.put(principal("q" + i, 1));
+            expected.put("q" + i, 1);
+        }
+        verify(PrincipalDatabase.open(address), expected, "Tras reabrir");
+        System.out.println("PrincipalDatabase correcta.");
+    }
+
+    private static void verify(PrincipalDatabase database, Map<String, Integer> expected, String when) {
+        check(database.size() == expected.size(), when + ": " + expected.size() + " principales");
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            Principal principal = database.lookup(entry.getKey());
+            if (principal == null || principal.getKvno() != entry.getValue())
+                throw new AssertionError(when + ": falta " + entry.getKey());
+        }
+        int[] seen = {0};
+        database.forEach(principal -> seen[0]++);
+        check(seen[0] == expected.size(), when + ": el recorrido ve cada principal una vez");
+    }
+
+    private static int tombstones(PrincipalDatabase database, String address) throws Exception {
+        database.force();
+        try (RandomAccessFile file = new RandomAccessFile(address, "r")) {
+            file.seek(16);
+            return file.readInt();
+        }
+    }
+
+    private static Principal principal(String name, int kvno) {
+        return new Principal(name, Principal.ENCTYPE_DES, kvno, new byte[8], 0, 0);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+        System.out.println("OK: " + description);
+    }
+}
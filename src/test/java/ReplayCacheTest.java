@@ -0,0 +1,53 @@
+import Model.TimeMethods;
+import Security.Model.ReplayCache;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * Checks {@link ReplayCache} against a fixed clock: a replay, a skewed time
+ * stamp, a bucket reused once its time has passed, and the stripe rounding.
+ */
+public class ReplayCacheTest {
+    public static void main(String[] args) {
+        long start = System.currentTimeMillis();
+        long skew = 1000;
+        Clock previous = TimeMethods.getClock();
+        try {
+            TimeMethods.setClock(Clock.fixed(Instant.ofEpochMilli(start), ZoneId.systemDefault()));
+            ReplayCache cache = new ReplayCache(skew, 1);
+
+            check(cache.check("Alice", start, "mac-1") == ReplayCache.Result.FRESH, "Primera vez aceptada");
+            check(cache.check("Alice", start, "mac-1") == ReplayCache.Result.REPLAY, "Segunda vez rechazada");
+            check(cache.check("Alice", start, "mac-2") == ReplayCache.Result.FRESH, "Otro MAC aceptado");
+            check(cache.check("Bob", start, "mac-1") == ReplayCache.Result.FRESH, "Otro cliente aceptado");
+            check(cache.size() == 3, "Tres autenticadores recordados");
+
+            check(cache.check("Alice", start - skew - 1, "mac-3") == ReplayCache.Result.SKEWED, "Demasiado antiguo");
+            check(cache.check("Alice", start + skew + 1, "mac-3") == ReplayCache.Result.SKEWED, "Demasiado adelantado");
+            check(cache.check("Alice", start + skew, "mac-3") == ReplayCache.Result.FRESH, "En el límite del margen");
+            check(cache.getHits() == 1 && cache.getMisses() == 4 && cache.getSkewed() == 2, "Contadores");
+
+            //  Five buckets per skew plus slack make a ring of 13 buckets of skew / 5 ms: a time stamp
+            //  one ring later lands in the same bucket as the first three, which is emptied.
+            long later = start + 13 * (skew / 5);
+            TimeMethods.setClock(Clock.fixed(Instant.ofEpochMilli(later), ZoneId.systemDefault()));
+            check(cache.check("Alice", later, "mac-1") == ReplayCache.Result.FRESH, "Cubeta reutilizada");
+            check(cache.size() == 2, "El tamaño baja al vaciar la cubeta: " + cache.size());
+
+            check(new ReplayCache(skew, 3).getStripes() == 4, "3 franjas se redondean a 4");
+            check(new ReplayCache(skew, 4).getStripes() == 4, "4 franjas se quedan en 4");
+            check(new ReplayCache(skew, 0).getStripes() == 1, "0 franjas se redondean a 1");
+        } finally {
+            TimeMethods.setClock(previous);
+        }
+        System.out.println("ReplayCache correcta.");
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,53 @@
+import Security.Model.ShardRing;
+import Security.Model.ShardRing.Shard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that adding a fifth shard to a ring of four moves about a fifth of
+ * the principals, all of them to the new shard, and that removing it again
+ * gives every principal back to its previous owner.
+ */
+public class ShardRingTest {
+    public static void main(String[] args) {
+        int principals = 20_000;
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) shards.add(new Shard("shard" + i, "localhost", 5000 + i, 6000 + i));
+        ShardRing four = new ShardRing(shards, ShardRing.DEFAULT_VIRTUAL_NODES);
+        ShardRing five = four.with(new Shard("shard5", "localhost", 5005, 6005));
+        ShardRing back = five.without("shard5");
+
+        int moved = 0;
+        boolean onlyToNew = true, restored = true;
+        Map<String, Integer> shares = new HashMap<>();
+        for (int i = 0; i < principals; i++) {
+            String principal = "Client - User" + i;
+            Shard before = four.owner(principal);
+            Shard after = five.owner(principal);
+            shares.merge(after.getName(), 1, Integer::sum);
+            if (!after.getName().equals(before.getName())) {
+                moved++;
+                onlyToNew &= after.getName().equals("shard5");
+            }
+            restored &= back.owner(principal).getName().equals(before.getName());
+        }
+
+        double fraction = (double) moved / principals;
+        System.out.println("Movidos: " + moved + " de " + principals + " (" + Math.round(fraction * 1000) / 10.0 + " %)");
+        check(fraction > 0.15 && fraction < 0.25, "Se mueve cerca de 1/5 de los principales");
+        check(onlyToNew, "Solo se mueven al shard nuevo");
+        check(restored, "Quitar el shard devuelve cada principal a su dueño anterior");
+        boolean even = true;
+        for (int share : shares.values()) even &= share > principals / 5 * 0.75 && share < principals / 5 * 1.25;
+        check(shares.size() == 5 && even, "Los cinco shards reciben partes parecidas");
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+        System.out.println("OK: " + description);
+    }
+}
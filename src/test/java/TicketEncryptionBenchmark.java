@@ -0,0 +1,86 @@
+import Model.TicketKind;
+import Model.UTicket;
+import Security.Model.Encryption;
+import Security.Model.KeyMethods;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated and the time taken to encrypt and decrypt one
+ * ticket, first the way it was done field by field (a new DES cipher per field
+ * and a new MAC per ticket), then through {@link UTicket#encryptTicket(SecretKey, TicketKind)}
+ * and {@link UTicket#decryptTicket(SecretKey, TicketKind)}, which use one
+ * cipher and one MAC per layer.
+ * <p>
+ * Usage: {@code TicketEncryptionBenchmark [rounds]}
+ */
+public class TicketEncryptionBenchmark {
+
+    private static final String[] FIELDS = {
+            "Client - Alice", "TGS - Victor", "2026-10-19 10:00:00.000", "192.168.0.10",
+            "2026-10-19 15:00:00.000", "c2Vzc2lvbktleQ=="
+    };
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        SecretKey key = KeyMethods.generateSecretKey();
+
+        UTicket envelope = new UTicket();
+        envelope.generateTicket(TicketKind.TGT.getId(), FIELDS[0], FIELDS[1], FIELDS[2], FIELDS[3], FIELDS[4], FIELDS[5]);
+
+        measure("Una llamada por campo", rounds, () -> perField(key));
+        measure("Un cifrador por ticket", rounds, () -> {
+            if (!envelope.encryptTicket(key, TicketKind.TGT) || !envelope.decryptTicket(key, TicketKind.TGT))
+                throw new IllegalStateException("El ticket no pudo cifrarse y descifrarse.");
+        });
+    }
+
+    /**
+     * Encrypts, seals, verifies and decrypts the six fields with the one-shot methods of {@link Encryption},
+     * creating a MAC to seal them and another to verify them.
+     */
+    private static void perField(SecretKey key) throws Exception {
+        String[] encrypted = new String[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++)
+            encrypted[i] = Encryption.symmetricEncrypt(key, FIELDS[i]);
+        String mac = Encryption.finishMac(mac(key, encrypted));
+        if (!Encryption.verifyMac(mac(key, encrypted), mac))
+            throw new IllegalStateException("MAC no válido.");
+        for (String field : encrypted)
+            Encryption.symmetricDecrypt(key, field);
+    }
+
+    private static Mac mac(SecretKey key, String[] encrypted) throws Exception {
+        Mac mac = Encryption.symmetricMac(key);
+        Encryption.updateMac(mac, TicketKind.TGT.getId());
+        for (String field : encrypted)
+            Encryption.updateMac(mac, field);
+        Encryption.updateMac(mac, "0");
+        Encryption.updateMac(mac, null);
+        return mac;
+    }
+
+    private static void measure(String name, int rounds, Round round) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        //  Warm-up, so the JIT and the providers are loaded before measuring.
+        for (int i = 0; i < rounds; i++) round.run();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) round.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        System.out.println(name + ": " + (allocated / rounds) + " bytes y "
+                + (elapsed / rounds / 1000) + " µs por ticket (" + rounds + " rondas).");
+    }
+
+    @FunctionalInterface
+    private interface Round {
+        void run() throws Exception;
+    }
+}
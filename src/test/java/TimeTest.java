@@ -1,8 +1,18 @@
 import Model.TimeMethods;
 
 import java.sql.Timestamp;
+import java.time.Clock;
 import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Random;
 
+/**
+ * Checks the fixed-width codec of {@link TimeMethods} against {@link Timestamp},
+ * its per-minute caches across a minute rollover, and the zone views of
+ * {@link TimeMethods.CachedClock}.
+ */
 public class TimeTest {
     public static void main(String[] args) throws InterruptedException {
         Timestamp now = Timestamp.from(Instant.now());
@@ -12,5 +22,81 @@ public class TimeTest {
         else if(now.compareTo(compareNow) > 0) System.out.println("Aún a tiempo");
         else System.out.println("Ya expiró");
 
+        fixedWidth();
+        minuteRollover();
+        zoneViews();
+    }
+
+    private static void fixedWidth() {
+        Random random = new Random(42);
+        long base = LocalDateTime.of(2026, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        boolean width = true, writesTimestamp = true, readsTimestamp = true, sameInPlace = true;
+        for (int i = 0; i < 100_000; i++) {
+            //  Two years of times, so the checks cross the changes of the local offset, if any.
+            long millis = base + (long) (random.nextDouble() * 2 * 365 * 24 * 3600_000L);
+            if (i % 10 == 0) millis -= millis % 1000;
+            String text = TimeMethods.format(millis);
+            String timestamp = new Timestamp(millis).toString();
+            width &= text.length() == TimeMethods.TIMESTAMP_LENGTH;
+            //  Timestamp drops the trailing zeros of the fraction.
+            writesTimestamp &= text.equals((timestamp + "00").substring(0, TimeMethods.TIMESTAMP_LENGTH));
+            //  A time repeated when the clocks go back reads as the second one in both.
+            readsTimestamp &= TimeMethods.parse(text) == Timestamp.valueOf(text).getTime()
+                    && TimeMethods.parse(timestamp) == Timestamp.valueOf(timestamp).getTime();
+            StringBuilder builder = new StringBuilder();
+            TimeMethods.format(millis, builder);
+            char[] chars = new char[TimeMethods.TIMESTAMP_LENGTH + 2];
+            TimeMethods.format(millis, chars, 2);
+            sameInPlace &= builder.toString().equals(text)
+                    && new String(chars, 2, TimeMethods.TIMESTAMP_LENGTH).equals(text);
+        }
+        check(width, "Siempre " + TimeMethods.TIMESTAMP_LENGTH + " caracteres");
+        check(writesTimestamp, "format escribe lo mismo que Timestamp.toString");
+        check(readsTimestamp, "parse lee lo mismo que Timestamp.valueOf, fracciones cortas incluidas");
+        check(sameInPlace, "format en StringBuilder y en char[] coincide");
+        check(TimeMethods.format(0).equals(new Timestamp(0).toString() + "00"), "Época con milisegundos a cero");
+    }
+
+    private static void minuteRollover() {
+        long last = LocalDateTime.of(2026, 10, 19, 12, 0, 59, 999_000_000)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        check(TimeMethods.format(last).equals("2026-10-19 12:00:59.999"), "Último milisegundo de un minuto");
+        check(TimeMethods.format(last + 1).equals("2026-10-19 12:01:00.000"), "Primer milisegundo del siguiente");
+        check(TimeMethods.format(last).equals("2026-10-19 12:00:59.999"), "Vuelta al minuto anterior");
+        check(TimeMethods.parse("2026-10-19 12:00:59.999") == last, "parse del último milisegundo");
+        check(TimeMethods.parse("2026-10-19 12:01:00.000") == last + 1, "parse del siguiente minuto");
+        check(TimeMethods.parse("2026-10-19 12:00:59.999") == last, "parse al volver al minuto anterior");
+        check(TimeMethods.format(last + 60_001).equals("2026-10-19 12:02:00.000"), "Otro minuto más");
+    }
+
+    private static void zoneViews() throws InterruptedException {
+        Clock previous = TimeMethods.getClock();
+        try {
+            TimeMethods.setClock(null);
+            Clock local = TimeMethods.getClock();
+            Clock utc = local.withZone(ZoneOffset.UTC);
+            check(utc instanceof TimeMethods.CachedClock && utc.getZone().equals(ZoneOffset.UTC), "Vista en UTC");
+            check(local.getZone().equals(ZoneId.systemDefault()), "El reloj original sigue en la zona local");
+            check(utc.withZone(ZoneOffset.UTC) == utc && utc.equals(local.withZone(ZoneOffset.UTC)),
+                    "Misma zona, mismo reloj");
+
+            boolean shared = true;
+            for (int i = 0; i < 1000; i++) {
+                long before = local.millis();
+                long viewed = utc.millis();
+                long after = local.millis();
+                shared &= before <= viewed && viewed <= after;
+                Thread.sleep(0, 200_000);
+            }
+            check(shared, "La vista lee los mismos milisegundos");
+        } finally {
+            TimeMethods.setClock(previous);
+        }
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+        System.out.println("OK: " + description);
     }
 }
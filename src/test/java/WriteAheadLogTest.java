@@ -0,0 +1,138 @@
+import Security.Model.KeyMethods;
+import Security.Model.KeyStoreLog;
+import Security.Model.KeyTable;
+import Security.Model.Principal;
+import Security.Model.PrincipalDatabase;
+import Security.Model.WriteAheadLog;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that {@link WriteAheadLog} and {@link KeyStoreLog#recover} survive a
+ * crash: records written by concurrent writers come back in sequence order, a
+ * torn tail and a record failing its CRC are dropped on reopening, and a
+ * restart rebuilds the principal database and the key table from the
+ * snapshot plus the tail of the log.
+ */
+public class WriteAheadLogTest {
+
+    private static final byte TYPE = 9;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("wal-test");
+        groupCommit(directory.resolve("raw.wal"));
+        recover(directory);
+        System.out.println("WriteAheadLog correcto.");
+    }
+
+    private static void groupCommit(Path file) throws Exception {
+        WriteAheadLog writer = WriteAheadLog.open(file.toString());
+        int threads = 16, perThread = 100, total = threads * perThread;
+        Map<Long, String> written = new ConcurrentHashMap<>();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            done.add(workers.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    String payload = thread + "-" + i;
+                    written.put(writer.append(TYPE, payload.getBytes(StandardCharsets.UTF_8)), payload);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get();
+        workers.shutdown();
+        check(written.size() == total && writer.getLastSeq() == total, "Un número de secuencia por registro");
+
+        long[] previous = {0};
+        long replayed = writer.replay(0, record -> {
+            if (record.getSeq() != previous[0] + 1)
+                throw new AssertionError("Registro " + record.getSeq() + " después de " + previous[0]);
+            if (!new String(record.getPayload(), StandardCharsets.UTF_8).equals(written.get(record.getSeq())))
+                throw new AssertionError("El registro " + record.getSeq() + " no es el escrito con ese número");
+            previous[0] = record.getSeq();
+        });
+        check(replayed == total, "Los registros vuelven en orden de secuencia");
+
+        //  A record whose length promises more bytes than there are: a write torn by a crash.
+        long validSize = Files.size(file);
+        Files.write(file, new byte[]{0, 0, 0, 5, 1, 2}, StandardOpenOption.APPEND);
+        WriteAheadLog log = WriteAheadLog.open(file.toString());
+        check(Files.size(file) == validSize && log.getLastSeq() == total, "Se descarta el final incompleto");
+        check(log.append(TYPE, new byte[]{42}) == total + 1, "Se sigue escribiendo tras el último registro válido");
+
+        //  A complete record whose payload no longer matches its CRC.
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(raw.length() - 1);
+            raw.write(43);
+        }
+        log = WriteAheadLog.open(file.toString());
+        check(Files.size(file) == validSize && log.getLastSeq() == total, "Se descarta el registro con CRC incorrecto");
+        check(log.replay(0, record -> { }) == total, "Se reproducen solo los registros válidos");
+    }
+
+    private static void recover(Path directory) throws Exception {
+        String logAddress = directory.resolve("AS-" + KeyStoreLog.FILE_NAME).toString();
+        String databaseAddress = directory.resolve(PrincipalDatabase.FILE_NAME).toString();
+
+        PrincipalDatabase principals = PrincipalDatabase.create(databaseAddress, 1000);
+        KeyStoreLog.recover(logAddress, principals);
+        for (int i = 0; i < 100; i++)
+            principals.put(principal("a" + i, 1));
+        principals.remove("a5");
+        principals.put(principal("a7", 2));
+        KeyTable.observe("k", 1, KeyMethods.generateSecretKey());
+        KeyTable.observe("k", 2, KeyMethods.generateSecretKey());
+
+        long snapshotSeq = KeyStoreLog.snapshot();
+        check(Files.size(Paths.get(logAddress)) == 0, "La instantánea compacta el registro");
+
+        List<Principal> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            batch.add(principal("b" + i, 1));
+        principals.putAll(batch);
+        principals.remove("a6");
+        KeyTable.observe("k", 3, KeyMethods.generateSecretKey());
+        //  Key versions do not wait for the disk: a durable principal change after them does.
+        principals.put(principal("b0", 2));
+        Files.write(Paths.get(logAddress), new byte[]{0, 0, 0, 5, 1, 2}, StandardOpenOption.APPEND);
+
+        //  Restart: memory is lost, the database file and the log remain.
+        KeyTable.clear();
+        PrincipalDatabase reopened = PrincipalDatabase.open(databaseAddress);
+        WriteAheadLog log = KeyStoreLog.recover(logAddress, reopened);
+        long tail = 10 + 1 + 1 + 1;
+        check(log.getLastSeq() == snapshotSeq + tail, "La secuencia sigue a la instantánea más la cola");
+        check(log.replay(0, record -> { }) == tail, "Solo la cola queda en el registro: " + tail + " registros");
+
+        check(reopened.size() == 100 - 1 + 10 - 1, "Principales recuperados: " + reopened.size());
+        check(reopened.lookup("a5") == null && reopened.lookup("a6") == null, "Los borrados siguen borrados");
+        check(reopened.lookup("a7").getKvno() == 2 && reopened.lookup("b0").getKvno() == 2, "Se conserva la última versión");
+        check(reopened.lookup("b9") != null, "Los principales de la cola están");
+        check(KeyTable.current("k").getKvno() == 3, "La versión de la cola gana a la de la instantánea");
+        check(KeyTable.lookup("k", 2) != null, "La versión anterior viene de la instantánea");
+    }
+
+    private static Principal principal(String name, int kvno) {
+        return new Principal(name, Principal.ENCTYPE_DES, kvno, new byte[8], 0, 0);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition)
+            throw new AssertionError(description);
+        System.out.println("OK: " + description);
+    }
+}